@@ -0,0 +1,64 @@
+package com.example.solr.cond;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.*;
+
+/** {@link ConditionEvaluator} による 1 式の評価（葉の真偽はビット列で与える） */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+    static final int EXPRESSIONS = 1024;
+
+    @Param({"2", "4"})
+    int depth;
+
+    @Param({"2", "8"})
+    int fanout;
+
+    @Param({"100", "10000"})
+    int vocabulary;
+
+    @Param({"1", "100"})
+    int trueIds;
+
+    BytesRef[] expressions;
+    long[][] localTrue;
+    final ConditionEvaluator evaluator = new ConditionEvaluator();
+
+    @Setup
+    public void setUp() {
+        ExpressionGenerator gen = new ExpressionGenerator(42, depth, fanout, vocabulary, 0.2);
+        Set<BytesRef> active = new HashSet<>();
+        for (String id : gen.leafIds(trueIds)) active.add(new BytesRef(id));
+        expressions = new BytesRef[EXPRESSIONS];
+        localTrue = new long[EXPRESSIONS][];
+        for (int i = 0; i < EXPRESSIONS; i++) {
+            CompiledExpression compiled = ConditionExpressionParser.compile(gen.next());
+            expressions[i] = new BytesRef(compiled.bytes());
+            List<BytesRef> leaves = compiled.leaves();
+            localTrue[i] = new long[(leaves.size() + 63) >>> 6];
+            for (int j = 0; j < leaves.size(); j++) {
+                if (active.contains(leaves.get(j))) localTrue[i][j >>> 6] |= 1L << j;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXPRESSIONS)
+    public int evaluate() {
+        int matches = 0;
+        for (int i = 0; i < EXPRESSIONS; i++) {
+            if (evaluator.matches(expressions[i], localTrue[i])) matches++;
+        }
+        return matches;
+    }
+}
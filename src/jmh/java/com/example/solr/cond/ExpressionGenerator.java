@@ -0,0 +1,63 @@
+package com.example.solr.cond;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ベンチマーク用の条件式を作る。
+ * 深さ {@code depth} まで AND / OR を交互に {@code fanout} 個ずつ入れ子にし、
+ * 葉は {@code L0 .. L(vocabulary-1)} から選ぶ。葉は確率 {@code notRatio} で NOT を付ける。
+ */
+final class ExpressionGenerator {
+    private final Random random;
+    private final int depth;
+    private final int fanout;
+    private final int vocabulary;
+    private final double notRatio;
+
+    ExpressionGenerator(long seed, int depth, int fanout, int vocabulary, double notRatio) {
+        this.random = new Random(seed);
+        this.depth = depth;
+        this.fanout = fanout;
+        this.vocabulary = vocabulary;
+        this.notRatio = notRatio;
+    }
+
+    String next() {
+        StringBuilder sb = new StringBuilder();
+        append(sb, depth, random.nextBoolean());
+        return sb.toString();
+    }
+
+    List<String> next(int n) {
+        List<String> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) list.add(next());
+        return list;
+    }
+
+    /** 語彙からランダムに選んだ {@code n} 個の葉 ID */
+    List<String> leafIds(int n) {
+        List<String> ids = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) ids.add(leaf(random.nextInt(vocabulary)));
+        return ids;
+    }
+
+    static String leaf(int i) {
+        return "L" + i;
+    }
+
+    private void append(StringBuilder sb, int d, boolean and) {
+        if (d == 0) {
+            if (random.nextDouble() < notRatio) sb.append("NOT ");
+            sb.append(leaf(random.nextInt(vocabulary)));
+            return;
+        }
+        sb.append('(');
+        for (int i = 0; i < fanout; i++) {
+            if (i > 0) sb.append(and ? " AND " : " OR ");
+            append(sb, d - 1, !and);
+        }
+        sb.append(')');
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.solr.cond;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** {@link ConditionExpressionParser} と {@link ConditionExpressionCompiler} の式 → バイト列の変換 */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    static final int EXPRESSIONS = 256;
+
+    @Param({"2", "4"})
+    int depth;
+
+    @Param({"2", "8"})
+    int fanout;
+
+    @Param({"100", "10000"})
+    int vocabulary;
+
+    @Param({"false", "true"})
+    boolean canonicalize;
+
+    List<String> expressions;
+
+    @Setup
+    public void setUp() {
+        expressions = new ExpressionGenerator(42, depth, fanout, vocabulary, 0.2).next(EXPRESSIONS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXPRESSIONS)
+    public void compile(Blackhole bh) {
+        for (String expr : expressions) {
+            bh.consume(ConditionExpressionParser.compile(expr, canonicalize));
+        }
+    }
+
+    /** 一度の走査で書く変換（正規化しない。canonicalize の指定は使わない） */
+    @Benchmark
+    @OperationsPerInvocation(EXPRESSIONS)
+    public void compileSinglePass(Blackhole bh) {
+        for (String expr : expressions) {
+            bh.consume(ConditionExpressionCompiler.compile(expr));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+/** メモリ上の 1 セグメントに対する {@link ConditionExpressionQuery} の検索（マッチ件数の数え上げ） */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    static final String FIELD = "cond";
+
+    @Param({"100000"})
+    int docs;
+
+    @Param({"3"})
+    int depth;
+
+    @Param({"4"})
+    int fanout;
+
+    @Param({"1000"})
+    int vocabulary;
+
+    @Param({"1", "10", "100"})
+    int trueIds;
+
+    @Param({"BINARY", "SORTED"})
+    ConditionExpressionField.Storage storage;
+
+    Directory dir;
+    DirectoryReader reader;
+    IndexSearcher searcher;
+    ConditionExpressionQuery query;
+
+    @Setup
+    public void setUp() throws IOException {
+        ExpressionGenerator gen = new ExpressionGenerator(42, depth, fanout, vocabulary, 0.2);
+        dir = new ByteBuffersDirectory();
+        try (IndexWriter w = new IndexWriter(dir, new IndexWriterConfig())) {
+            for (int i = 0; i < docs; i++) {
+                Document doc = new Document();
+                ConditionExpressionField.luceneFields(FIELD, ConditionExpressionParser.compile(gen.next()), storage)
+                        .forEach(doc::add);
+                w.addDocument(doc);
+            }
+            w.forceMerge(1);
+        }
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+        query = new ConditionExpressionQuery(FIELD, new HashSet<>(gen.leafIds(trueIds)));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Benchmark
+    public int count() throws IOException {
+        return searcher.count(query);
+    }
+}
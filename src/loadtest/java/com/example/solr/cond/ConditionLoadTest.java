@@ -0,0 +1,329 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.Utils;
+import org.apache.solr.core.SolrCore;
+
+/**
+ * {@code {!cond}} の通しの負荷試験。テストと同じ schema.xml / solrconfig.xml の組み込みコアを立て、
+ * 合成した式（{@link SyntheticCorpus}）を途中でコミットしながら入れてから、
+ * 複数のスレッドで q / fq を混ぜたクエリを投げる。結果（QPS・レイテンシの分位点・GC・ヒープ）は JSON で出す。
+ * <p>
+ * 引数は {@code key=value}（{@code ./gradlew loadTest -PloadArgs="docs=200000 threads=16"}）:
+ * <ul>
+ *   <li>コーパス: {@code docs}, {@code commitEvery}, {@code depth}, {@code fanout}, {@code vocabulary},
+ *       {@code not}（NOT の割合）, {@code sharing}（部分式を使い回す割合）, {@code seed}</li>
+ *   <li>負荷: {@code threads}, {@code warmup}, {@code queries}, {@code trueIds}（真の葉 ID の数の候補、
+ *       カンマ区切り）, {@code fq}（fq で投げる割合）, {@code repeat}（直近の真の葉 ID を使い回す割合）,
+ *       {@code parser}, {@code field}, {@code updateEveryMs}（正なら負荷中もこの間隔で追加・コミットする）</li>
+ *   <li>{@code conf}: conf ディレクトリ, {@code out}: 結果の JSON</li>
+ * </ul>
+ */
+public final class ConditionLoadTest {
+    private static final String CORE = "collection1";
+    private static final int BATCH = 1000;
+    private static final int REPEAT_POOL = 64;
+
+    private final Map<String, String> args;
+    private final SyntheticCorpus corpus;
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private ConditionLoadTest(Map<String, String> args) {
+        this.args = args;
+        this.corpus = new SyntheticCorpus(num("seed", 42), num("depth", 3), num("fanout", 3),
+                num("vocabulary", 1000), dbl("not", 0.2), dbl("sharing", 0.5));
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = new LinkedHashMap<>();
+        for (String a : argv) {
+            int eq = a.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("expected key=value: " + a);
+            args.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        new ConditionLoadTest(args).run();
+        // 組み込みの Solr が残すスレッドを待たない
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        Path home = Files.createTempDirectory("cond-loadtest");
+        Path conf = Paths.get(args.getOrDefault("conf", "src/test/resources/solr/collection1/conf"));
+        copy(conf, home.resolve(CORE).resolve("conf"));
+        Files.writeString(home.resolve("solr.xml"), "<solr/>", StandardCharsets.UTF_8);
+        Files.writeString(home.resolve(CORE).resolve("core.properties"), "name=" + CORE + "\n",
+                StandardCharsets.UTF_8);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("config", new LinkedHashMap<>(args));
+        try (EmbeddedSolrServer server = new EmbeddedSolrServer(home, CORE)) {
+            result.put("indexing", index(server));
+            result.put("segments", segments(server));
+            workload(server, num("warmup", 2000), null);
+            result.put("queries", workload(server, num("queries", 20000), result));
+            result.put("segmentsAfter", segments(server));
+        } finally {
+            delete(home);
+        }
+
+        String json = Utils.toJSONString(result);
+        System.out.println(json);
+        String out = args.get("out");
+        if (out != null) {
+            Path path = Paths.get(out);
+            if (path.getParent() != null) Files.createDirectories(path.getParent());
+            Files.writeString(path, json, StandardCharsets.UTF_8);
+        }
+    }
+
+    // ---- インデックス ----
+
+    private Map<String, Object> index(SolrClient client) throws Exception {
+        int docs = num("docs", 100_000);
+        int commitEvery = num("commitEvery", 20_000);
+        long start = System.nanoTime();
+        for (int added = 0; added < docs; ) {
+            int n = Math.min(BATCH, docs - added);
+            addBatch(client, n);
+            added += n;
+            if (added % commitEvery < n || added == docs) client.commit(CORE);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("docs", docs);
+        out.put("seconds", seconds);
+        out.put("docsPerSecond", docs / seconds);
+        return out;
+    }
+
+    private void addBatch(SolrClient client, int n) throws Exception {
+        List<SolrInputDocument> batch = new ArrayList<>(n);
+        String field = args.getOrDefault("field", "cond_expr");
+        synchronized (corpus) {
+            for (int i = 0; i < n; i++) {
+                SolrInputDocument doc = new SolrInputDocument();
+                doc.addField("id", Integer.toString(nextId.getAndIncrement()));
+                doc.addField(field, corpus.expression());
+                batch.add(doc);
+            }
+        }
+        client.add(CORE, batch);
+    }
+
+    private int segments(EmbeddedSolrServer server) {
+        try (SolrCore core = server.getCoreContainer().getCore(CORE)) {
+            return core.withSearcher(searcher -> searcher.getIndexReader().leaves().size());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // ---- クエリ ----
+
+    /** {@code report} が null ならウォームアップとして投げるだけ */
+    private Map<String, Object> workload(SolrClient client, int queries, Map<String, Object> report)
+            throws Exception {
+        int threads = num("threads", 8);
+        int[] sizes = Arrays.stream(args.getOrDefault("trueIds", "1,10,100,1000").split(","))
+                .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+        double fqRatio = dbl("fq", 0.5);
+        double repeat = dbl("repeat", 0.5);
+        String parser = args.getOrDefault("parser", "cond");
+        String field = args.getOrDefault("field", "cond_expr");
+        List<String> recent = new ArrayList<>();
+        synchronized (corpus) {
+            for (int i = 0; i < REPEAT_POOL; i++) {
+                recent.add(String.join(",", corpus.trueIds(sizes[i % sizes.length])));
+            }
+        }
+
+        AtomicInteger remaining = new AtomicInteger(queries);
+        AtomicBoolean done = new AtomicBoolean();
+        long[][] latencies = new long[threads][];
+        long[] allocated = new long[threads];
+        long[] hits = new long[threads];
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+        Future<Integer> updater = null;
+        int updateEveryMs = num("updateEveryMs", 0);
+        if (report != null && updateEveryMs > 0) {
+            updater = pool.submit(() -> {
+                int commits = 0;
+                while (!done.get()) {
+                    Thread.sleep(updateEveryMs);
+                    addBatch(client, BATCH / 10);
+                    client.commit(CORE);
+                    commits++;
+                }
+                return commits;
+            });
+        }
+
+        GcSnapshot gcBefore = GcSnapshot.take();
+        MemoryPoolMXBean[] heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(p -> p.getType() == MemoryType.HEAP).toArray(MemoryPoolMXBean[]::new);
+        for (MemoryPoolMXBean p : heapPools) p.resetPeakUsage();
+        long start = System.nanoTime();
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers.add(pool.submit(() -> {
+                Random random = new Random(num("seed", 42) * 31L + thread);
+                long[] lat = new long[queries / threads + 1];
+                int n = 0;
+                long allocBefore = allocatedBytes();
+                while (remaining.getAndDecrement() > 0) {
+                    String ids = random.nextDouble() < repeat
+                            ? recent.get(random.nextInt(recent.size()))
+                            : String.join(",", trueIds(sizes[random.nextInt(sizes.length)]));
+                    String cond = "{!" + parser + " field=" + field + " true_ids=$cond.ids}";
+                    ModifiableSolrParams params = new ModifiableSolrParams();
+                    if (random.nextDouble() < fqRatio) {
+                        params.set("q", "*:*");
+                        params.set("fq", cond);
+                    } else {
+                        params.set("q", cond);
+                    }
+                    // "ids" は Solr が一意キーの指定として読むので使わない
+                    params.set("cond.ids", ids);
+                    params.set("rows", 10);
+                    params.set("fl", "id");
+                    long t0 = System.nanoTime();
+                    hits[thread] += client.query(CORE, params).getResults().getNumFound();
+                    if (n == lat.length) lat = Arrays.copyOf(lat, n * 2);
+                    lat[n++] = System.nanoTime() - t0;
+                }
+                allocated[thread] = allocatedBytes() - allocBefore;
+                latencies[thread] = Arrays.copyOf(lat, n);
+                return null;
+            }));
+        }
+        for (Future<?> f : workers) f.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        done.set(true);
+        int commits = updater == null ? 0 : updater.get();
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        if (report == null) return null;
+
+        GcSnapshot gc = GcSnapshot.take().minus(gcBefore);
+        long[] all = Stream.of(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("count", all.length);
+        out.put("seconds", seconds);
+        out.put("qps", all.length / seconds);
+        out.put("meanHits", (double) Arrays.stream(hits).sum() / Math.max(1, all.length));
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("p50", millis(all, 0.50));
+        latency.put("p99", millis(all, 0.99));
+        latency.put("p999", millis(all, 0.999));
+        latency.put("max", all.length == 0 ? 0.0 : all[all.length - 1] / 1e6);
+        out.put("latencyMs", latency);
+        out.put("commitsDuringLoad", commits);
+
+        Map<String, Object> gcOut = new LinkedHashMap<>();
+        gcOut.put("collections", gc.count);
+        gcOut.put("timeMs", gc.timeMs);
+        out.put("gc", gcOut);
+        Map<String, Object> heap = new LinkedHashMap<>();
+        long allocatedTotal = Arrays.stream(allocated).sum();
+        heap.put("allocatedBytesPerQuery", all.length == 0 ? 0 : allocatedTotal / all.length);
+        heap.put("peakUsedBytes", Arrays.stream(heapPools).mapToLong(p -> p.getPeakUsage().getUsed()).sum());
+        heap.put("usedBytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        heap.put("committedBytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted());
+        out.put("heap", heap);
+        return out;
+    }
+
+    private List<String> trueIds(int n) {
+        synchronized (corpus) {
+            return corpus.trueIds(n);
+        }
+    }
+
+    private static double millis(long[] sorted, double q) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(q * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+
+    /** このスレッドが割り当てたバイト数（測れない JVM では 0） */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads) {
+            return threads.getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    private record GcSnapshot(long count, long timeMs) {
+        static GcSnapshot take() {
+            long count = 0, time = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                time += Math.max(0, gc.getCollectionTime());
+            }
+            return new GcSnapshot(count, time);
+        }
+
+        GcSnapshot minus(GcSnapshot other) {
+            return new GcSnapshot(count - other.count, timeMs - other.timeMs);
+        }
+    }
+
+    // ---- 引数・ファイル ----
+
+    private int num(String key, int def) {
+        String v = args.get(key);
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    private double dbl(String key, double def) {
+        String v = args.get(key);
+        return v == null ? def : Double.parseDouble(v);
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        try (Stream<Path> files = Files.walk(from)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                Path target = to.resolve(from.relativize(p).toString());
+                if (Files.isDirectory(p)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(p, target);
+                }
+            }
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.solr.cond;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 負荷試験用の条件式と真の葉 ID を作る。
+ * 式は深さ {@code depth} まで AND / OR を交互に {@code fanout} 個ずつ入れ子にしたもので、
+ * 葉は {@code L0 .. L(vocabulary-1)} から選び、確率 {@code notRatio} で NOT を付ける。
+ * 部分式（深さ 1 以上）は確率 {@code sharing} で、それまでに作った同じ深さの部分式を使い回す。
+ */
+final class SyntheticCorpus {
+    private static final int POOL = 256;  // 深さごとに覚えておく部分式の数
+
+    private final Random random;
+    private final int depth;
+    private final int fanout;
+    private final int vocabulary;
+    private final double notRatio;
+    private final double sharing;
+    private final List<List<String>> pools = new ArrayList<>();
+
+    SyntheticCorpus(long seed, int depth, int fanout, int vocabulary, double notRatio, double sharing) {
+        this.random = new Random(seed);
+        this.depth = depth;
+        this.fanout = fanout;
+        this.vocabulary = vocabulary;
+        this.notRatio = notRatio;
+        this.sharing = sharing;
+        for (int d = 0; d <= depth; d++) pools.add(new ArrayList<>());
+    }
+
+    String expression() {
+        return node(depth, random.nextBoolean());
+    }
+
+    /** 語彙からランダムに選んだ {@code n} 個の葉 ID（重複を含みうる） */
+    List<String> trueIds(int n) {
+        List<String> ids = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) ids.add("L" + random.nextInt(vocabulary));
+        return ids;
+    }
+
+    private String node(int d, boolean and) {
+        if (d == 0) {
+            String leaf = "L" + random.nextInt(vocabulary);
+            return random.nextDouble() < notRatio ? "NOT " + leaf : leaf;
+        }
+        List<String> pool = pools.get(d);
+        if (!pool.isEmpty() && random.nextDouble() < sharing) return pool.get(random.nextInt(pool.size()));
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fanout; i++) {
+            if (i > 0) sb.append(and ? " AND " : " OR ");
+            sb.append(node(d - 1, !and));
+        }
+        String expr = sb.append(')').toString();
+        if (pool.size() < POOL) {
+            pool.add(expr);
+        } else {
+            pool.set(random.nextInt(POOL), expr);
+        }
+        return expr;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.solr.cond;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongBitSet;
+
+/**
+ * 真の葉 ID の集合のスナップショット（変更しない）。
+ * {@link ConditionExpressionQuery} が使うソート済みの集合と候補 term を前もって作っておくので、
+ * 同じ集合を参照するリクエストごとに ID を並べ直したり BytesRef を作ったりしない。
+ * ID のほかに、セグメントごとに葉辞書と突き合わせる ID のパターン（{@link LeafIdPatterns}）も持てる。
+ * <p>
+ * {@link #encode(Collection)} の形式（Base64URL）は ID をソートして前方一致を省いたもの:
+ * 個数、各 ID について（前の ID と共通の先頭バイト数・残りのバイト数・残りのバイト）をすべて VInt で書く。
+ */
+public final class ActivationSet {
+    private final String name;
+    private final long version;
+    private final SortedSet<String> ids;
+    private final LeafIdPatterns patterns;
+    // MATCH_WITHOUT_LEAVES と ID の term（ソート済み）
+    private final List<BytesRef> candidateTerms;
+    // ID とパターンのハッシュ。ID が数万あってもクエリやキャッシュのキーごとに計算し直さない
+    private final int hash;
+    // 登録済みの集合だけ: セグメントのコア → フィールド → 葉辞書の ordinal に直した ID とパターン。
+    // 版ごとに別のインスタンスなので (版, コア) ごとに覚えることになる。閉じたコアは GC で消える
+    private final Map<IndexReader.CacheKey, Map<String, LongBitSet>> ordsByCore;
+
+    private ActivationSet(String name, long version, TreeSet<String> ids, LeafIdPatterns patterns) {
+        this.name = name;
+        this.version = version;
+        this.ids = Collections.unmodifiableSortedSet(ids);
+        this.patterns = patterns;
+        List<BytesRef> terms = new ArrayList<>(ids.size() + 1);
+        // 目印の term は "\u0000" なので、英数字の葉 ID のどれよりも前に来る
+        terms.add(new BytesRef(ConditionExpressionField.MATCH_WITHOUT_LEAVES));
+        for (String id : ids) terms.add(new BytesRef(id));
+        this.candidateTerms = Collections.unmodifiableList(terms);
+        this.hash = Objects.hash(ids, patterns);
+        this.ordsByCore = name == null ? null : Collections.synchronizedMap(new WeakHashMap<>());
+    }
+
+    static ActivationSet of(String name, Collection<String> ids) {
+        return of(name, ids, LeafIdPatterns.NONE);
+    }
+
+    static ActivationSet of(String name, Collection<String> ids, LeafIdPatterns patterns) {
+        return new ActivationSet(name, 1, new TreeSet<>(ids), patterns);
+    }
+
+    /** ID を入れ替えた次の版 */
+    ActivationSet replace(Collection<String> ids) {
+        return new ActivationSet(name, version + 1, new TreeSet<>(ids), patterns);
+    }
+
+    /** ID を足し引きした次の版 */
+    ActivationSet apply(Collection<String> add, Collection<String> remove) {
+        TreeSet<String> next = new TreeSet<>(ids);
+        next.removeAll(remove);
+        next.addAll(add);
+        return new ActivationSet(name, version + 1, next, patterns);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public SortedSet<String> ids() {
+        return ids;
+    }
+
+    /** ID のほかに真にする葉のパターン。無ければ空 */
+    LeafIdPatterns patterns() {
+        return patterns;
+    }
+
+    List<BytesRef> candidateTerms() {
+        return candidateTerms;
+    }
+
+    /** {@link #ids()} と {@link #patterns()} のハッシュ（作るときに一度だけ計算する） */
+    int contentHash() {
+        return hash;
+    }
+
+    /**
+     * 葉辞書の ordinal に直した ID とパターン（{@link SegmentMatcher#resolveOrds}）。
+     * 登録済みの集合ではセグメントのコアとフィールドごとに覚えておくので、返したビット集合は書き換えないこと。
+     */
+    LongBitSet trueOrds(LeafReader reader, String field, SortedSetDocValues leafOrds) throws IOException {
+        IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+        if (ordsByCore == null || helper == null) return SegmentMatcher.resolveOrds(leafOrds, ids, patterns);
+        Map<String, LongBitSet> byField = ordsByCore.computeIfAbsent(helper.getKey(), k -> new ConcurrentHashMap<>());
+        LongBitSet ords = byField.get(field);
+        if (ords == null) {
+            LongBitSet resolved = SegmentMatcher.resolveOrds(leafOrds, ids, patterns);
+            ords = byField.putIfAbsent(field, resolved);
+            if (ords == null) ords = resolved;
+        }
+        return ords;
+    }
+
+    /** {@link #decode(String)} で読めるコンパクトな文字列にする */
+    public static String encode(Collection<String> ids) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TreeSet<String> sorted = new TreeSet<>(ids);
+        writeVInt(sorted.size(), out);
+        byte[] prev = new byte[0];
+        for (String id : sorted) {
+            byte[] b = id.getBytes(StandardCharsets.UTF_8);
+            int prefix = Arrays.mismatch(prev, b);
+            if (prefix < 0) prefix = b.length;
+            prefix = Math.min(prefix, Math.min(prev.length, b.length));
+            writeVInt(prefix, out);
+            writeVInt(b.length - prefix, out);
+            out.write(b, prefix, b.length - prefix);
+            prev = b;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(out.toByteArray());
+    }
+
+    /** {@link #encode(Collection)} の逆。形式が壊れていれば IllegalArgumentException */
+    public static SortedSet<String> decode(String encoded) {
+        byte[] in = Base64.getUrlDecoder().decode(encoded);
+        int[] pos = {0};
+        try {
+            int n = readVInt(in, pos);
+            TreeSet<String> ids = new TreeSet<>();
+            byte[] prev = new byte[0];
+            for (int i = 0; i < n; i++) {
+                int prefix = readVInt(in, pos);
+                int suffix = readVInt(in, pos);
+                byte[] b = Arrays.copyOf(prev, prefix + suffix);
+                System.arraycopy(in, pos[0], b, prefix, suffix);
+                pos[0] += suffix;
+                ids.add(new String(b, StandardCharsets.UTF_8));
+                prev = b;
+            }
+            return ids;
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("invalid encoded true ids", e);
+        }
+    }
+
+    private static void writeVInt(int i, ByteArrayOutputStream out) {
+        while ((i & ~0x7F) != 0) {
+            out.write((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        out.write(i);
+    }
+
+    private static int readVInt(byte[] in, int[] pos) {
+        byte b = in[pos[0]++];
+        int i = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = in[pos[0]++];
+            i |= (b & 0x7F) << shift;
+        }
+        return i;
+    }
+}
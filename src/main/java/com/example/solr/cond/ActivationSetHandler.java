@@ -0,0 +1,159 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.security.AuthorizationContext;
+
+/**
+ * 名前付きの真の葉 ID の集合（{@link ActivationSetRegistry}）を登録・更新するリクエストハンドラー。
+ * <pre>
+ * &lt;requestHandler name="/cond/sets" class="com.example.solr.cond.ActivationSetHandler"&gt;
+ *   &lt;str name="parser"&gt;cond&lt;/str&gt;
+ * &lt;/requestHandler&gt;
+ * </pre>
+ * パラメーター:
+ * <ul>
+ *   <li>{@code action}: {@code list}（既定）・{@code get}・{@code put}（置き換え）・
+ *       {@code add}・{@code remove}（差分）・{@code delete}</li>
+ *   <li>{@code name}: 集合の名前</li>
+ *   <li>{@code ids}: カンマ区切りの ID。{@code ids_bin} なら {@link ActivationSet#encode} の形式。
+ *       POST の本文（カンマ・空白・改行区切り）でも渡せる</li>
+ * </ul>
+ */
+public class ActivationSetHandler extends RequestHandlerBase {
+    private String parserName = "cond";
+
+    @Override
+    public void init(NamedList<?> args) {
+        super.init(args);
+        Object p = args == null ? null : args.get("parser");
+        if (p != null) parserName = p.toString();
+    }
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        ActivationSetRegistry registry = registry(req, parserName);
+        SolrParams params = req.getParams();
+        String action = params.get("action", "list");
+        if (action.equals("list")) {
+            NamedList<Object> sets = new SimpleOrderedMap<>();
+            for (String name : registry.names()) {
+                ActivationSet set = registry.get(name);
+                if (set != null) sets.add(name, describe(set));
+            }
+            rsp.add("sets", sets);
+            return;
+        }
+        String name = params.get("name");
+        if (name == null) throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "missing param: name");
+        ActivationSet set;
+        switch (action) {
+            case "get":
+                set = registry.get(name);
+                if (set == null) throw new SolrException(SolrException.ErrorCode.NOT_FOUND, "unknown set: " + name);
+                NamedList<Object> out = describe(set);
+                out.add("ids", new ArrayList<>(set.ids()));
+                rsp.add("set", out);
+                return;
+            case "put":
+                set = registry.put(name, ids(req));
+                break;
+            case "add":
+                set = registry.update(name, ids(req), List.of());
+                break;
+            case "remove":
+                set = registry.update(name, List.of(), ids(req));
+                break;
+            case "delete":
+                set = registry.remove(name);
+                if (set == null) throw new SolrException(SolrException.ErrorCode.NOT_FOUND, "unknown set: " + name);
+                break;
+            default:
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unknown action: " + action);
+        }
+        rsp.add("set", describe(set));
+    }
+
+    /** {@code parserName} のクエリパーサーが持つ集合 */
+    static ActivationSetRegistry registry(SolrQueryRequest req, String parserName) {
+        QParserPlugin plugin = req.getCore().getQueryPlugin(parserName);
+        if (!(plugin instanceof ConditionExpressionQParserPlugin cond)) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    "query parser is not a ConditionExpressionQParserPlugin: " + parserName);
+        }
+        return cond.getActivationSets();
+    }
+
+    private static NamedList<Object> describe(ActivationSet set) {
+        NamedList<Object> out = new SimpleOrderedMap<>();
+        out.add("name", set.name());
+        out.add("version", set.version());
+        out.add("size", set.ids().size());
+        return out;
+    }
+
+    /** ids・ids_bin・本文の ID をすべて集める */
+    @SuppressWarnings("deprecation")  // ContentStream の代わりが無い
+    private static Collection<String> ids(SolrQueryRequest req) throws IOException {
+        List<String> ids = new ArrayList<>();
+        String csv = req.getParams().get("ids");
+        if (csv != null) split(csv, ids);
+        String encoded = req.getParams().get("ids_bin");
+        if (encoded != null) {
+            try {
+                ids.addAll(ActivationSet.decode(encoded));
+            } catch (IllegalArgumentException e) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage(), e);
+            }
+        }
+        Iterable<ContentStream> streams = req.getContentStreams();
+        if (streams != null) {
+            for (ContentStream stream : streams) {
+                try (Reader reader = stream.getReader()) {
+                    StringBuilder sb = new StringBuilder();
+                    char[] buf = new char[8192];
+                    for (int n; (n = reader.read(buf)) > 0; ) sb.append(buf, 0, n);
+                    split(sb, ids);
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static void split(CharSequence s, List<String> out) {
+        int start = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            boolean sep = i == s.length() || s.charAt(i) == ',' || Character.isWhitespace(s.charAt(i));
+            if (!sep && start < 0) {
+                start = i;
+            } else if (sep && start >= 0) {
+                out.add(s.subSequence(start, i).toString());
+                start = -1;
+            }
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "Named true-id sets for {!cond}";
+    }
+
+    @Override
+    public Name getPermissionName(AuthorizationContext context) {
+        String action = context.getParams().get("action", "list");
+        return action.equals("list") || action.equals("get") ? Name.READ_PERM : Name.UPDATE_PERM;
+    }
+}
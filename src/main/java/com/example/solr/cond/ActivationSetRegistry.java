@@ -0,0 +1,44 @@
+package com.example.solr.cond;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 名前付きの真の葉 ID の集合。{@link ConditionExpressionQParserPlugin} ごとに一つあり、
+ * {@code {!cond field=... set=name}} で参照する。更新はスナップショットの差し替えなので、
+ * 実行中のクエリは作ったときの版を使い続ける。メモリ上だけに持ち、コアの再読み込みで消える。
+ */
+public final class ActivationSetRegistry {
+    private final Map<String, ActivationSet> sets = new ConcurrentHashMap<>();
+
+    /** 無ければ null */
+    public ActivationSet get(String name) {
+        return sets.get(name);
+    }
+
+    /** 集合を置き換える（無ければ作る） */
+    public ActivationSet put(String name, Collection<String> ids) {
+        return sets.compute(name, (n, old) -> old == null
+                ? ActivationSet.of(n, ids)
+                : old.replace(ids));
+    }
+
+    /** ID を足し引きする（無ければ空の集合から作る） */
+    public ActivationSet update(String name, Collection<String> add, Collection<String> remove) {
+        return sets.compute(name, (n, old) -> old == null
+                ? ActivationSet.of(n, add)
+                : old.apply(add, remove));
+    }
+
+    /** 消した集合。無ければ null */
+    public ActivationSet remove(String name) {
+        return sets.remove(name);
+    }
+
+    public SortedSet<String> names() {
+        return new TreeSet<>(sets.keySet());
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.solr.cond;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * 条件式 1 件分のインデックス用データ。
+ * DocValues に入れるバイト列と、葉辞書・ポスティングに入れる葉 ID をまとめて持つ。
+ */
+public final class CompiledExpression {
+    final byte[] bytes;
+    final List<BytesRef> leaves;          // 重複なし・UTF-8 バイト順
+    final boolean matchesWithoutLeaves;   // 葉がすべて偽でも真になるか
+
+    CompiledExpression(byte[] bytes, List<BytesRef> leaves, boolean matchesWithoutLeaves) {
+        this.bytes = bytes;
+        this.leaves = leaves;
+        this.matchesWithoutLeaves = matchesWithoutLeaves;
+    }
+
+    public byte[] bytes() { return bytes; }
+
+    /**
+     * 葉 ID の表を先頭に付けた、それだけで評価できるバイト列。
+     * 形式は 葉の数・（長さ・UTF-8）× 葉の数・{@link #bytes()} で、すべて vInt。
+     */
+    public byte[] bytesWithLeafTable() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVInt(leaves.size(), out);
+        for (BytesRef leaf : leaves) {
+            writeVInt(leaf.length, out);
+            out.write(leaf.bytes, leaf.offset, leaf.length);
+        }
+        out.writeBytes(bytes);
+        return out.toByteArray();
+    }
+
+    private static void writeVInt(int i, ByteArrayOutputStream out) {
+        while ((i & ~0x7F) != 0) {
+            out.write((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        out.write(i);
+    }
+
+    public List<BytesRef> leaves() { return leaves; }
+
+    public boolean matchesWithoutLeaves() { return matchesWithoutLeaves; }
+}
@@ -0,0 +1,46 @@
+package com.example.solr.cond;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 式の文字列 → {@link CompiledExpression} の上限付きキャッシュ。更新のスレッド間で共有する。
+ * 同じ式が続くインデックスでは、2 回目以降は変換せずにハッシュを引くだけで済む。
+ * 上限に達したら任意の 1/8 を捨てる（厳密な LRU にはしない）。
+ */
+final class CompiledExpressionCache {
+    private final int maxSize;
+    private final Map<String, CompiledExpression> map;
+
+    /** {@code maxSize} が 0 なら何も覚えない */
+    CompiledExpressionCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<>();
+    }
+
+    /** 変換に失敗したときの例外（IllegalArgumentException）はそのまま投げ、何も覚えない */
+    CompiledExpression get(String expr, Function<String, CompiledExpression> compiler) {
+        if (maxSize <= 0) return compiler.apply(expr);
+        CompiledExpression compiled = map.get(expr);
+        if (compiled != null) return compiled;
+        compiled = compiler.apply(expr);
+        if (map.size() >= maxSize) evict();
+        map.put(expr, compiled);
+        return compiled;
+    }
+
+    private void evict() {
+        int remove = Math.max(1, maxSize / 8);
+        Iterator<String> it = map.keySet().iterator();
+        while (remove-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,436 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongBitSet;
+
+/**
+ * 1 セグメントの条件式すべてをまとめた、共有・既約の順序付き二分決定図（ROBDD）。
+ * 変数は葉辞書（{@link ConditionExpressionField#leafDictField(String)}）の ordinal で、
+ * ordinal の昇順に並べる。同じ部分式は同じノードになるので、検索時に各ノードを
+ * クエリごとに高々一度だけ評価すれば、多くの文書に共通する節の評価も一度で済む。
+ * <p>
+ * フラッシュやマージには手を入れず、セグメントのコアごとに最初の検索で一度だけ作り、コアが閉じるか
+ * 上限（{@link #MAX_ENTRIES}）を超えて捨てられるまで持つ。
+ * ノード数が上限を超えるセグメントと、葉 ID を文字列で書いた古い形式の式が混ざったセグメントでは
+ * 作らず（{@link #get} が null）、式を文書ごとに評価する。
+ */
+final class ConditionBdd {
+    static final int FALSE = 0;
+    static final int TRUE = 1;
+    private static final int NO_VALUE = -1;
+
+    // (コア, フィールド, 上限) → BDD。作れなかったセグメントは TOO_LARGE を覚えて作り直さない（古い形式の混在も同じ扱い）。
+    // MAX_ENTRIES を超えたら任意の 1/8 を捨てる（CompiledExpressionCache と同じ）
+    static final int MAX_ENTRIES = 256;
+    private static final Map<Key, ConditionBdd> CACHE = new ConcurrentHashMap<>();
+    // 閉じたときに CACHE から消すリスナーを登録済みのコア
+    private static final Set<IndexReader.CacheKey> LISTENING = ConcurrentHashMap.newKeySet();
+    private static final ConditionBdd TOO_LARGE = new ConditionBdd(new int[0], new int[0], new int[0], 0, new int[0]);
+
+    private final int[] var;       // 終端ノード（0, 1）は Integer.MAX_VALUE
+    private final int[] lo;        // 変数が偽のときの行き先
+    private final int[] hi;        // 変数が真のときの行き先
+    private final int size;
+    private final int[] docRoots;  // 文書ごとの根。式の無い文書は NO_VALUE
+
+    private record Key(IndexReader.CacheKey core, String field, int maxNodes) {}
+
+    private ConditionBdd(int[] var, int[] lo, int[] hi, int size, int[] docRoots) {
+        this.var = var;
+        this.lo = lo;
+        this.hi = hi;
+        this.size = size;
+        this.docRoots = docRoots;
+    }
+
+    /**
+     * セグメントの BDD。葉辞書が無い・古い形式の式がある・ノード数が {@code maxNodes} を超える・
+     * コアのキャッシュが使えない場合は null
+     */
+    static ConditionBdd get(LeafReader reader, String field, int maxNodes) throws IOException {
+        IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+        if (maxNodes <= 0 || helper == null) return null;
+        Key key = new Key(helper.getKey(), field, maxNodes);
+        ConditionBdd bdd = CACHE.get(key);
+        if (bdd == null) {
+            if (CACHE.size() >= MAX_ENTRIES) evict();
+            if (LISTENING.add(key.core())) {
+                helper.addClosedListener(core -> {
+                    CACHE.keySet().removeIf(k -> k.core() == core);
+                    LISTENING.remove(core);
+                });
+            }
+            // 同じセグメントを同時に検索しても作るのは一度だけ
+            try {
+                bdd = CACHE.computeIfAbsent(key, k -> {
+                    try {
+                        ConditionBdd built = build(reader, field, maxNodes);
+                        return built == null ? TOO_LARGE : built;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return bdd == TOO_LARGE ? null : bdd;
+    }
+
+    private static void evict() {
+        int remove = Math.max(1, MAX_ENTRIES / 8);
+        Iterator<Key> it = CACHE.keySet().iterator();
+        while (remove-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** 覚えている BDD（作れなかったセグメントの分も含む）の数 */
+    static int cacheSize() {
+        return CACHE.size();
+    }
+
+    /** ノード数（終端の 2 つを含む） */
+    int size() {
+        return size;
+    }
+
+    /** 真の葉の ordinal による 1 クエリ分の評価。スレッド間で共有しないこと */
+    Evaluation evaluation(LongBitSet trueOrds) {
+        return new Evaluation(trueOrds, new byte[size]);
+    }
+
+    final class Evaluation {
+        private final LongBitSet trueOrds;
+        // 0: 未評価, 1: 偽, 2: 真。fork() した評価と共有する。どのスレッドが書いても 0 から同じ値に変わるだけなので、
+        // 他のスレッドの書き込みが見えなくても評価し直すだけで結果は変わらない
+        private final byte[] memo;
+        private int[] path = new int[16];
+        private long visitedNodes;
+
+        private Evaluation(LongBitSet trueOrds, byte[] memo) {
+            this.trueOrds = trueOrds;
+            this.memo = memo;
+        }
+
+        /** 評価済みのノードを共有する、別のスレッド用の評価（並列評価の区切りごと） */
+        Evaluation fork() {
+            return new Evaluation(trueOrds, memo);
+        }
+
+        /** 式の無い文書は偽 */
+        boolean matches(int doc) {
+            int node = docRoots[doc];
+            if (node == NO_VALUE) return false;
+            // 根から終端か評価済みのノードまで辿り、通ったノードすべてに結果を覚える
+            int depth = 0;
+            while (node > TRUE && memo[node] == 0) {
+                if (depth == path.length) path = Arrays.copyOf(path, depth * 2);
+                path[depth++] = node;
+                node = trueOrds.get(var[node]) ? hi[node] : lo[node];
+            }
+            visitedNodes += depth;
+            boolean result = node == TRUE || (node > TRUE && memo[node] == 2);
+            byte b = (byte) (result ? 2 : 1);
+            for (int i = 0; i < depth; i++) memo[path[i]] = b;
+            return result;
+        }
+
+        /** 新たに評価したノードの数 */
+        long visitedNodes() {
+            return visitedNodes;
+        }
+    }
+
+    // ---- 構築 ----
+
+    private static ConditionBdd build(LeafReader reader, String field, int maxNodes) throws IOException {
+        FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+        FieldInfo dictInfo = reader.getFieldInfos().fieldInfo(ConditionExpressionField.leafDictField(field));
+        if (info == null || dictInfo == null || dictInfo.getDocValuesType() != DocValuesType.SORTED_SET) {
+            return null;
+        }
+        SortedSetDocValues leafOrds = DocValues.getSortedSet(reader, dictInfo.name);
+        int[] docRoots = new int[reader.maxDoc()];
+        Arrays.fill(docRoots, NO_VALUE);
+        Builder builder = new Builder(maxNodes);
+        try {
+            if (info.getDocValuesType() == DocValuesType.BINARY) {
+                // 同じバイト列でも文書ごとに葉の ordinal が違うので、バイト列と ordinal の組で重複を省く
+                BinaryDocValues dv = DocValues.getBinary(reader, field);
+                Map<BytesRef, Integer> roots = new HashMap<>();
+                long[] ords = new long[16];
+                for (int d = dv.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = dv.nextDoc()) {
+                    int count = leafOrds.advanceExact(d) ? leafOrds.docValueCount() : 0;
+                    if (ords.length < count) ords = new long[count];
+                    for (int i = 0; i < count; i++) ords[i] = leafOrds.nextOrd();
+                    BytesRef expr = dv.binaryValue();
+                    // 古い形式の文書は葉辞書に載っておらず、ordinal の変数で表せない
+                    if (ConditionEvaluator.isLegacy(expr)) return null;
+                    BytesRef key = new BytesRef(expr.length + 8 * count);
+                    System.arraycopy(expr.bytes, expr.offset, key.bytes, 0, expr.length);
+                    for (int i = 0; i < count; i++) {
+                        for (int b = 0; b < 8; b++) key.bytes[expr.length + 8 * i + b] = (byte) (ords[i] >>> (8 * b));
+                    }
+                    key.length = key.bytes.length;
+                    Integer root = roots.get(key);
+                    if (root == null) {
+                        root = builder.tree(expr, Arrays.copyOf(ords, count));
+                        roots.put(key, root);
+                    }
+                    docRoots[d] = root;
+                }
+            } else if (info.getDocValuesType() == DocValuesType.SORTED) {
+                SortedDocValues dv = DocValues.getSorted(reader, field);
+                int[] ordRoots = new int[dv.getValueCount()];
+                Arrays.fill(ordRoots, NO_VALUE);
+                for (int d = dv.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = dv.nextDoc()) {
+                    int ord = dv.ordValue();
+                    if (ordRoots[ord] == NO_VALUE) ordRoots[ord] = builder.withLeafTable(dv.lookupOrd(ord), leafOrds);
+                    docRoots[d] = ordRoots[ord];
+                }
+            } else {
+                return null;
+            }
+        } catch (TooLargeException e) {
+            return null;
+        }
+        return new ConditionBdd(builder.var, builder.lo, builder.hi, builder.size, docRoots);
+    }
+
+    private static final class TooLargeException extends RuntimeException {
+        TooLargeException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * 式のバイト列（{@link ConditionEvaluator#FORMAT_V2} で始まる木）を読んで BDD のノードを作る。
+     * ノードは (var, lo, hi) の一意表で共有し、AND / OR / NOT の結果も覚えておく。
+     */
+    private static final class Builder {
+        private static final int AND = 0;
+        private static final int OR = 1;
+
+        private final int maxNodes;
+        private int[] var = new int[64];
+        private int[] lo = new int[64];
+        private int[] hi = new int[64];
+        private int size = 2;
+        private int[] table = new int[128];  // 一意表（開番地法）。0 は空き
+        private final List<Map<Long, Integer>> computed = List.of(new HashMap<>(), new HashMap<>());
+        private final Map<Integer, Integer> negated = new HashMap<>();
+
+        // 読んでいる式
+        private byte[] bytes;
+        private int pos;
+        private long[] ords;  // ローカル番号 → 葉辞書の ordinal（無い葉は -1）
+
+        Builder(int maxNodes) {
+            this.maxNodes = maxNodes;
+            // 終端は変数の並びの最後に置く
+            var[FALSE] = var[TRUE] = Integer.MAX_VALUE;
+        }
+
+        /** 葉をローカル番号で書いた式。{@code ords[i]} は番号 i の葉の ordinal */
+        int tree(BytesRef ref, long[] ords) {
+            this.bytes = ref.bytes;
+            this.pos = ref.offset;
+            this.ords = ords;
+            return root();
+        }
+
+        /** {@link CompiledExpression#bytesWithLeafTable()} の形式の式 */
+        int withLeafTable(BytesRef ref, SortedSetDocValues leafOrds) throws IOException {
+            this.bytes = ref.bytes;
+            this.pos = ref.offset;
+            int n = readVInt();
+            long[] tableOrds = new long[n];
+            BytesRef id = new BytesRef();
+            id.bytes = bytes;
+            for (int i = 0; i < n; i++) {
+                id.length = readVInt();
+                id.offset = pos;
+                pos += id.length;
+                tableOrds[i] = leafOrds.lookupTerm(id);
+            }
+            this.ords = tableOrds;
+            return root();
+        }
+
+        private int root() {
+            if (bytes[pos++] != ConditionEvaluator.FORMAT_V2) {
+                throw new IllegalStateException("expression without format header (legacy format)");
+            }
+            return node();
+        }
+
+        private int node() {
+            byte type = bytes[pos++];
+            if (type < 0) return leaf(type & 0x7F);  // 版 2 の短い葉
+            switch (type) {
+                case 0:
+                    return leaf(readVInt());
+                case 1: { // AND
+                    int n = readVInt();
+                    readVInt();
+                    int result = TRUE;
+                    for (int i = 0; i < n; i++) result = apply(AND, result, node());
+                    return result;
+                }
+                case 2: { // OR
+                    int n = readVInt();
+                    readVInt();
+                    int result = FALSE;
+                    for (int i = 0; i < n; i++) result = apply(OR, result, node());
+                    return result;
+                }
+                case 3:
+                    return not(node());
+                case 4:
+                    return TRUE;
+                case 5:
+                    return FALSE;
+                case 6: { // AT LEAST
+                    int k = readVInt();
+                    int n = readVInt();
+                    readVInt();
+                    int[] children = new int[n];
+                    for (int i = 0; i < n; i++) children[i] = node();
+                    return atLeast(k, children, 0, new HashMap<>());
+                }
+                default:
+                    throw new IllegalStateException("unknown node type: " + type);
+            }
+        }
+
+        private int leaf(int local) {
+            long ord = ords[local];
+            if (ord < 0) return FALSE;  // 葉辞書に無い葉はどのクエリでも偽
+            if (ord > Integer.MAX_VALUE) throw new TooLargeException();
+            return mk((int) ord, FALSE, TRUE);
+        }
+
+        /** children[i..] のうち k 個以上が真 */
+        private int atLeast(int k, int[] children, int i, Map<Long, Integer> memo) {
+            if (k <= 0) return TRUE;
+            if (children.length - i < k) return FALSE;
+            long key = ((long) k << 32) | i;
+            Integer cached = memo.get(key);
+            if (cached != null) return cached;
+            int c = children[i];
+            int result = apply(OR,
+                    apply(AND, c, atLeast(k - 1, children, i + 1, memo)),
+                    apply(AND, not(c), atLeast(k, children, i + 1, memo)));
+            memo.put(key, result);
+            return result;
+        }
+
+        private int apply(int op, int a, int b) {
+            if (op == AND) {
+                if (a == FALSE || b == FALSE) return FALSE;
+                if (a == TRUE) return b;
+                if (b == TRUE || a == b) return a;
+            } else {
+                if (a == TRUE || b == TRUE) return TRUE;
+                if (a == FALSE) return b;
+                if (b == FALSE || a == b) return a;
+            }
+            if (a > b) {  // AND / OR は可換なので順を揃えて結果を共有する
+                int t = a;
+                a = b;
+                b = t;
+            }
+            long key = ((long) a << 32) | b;
+            if (computed.get(op).size() > 4 * maxNodes) computed.get(op).clear();  // 覚えるのは再計算を省くためだけ
+            Integer cached = computed.get(op).get(key);
+            if (cached != null) return cached;
+            int v = Math.min(var[a], var[b]);
+            int aLo = var[a] == v ? lo[a] : a, aHi = var[a] == v ? hi[a] : a;
+            int bLo = var[b] == v ? lo[b] : b, bHi = var[b] == v ? hi[b] : b;
+            int result = mk(v, apply(op, aLo, bLo), apply(op, aHi, bHi));
+            computed.get(op).put(key, result);
+            return result;
+        }
+
+        private int not(int a) {
+            if (a == FALSE) return TRUE;
+            if (a == TRUE) return FALSE;
+            if (negated.size() > maxNodes) negated.clear();
+            Integer cached = negated.get(a);
+            if (cached != null) return cached;
+            int result = mk(var[a], not(lo[a]), not(hi[a]));
+            negated.put(a, result);
+            return result;
+        }
+
+        /** (v, l, h) のノード。l == h なら作らずに l を返す */
+        private int mk(int v, int l, int h) {
+            if (l == h) return l;
+            int mask = table.length - 1;
+            int slot = hash(v, l, h) & mask;
+            for (int n; (n = table[slot]) != 0; slot = (slot + 1) & mask) {
+                if (var[n] == v && lo[n] == l && hi[n] == h) return n;
+            }
+            if (size >= maxNodes) throw new TooLargeException();
+            if (size == var.length) {
+                var = Arrays.copyOf(var, size * 2);
+                lo = Arrays.copyOf(lo, size * 2);
+                hi = Arrays.copyOf(hi, size * 2);
+            }
+            int n = size++;
+            var[n] = v;
+            lo[n] = l;
+            hi[n] = h;
+            table[slot] = n;
+            if (size * 2 > table.length) rehash();
+            return n;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int n = 2; n < size; n++) {
+                int slot = hash(var[n], lo[n], hi[n]) & mask;
+                while (table[slot] != 0) slot = (slot + 1) & mask;
+                table[slot] = n;
+            }
+        }
+
+        private static int hash(int v, int l, int h) {
+            int x = Objects.hash(v, l, h);
+            return x ^ (x >>> 16);
+        }
+
+        private int readVInt() {
+            byte b = bytes[pos++];
+            int i = b & 0x7F;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = bytes[pos++];
+                i |= (b & 0x7F) << shift;
+            }
+            return i;
+        }
+    }
+}
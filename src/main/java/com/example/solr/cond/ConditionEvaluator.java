@@ -5,11 +5,666 @@ import org.apache.lucene.util.BytesRef;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
 
+/**
+ * 条件式のバイト列を評価する。
+ * インスタンスは評価中の位置だけを持つので、使い回せば文書ごとの割り当ては発生しない。
+ * AND / OR / AT LEAST は子の合計バイト長を持っているので、結果が決まった時点で残りの子を読み飛ばす。
+ * AT LEAST は真の子を数え、k に達したか、残りの子がすべて真でも届かなくなった時点で決まる。
+ * <p>
+ * スコアは真にした葉の重みから決める: 葉は重み、AND と AT LEAST は（真の）子の和、OR は真の子の最大、
+ * NOT と TRUE は 0。
+ * 偽なら {@link #NO_MATCH}。同じ葉が AND の複数の子に現れる式もあるので、
+ * スコアは式の真の葉の重みの和で頭打ちにする（Scorer の上限はこの和から求める）。
+ * <p>
+ * 木は必ず {@link #FORMAT_V2} で始まる（子の数は VInt。番号が 128 未満の葉は {@code 0x80 | 番号} の 1 バイト）。
+ * 先頭がそれ以外の値は葉 ID を文字列で書いた古い形式（{@link #isLegacy}）で、このインスタンスでは読めない。
+ * マージはバイト列をそのまま写すので、古い形式の文書は新しい文書と同じセグメントにも混ざる。
+ * 呼び出し側が文書ごとに見分けて {@link #evaluate(BytesRef, Set)} に回すこと。
+ * <p>
+ * {@link #leavesFirst} を指定すると、AND / OR の子のうち葉（と定数）を先に評価し、
+ * 結果が決まらなければ残りの子を評価する（真偽の評価だけ。スコアの評価は書かれた順）。
+ */
 public class ConditionEvaluator {
+    /** 木の先頭バイト（{@code 0xF0 | 版}）。古い形式の式はノードの型 0〜5 で始まるので重ならない */
+    static final byte FORMAT_V2 = (byte) 0xF2;
+    /** 版 2 で 1 バイトに収まる葉の番号の上限（この値未満） */
+    static final int SHORT_LEAF_LIMIT = 0x80;
 
+    private byte[] bytes;
+    private int pos;
+    private long[] localTrue;
+    private long[] tableTrue = new long[1];
+    private float[] localWeights;
+    private float[] tableWeights = new float[1];
+    private final BytesRef leafId = new BytesRef();
+    private long[] localMasks;
+    private long[] tableMasks = new long[1];
+    private long allScenarios;
+    // シナリオの評価: AT LEAST の「真の子が j 個以上のシナリオ」（k + 1 個の long）をスタックに積む
+    private long[] atLeastMasks = new long[16];
+    private int atLeastTop;
+    private long visitedNodes;  // 統計用
+    private boolean leavesFirstInAnd;
+    private boolean leavesFirstInOr;
+    // 感度の評価: ノードごとの葉の集合（sensWords 個の long）と AT LEAST の葉ごとの増減をスタックに積む
+    private long[] sens = new long[16];
+    private int sensTop;
+    private int sensWords;
+    private int[] deltas = new int[16];
+    private int deltaTop;
+    private int sensLeaves;
+    private int[] tableOffsets = new int[1];
+    private int[] tableLengths = new int[1];
+
+    /** 葉 ID → 真偽。葉テーブル付きの式を評価するときに使う */
+    public interface LeafTruth {
+        boolean isTrue(BytesRef id) throws IOException;
+    }
+
+    /** 葉 ID → 重み。偽の葉には負の値を返す */
+    public interface LeafWeight {
+        float weight(BytesRef id) throws IOException;
+    }
+
+    /** 葉 ID → その葉を真にするシナリオのビットマスク */
+    public interface LeafMask {
+        long mask(BytesRef id) throws IOException;
+    }
+
+    /** 式が偽のときのスコア */
+    public static final float NO_MATCH = -1f;
+
+    /**
+     * 葉をローカル番号で書いた式を評価する。
+     * {@code localTrue} は番号 i の葉が真なら i ビット目が立ったビット列。
+     */
+    public boolean matches(BytesRef ref, long[] localTrue) {
+        this.bytes = ref.bytes;
+        this.pos = ref.offset;
+        this.localTrue = localTrue;
+        readHeader();
+        return evalNode();
+    }
+
+    /**
+     * {@link CompiledExpression#bytesWithLeafTable()} の形式の式を評価する。
+     * 葉テーブルの各 ID の真偽を {@code truth} に問い合わせてから木を評価する。
+     */
+    public boolean matchesWithLeafTable(BytesRef ref, LeafTruth truth) throws IOException {
+        this.bytes = ref.bytes;
+        this.pos = ref.offset;
+        int n = readVInt();
+        int words = (n + 63) >>> 6;
+        if (tableTrue.length < words) tableTrue = new long[words];
+        for (int i = 0; i < words; i++) tableTrue[i] = 0L;
+        leafId.bytes = bytes;
+        for (int i = 0; i < n; i++) {
+            leafId.length = readVInt();
+            leafId.offset = pos;
+            pos += leafId.length;
+            if (truth.isTrue(leafId)) tableTrue[i >>> 6] |= 1L << i;
+        }
+        this.localTrue = tableTrue;
+        readHeader();
+        return evalNode();
+    }
+
+    /**
+     * 葉をローカル番号で書いた式のスコア。偽なら {@link #NO_MATCH}。
+     * {@code localWeights[i]} は番号 i の葉が真のときの重み（偽の葉の値は見ない）。
+     * {@code trueWeightSum} は真の葉の重みの和で、スコアの上限になる。
+     */
+    public float score(BytesRef ref, long[] localTrue, float[] localWeights, float trueWeightSum) {
+        this.bytes = ref.bytes;
+        this.pos = ref.offset;
+        this.localTrue = localTrue;
+        this.localWeights = localWeights;
+        readHeader();
+        float score = scoreNode();
+        return score < 0 ? NO_MATCH : Math.min(score, trueWeightSum);
+    }
+
+    /** {@link CompiledExpression#bytesWithLeafTable()} の形式の式のスコア。偽なら {@link #NO_MATCH} */
+    public float scoreWithLeafTable(BytesRef ref, LeafWeight weights) throws IOException {
+        this.bytes = ref.bytes;
+        this.pos = ref.offset;
+        int n = readVInt();
+        int words = (n + 63) >>> 6;
+        if (tableTrue.length < words) tableTrue = new long[words];
+        if (tableWeights.length < n) tableWeights = new float[n];
+        for (int i = 0; i < words; i++) tableTrue[i] = 0L;
+        leafId.bytes = bytes;
+        float trueWeightSum = 0f;
+        for (int i = 0; i < n; i++) {
+            leafId.length = readVInt();
+            leafId.offset = pos;
+            pos += leafId.length;
+            float w = weights.weight(leafId);
+            if (w >= 0) {
+                tableTrue[i >>> 6] |= 1L << i;
+                tableWeights[i] = w;
+                trueWeightSum += w;
+            }
+        }
+        this.localTrue = tableTrue;
+        this.localWeights = tableWeights;
+        readHeader();
+        float score = scoreNode();
+        return score < 0 ? NO_MATCH : Math.min(score, trueWeightSum);
+    }
+
+    /**
+     * 最大 64 のシナリオについて一度に評価する。{@code localMasks[i]} は番号 i の葉を真にする
+     * シナリオのビットマスク、{@code all} は対象のシナリオすべてのビット。戻り値は式が真になるシナリオ。
+     */
+    public long matchesMask(BytesRef ref, long[] localMasks, long all) {
+        this.bytes = ref.bytes;
+        this.pos = ref.offset;
+        this.localMasks = localMasks;
+        this.allScenarios = all;
+        atLeastTop = 0;
+        readHeader();
+        return maskNode();
+    }
+
+    /** {@link #matchesMask} の {@link CompiledExpression#bytesWithLeafTable()} 版 */
+    public long matchesMaskWithLeafTable(BytesRef ref, LeafMask masks, long all) throws IOException {
+        this.bytes = ref.bytes;
+        this.pos = ref.offset;
+        int n = readVInt();
+        if (tableMasks.length < n) tableMasks = new long[n];
+        leafId.bytes = bytes;
+        for (int i = 0; i < n; i++) {
+            leafId.length = readVInt();
+            leafId.offset = pos;
+            pos += leafId.length;
+            tableMasks[i] = masks.mask(leafId);
+        }
+        this.localMasks = tableMasks;
+        this.allScenarios = all;
+        atLeastTop = 0;
+        readHeader();
+        return maskNode();
+    }
+
+    /**
+     * AND / OR の子の評価順。葉が偽になりやすければ AND で、真になりやすければ OR で葉を先に評価すると、
+     * 式を深く辿る前に結果が決まりやすい。結果は変わらない。
+     */
+    public void leavesFirst(boolean inAnd, boolean inOr) {
+        this.leavesFirstInAnd = inAnd;
+        this.leavesFirstInOr = inOr;
+    }
+
+    /**
+     * 式の値と、偽の葉のうち一つだけを真にすると式の値が変わる葉（感度）を一度の走査で求める。
+     * {@code flips} には該当する番号 i の葉の i ビット目を立てる（長さは {@code (leafCount + 63) / 64} 以上）。
+     * 結果が決まっても子は読み飛ばさない。
+     * <p>
+     * AND は、偽の子が無ければ子の感度の和集合、あれば偽の子の感度の共通部分から真の子の感度を除いたもの
+     * （OR はその真偽を入れ替えたもの）。AT LEAST は葉ごとに真になる子と偽になる子の数を数える。
+     */
+    public boolean sensitivity(BytesRef ref, long[] localTrue, int leafCount, long[] flips) {
+        this.bytes = ref.bytes;
+        this.pos = ref.offset;
+        this.localTrue = localTrue;
+        readHeader();
+        return sensitivityRoot(leafCount, flips);
+    }
+
+    /**
+     * {@link #sensitivity} の {@link CompiledExpression#bytesWithLeafTable()} 版。
+     * 感度のある葉 ID を {@code flipped} に足す（コピーを作る）。
+     */
+    public boolean sensitivityWithLeafTable(BytesRef ref, LeafTruth truth, List<BytesRef> flipped)
+            throws IOException {
+        this.bytes = ref.bytes;
+        this.pos = ref.offset;
+        int n = readVInt();
+        int words = (n + 63) >>> 6;
+        if (tableTrue.length < words) tableTrue = new long[words];
+        if (tableOffsets.length < n) {
+            tableOffsets = new int[n];
+            tableLengths = new int[n];
+        }
+        for (int i = 0; i < words; i++) tableTrue[i] = 0L;
+        leafId.bytes = bytes;
+        for (int i = 0; i < n; i++) {
+            leafId.length = readVInt();
+            leafId.offset = pos;
+            tableOffsets[i] = pos;
+            tableLengths[i] = leafId.length;
+            pos += leafId.length;
+            if (truth.isTrue(leafId)) tableTrue[i >>> 6] |= 1L << i;
+        }
+        this.localTrue = tableTrue;
+        readHeader();
+        long[] flips = new long[Math.max(1, words)];
+        boolean value = sensitivityRoot(n, flips);
+        for (int i = 0; i < n; i++) {
+            if ((flips[i >>> 6] & (1L << i)) != 0) {
+                flipped.add(BytesRef.deepCopyOf(new BytesRef(bytes, tableOffsets[i], tableLengths[i])));
+            }
+        }
+        return value;
+    }
+
+    /** このインスタンスがこれまでに訪れたノードの数（読み飛ばした子は数えない） */
+    public long visitedNodes() {
+        return visitedNodes;
+    }
+
+    /** 使い捨ての評価。繰り返し呼ぶ場合はインスタンスを使い回すこと。 */
+    public static boolean evaluate(BytesRef ref, long[] localTrue) {
+        return new ConditionEvaluator().matches(ref, localTrue);
+    }
+
+    /** 葉 ID を文字列で書いた古い形式の式か。そうなら {@link #evaluate(BytesRef, Set)} で評価する */
+    static boolean isLegacy(BytesRef ref) {
+        return ref.length == 0 || ref.bytes[ref.offset] != FORMAT_V2;
+    }
+
+    /** 木の先頭の版を読む */
+    private void readHeader() {
+        byte b = bytes[pos];
+        if (b != FORMAT_V2) {
+            if ((b & 0xF0) == 0xF0) throw new IllegalStateException("unsupported expression format: " + (b & 0x0F));
+            throw new IllegalStateException("expression without format header (legacy format)");
+        }
+        pos++;
+    }
+
+    private boolean evalNode() {
+        visitedNodes++;
+        byte type = bytes[pos++];
+        if (type < 0) { // 版 2 の短い葉
+            int i = type & 0x7F;
+            return (localTrue[i >>> 6] & (1L << i)) != 0;
+        }
+        switch (type) {
+            case 0: { // LEAF
+                int i = readVInt();
+                return (localTrue[i >>> 6] & (1L << i)) != 0;
+            }
+            case 1: { // AND
+                int n = readVInt();
+                int end = readVInt();
+                end += pos;
+                if (leavesFirstInAnd) return evalLeavesFirst(n, end, false);
+                for (int i = 0; i < n; i++) {
+                    if (!evalNode()) {
+                        pos = end;
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case 2: { // OR
+                int n = readVInt();
+                int end = readVInt();
+                end += pos;
+                if (leavesFirstInOr) return evalLeavesFirst(n, end, true);
+                for (int i = 0; i < n; i++) {
+                    if (evalNode()) {
+                        pos = end;
+                        return true;
+                    }
+                }
+                return false;
+            }
+            case 3: // NOT
+                return !evalNode();
+            case 4: // TRUE
+                return true;
+            case 5: // FALSE
+                return false;
+            case 6: { // AT LEAST
+                int k = readVInt();
+                int n = readVInt();
+                int end = readVInt();
+                end += pos;
+                int count = 0;
+                for (int i = 0; i < n && count < k; i++) {
+                    if (evalNode()) {
+                        count++;
+                    } else if (count + (n - i - 1) < k) {
+                        break;
+                    }
+                }
+                pos = end;
+                return count >= k;
+            }
+            default:
+                throw new IllegalStateException("unknown node type: " + type);
+        }
+    }
+
+    /**
+     * AND（{@code decisive} が偽）/ OR（真）の n 個の子を、葉と定数、残りの子の順に評価する。
+     * 子の値が {@code decisive} になった時点で end へ進んでそれを返す。
+     */
+    private boolean evalLeavesFirst(int n, int end, boolean decisive) {
+        int start = pos;
+        boolean deferred = false;
+        for (int i = 0; i < n; i++) {
+            if (!cheap(bytes[pos])) {
+                deferred = true;
+                skipNode();
+            } else if (evalNode() == decisive) {
+                pos = end;
+                return decisive;
+            }
+        }
+        if (deferred) {
+            pos = start;
+            for (int i = 0; i < n; i++) {
+                if (cheap(bytes[pos])) {
+                    skipNode();
+                } else if (evalNode() == decisive) {
+                    pos = end;
+                    return decisive;
+                }
+            }
+        }
+        return !decisive;
+    }
+
+    // 葉（版 2 の短い葉を含む）と TRUE / FALSE
+    private static boolean cheap(byte type) {
+        return type <= 0 || type == 4 || type == 5;
+    }
+
+    /** ノードを評価せずに読み飛ばす。AND / OR / AT LEAST は子の合計バイト長で飛ぶ */
+    private void skipNode() {
+        byte type = bytes[pos++];
+        if (type < 0) return;
+        switch (type) {
+            case 0:
+                readVInt();
+                return;
+            case 1:
+            case 2: {
+                readVInt();
+                int len = readVInt();
+                pos += len;
+                return;
+            }
+            case 3:
+                skipNode();
+                return;
+            case 6: {
+                readVInt();
+                readVInt();
+                int len = readVInt();
+                pos += len;
+                return;
+            }
+            default:
+                return;
+        }
+    }
+
+    private float scoreNode() {
+        visitedNodes++;
+        byte type = bytes[pos++];
+        if (type < 0) { // 版 2 の短い葉
+            int i = type & 0x7F;
+            return (localTrue[i >>> 6] & (1L << i)) != 0 ? localWeights[i] : NO_MATCH;
+        }
+        switch (type) {
+            case 0: { // LEAF
+                int i = readVInt();
+                return (localTrue[i >>> 6] & (1L << i)) != 0 ? localWeights[i] : NO_MATCH;
+            }
+            case 1: { // AND
+                int n = readVInt();
+                int end = readVInt();
+                end += pos;
+                float sum = 0f;
+                for (int i = 0; i < n; i++) {
+                    float s = scoreNode();
+                    if (s < 0) {
+                        pos = end;
+                        return NO_MATCH;
+                    }
+                    sum += s;
+                }
+                return sum;
+            }
+            case 2: { // OR
+                // 最大を取るので読み飛ばさない
+                int n = readVInt();
+                readVInt();
+                float max = NO_MATCH;
+                for (int i = 0; i < n; i++) max = Math.max(max, scoreNode());
+                return max;
+            }
+            case 3: // NOT
+                return evalNode() ? NO_MATCH : 0f;
+            case 4: // TRUE
+                return 0f;
+            case 5: // FALSE
+                return NO_MATCH;
+            case 6: { // AT LEAST
+                // 真の子のスコアをすべて足すので、k に達しても読み進める
+                int k = readVInt();
+                int n = readVInt();
+                int end = readVInt();
+                end += pos;
+                int count = 0;
+                float sum = 0f;
+                for (int i = 0; i < n; i++) {
+                    float s = scoreNode();
+                    if (s >= 0) {
+                        count++;
+                        sum += s;
+                    } else if (count + (n - i - 1) < k) {
+                        pos = end;
+                        return NO_MATCH;
+                    }
+                }
+                return count >= k ? sum : NO_MATCH;
+            }
+            default:
+                throw new IllegalStateException("unknown node type: " + type);
+        }
+    }
+
+    // 各ノードの値は「そのノードが真になるシナリオ」のビットマスク。AND / OR / NOT はビット演算になる
+    private long maskNode() {
+        visitedNodes++;
+        byte type = bytes[pos++];
+        if (type < 0) return localMasks[type & 0x7F]; // 版 2 の短い葉
+        switch (type) {
+            case 0: // LEAF
+                return localMasks[readVInt()];
+            case 1: { // AND
+                int n = readVInt();
+                int end = readVInt();
+                end += pos;
+                long mask = allScenarios;
+                for (int i = 0; i < n; i++) {
+                    mask &= maskNode();
+                    if (mask == 0L) {
+                        pos = end;
+                        return 0L;
+                    }
+                }
+                return mask;
+            }
+            case 2: { // OR
+                int n = readVInt();
+                int end = readVInt();
+                end += pos;
+                long mask = 0L;
+                for (int i = 0; i < n; i++) {
+                    mask |= maskNode();
+                    if (mask == allScenarios) {
+                        pos = end;
+                        return mask;
+                    }
+                }
+                return mask;
+            }
+            case 3: // NOT
+                return allScenarios & ~maskNode();
+            case 4: // TRUE
+                return allScenarios;
+            case 5: // FALSE
+                return 0L;
+            case 6: { // AT LEAST
+                // atLeast[j] は真の子が j 個以上のシナリオ
+                int k = readVInt();
+                int n = readVInt();
+                int end = readVInt();
+                end += pos;
+                int base = atLeastTop;
+                atLeastTop += k + 1;
+                if (atLeastMasks.length < atLeastTop) {
+                    atLeastMasks = Arrays.copyOf(atLeastMasks, Math.max(atLeastTop, atLeastMasks.length * 2));
+                }
+                Arrays.fill(atLeastMasks, base, atLeastTop, 0L);
+                atLeastMasks[base] = allScenarios;
+                for (int i = 0; i < n && atLeastMasks[base + k] != allScenarios; i++) {
+                    long child = maskNode();  // 入れ子の AT LEAST が atLeastMasks を広げることがある
+                    long[] atLeast = atLeastMasks;
+                    for (int j = Math.min(k, i + 1); j >= 1; j--) atLeast[base + j] |= atLeast[base + j - 1] & child;
+                }
+                atLeastTop = base;
+                pos = end;
+                return atLeastMasks[base + k];
+            }
+            default:
+                throw new IllegalStateException("unknown node type: " + type);
+        }
+    }
+
+    private boolean sensitivityRoot(int leafCount, long[] flips) {
+        sensLeaves = leafCount;
+        sensWords = Math.max(1, (leafCount + 63) >>> 6);
+        sensTop = 0;
+        deltaTop = 0;
+        int root = pushSens();
+        boolean value = sensNode(root);
+        System.arraycopy(sens, root, flips, 0, sensWords);
+        return value;
+    }
+
+    // 感度の集合を一つ積む（0 で埋める）。位置を返す
+    private int pushSens() {
+        int at = sensTop;
+        sensTop += sensWords;
+        if (sens.length < sensTop) sens = Arrays.copyOf(sens, Math.max(sensTop, sens.length * 2));
+        Arrays.fill(sens, at, sensTop, 0L);
+        return at;
+    }
+
+    /** ノードの値を返し、その感度を {@code sens[out ..]} に書く */
+    private boolean sensNode(int out) {
+        visitedNodes++;
+        byte type = bytes[pos++];
+        if (type < 0 || type == 0) { // 葉
+            int i = type < 0 ? type & 0x7F : readVInt();
+            boolean value = (localTrue[i >>> 6] & (1L << i)) != 0;
+            if (!value) sens[out + (i >>> 6)] |= 1L << i;
+            return value;
+        }
+        switch (type) {
+            case 1: // AND
+            case 2: { // OR
+                // 値を決める子（AND なら偽、OR なら真）の感度の共通部分と、それ以外の子の感度の和集合
+                boolean decisive = type == 2;
+                int n = readVInt();
+                readVInt();
+                int child = pushSens();
+                int others = pushSens();
+                boolean decided = false;
+                for (int c = 0; c < n; c++) {
+                    Arrays.fill(sens, child, child + sensWords, 0L);
+                    if (sensNode(child) == decisive) {
+                        for (int w = 0; w < sensWords; w++) {
+                            sens[out + w] = decided ? sens[out + w] & sens[child + w] : sens[child + w];
+                        }
+                        decided = true;
+                    } else {
+                        for (int w = 0; w < sensWords; w++) sens[others + w] |= sens[child + w];
+                    }
+                }
+                for (int w = 0; w < sensWords; w++) {
+                    sens[out + w] = decided ? sens[out + w] & ~sens[others + w] : sens[others + w];
+                }
+                sensTop -= 2 * sensWords;
+                return decided == decisive;
+            }
+            case 3: // NOT
+                return !sensNode(out);
+            case 4: // TRUE
+                return true;
+            case 5: // FALSE
+                return false;
+            case 6: { // AT LEAST
+                // deltas[i] は番号 i の葉を真にしたときの、真の子の数の増減
+                int k = readVInt();
+                int n = readVInt();
+                readVInt();
+                int base = deltaTop;
+                deltaTop += sensLeaves;
+                if (deltas.length < deltaTop) deltas = Arrays.copyOf(deltas, Math.max(deltaTop, deltas.length * 2));
+                Arrays.fill(deltas, base, deltaTop, 0);
+                int child = pushSens();
+                int trueChildren = 0;
+                for (int c = 0; c < n; c++) {
+                    Arrays.fill(sens, child, child + sensWords, 0L);
+                    boolean value = sensNode(child);
+                    if (value) trueChildren++;
+                    for (int w = 0; w < sensWords; w++) {
+                        for (long bits = sens[child + w]; bits != 0L; bits &= bits - 1) {
+                            deltas[base + (w << 6) + Long.numberOfTrailingZeros(bits)] += value ? -1 : 1;
+                        }
+                    }
+                }
+                boolean result = trueChildren >= k;
+                for (int i = 0; i < sensLeaves; i++) {
+                    int d = deltas[base + i];
+                    if (d != 0 && (trueChildren + d >= k) != result) sens[out + (i >>> 6)] |= 1L << i;
+                }
+                sensTop -= sensWords;
+                deltaTop = base;
+                return result;
+            }
+            default:
+                throw new IllegalStateException("unknown node type: " + type);
+        }
+    }
+
+    private int readVInt() {
+        byte b = bytes[pos++];
+        int i = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = bytes[pos++];
+            i |= (b & 0x7F) << shift;
+        }
+        return i;
+    }
+
+    /**
+     * 葉 ID を文字列で書いた古い形式の式を評価する。
+     * 古い形式の文書は葉辞書にも葉のポスティングにも載っていないので、葉 ID の文字列で判定する。
+     */
     public static boolean evaluate(BytesRef ref, Set<String> active) {
+        return evaluate(ref, (Predicate<String>) active::contains);
+    }
+
+    /** {@link #evaluate(BytesRef, Set)} と同じ。葉 ID が真かを {@code active} で判定する */
+    static boolean evaluate(BytesRef ref, Predicate<String> active) {
+        // 葉を含まない式は葉辞書が作られないので、新しい形式でもここに来る
+        if (!isLegacy(ref)) return evaluate(ref, new long[1]);
         try (var in = new DataInputStream(
                 new ByteArrayInputStream(ref.bytes, ref.offset, ref.length))) {
             return evalNode(in, active);
@@ -18,12 +673,55 @@ public class ConditionEvaluator {
         }
     }
 
-    private static boolean evalNode(DataInputStream in, Set<String> active) throws IOException {
+    /**
+     * 古い形式の式の {@link #sensitivity}。偽なら、一つだけ真にすると式が真になる偽の葉 ID を {@code flipped} に入れる。
+     * 古い形式は葉 ID ごとに評価し直すので遅いが、マージで書き直されるまでの間だけ使われる。
+     */
+    static boolean legacySensitivity(BytesRef ref, Predicate<String> active, List<String> flipped) {
+        if (evaluate(ref, active)) return true;
+        if (!isLegacy(ref)) return false;  // 葉を含まない新しい形式の式
+        Set<String> leaves = new LinkedHashSet<>();
+        try (var in = new DataInputStream(
+                new ByteArrayInputStream(ref.bytes, ref.offset, ref.length))) {
+            legacyLeaves(in, leaves);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (String id : leaves) {
+            if (!active.test(id) && evaluate(ref, active.or(id::equals))) flipped.add(id);
+        }
+        return false;
+    }
+
+    private static void legacyLeaves(DataInputStream in, Set<String> leaves) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case 0:
+                leaves.add(in.readUTF());
+                return;
+            case 1:
+            case 2: {
+                int n = in.readByte();
+                for (int i = 0; i < n; i++) legacyLeaves(in, leaves);
+                return;
+            }
+            case 3:
+                legacyLeaves(in, leaves);
+                return;
+            case 4:
+            case 5:
+                return;
+            default:
+                throw new IOException("unknown node type: " + type);
+        }
+    }
+
+    private static boolean evalNode(DataInputStream in, Predicate<String> active) throws IOException {
         byte type = in.readByte();
         switch (type) {
             case 0: // LEAF
                 String cond = in.readUTF();
-                return active.contains(cond);
+                return active.test(cond);
             case 1: { // AND
                 int n1 = in.readByte();
                 boolean result = true;
@@ -44,6 +742,12 @@ public class ConditionEvaluator {
             }
             case 3: // NOT
                 return !evalNode(in, active);
+            // 葉を含まない（定数だけの）式は新旧どちらの形式でも同じバイト列になり、
+            // 葉辞書も作られないのでこちらで評価される
+            case 4: // TRUE
+                return true;
+            case 5: // FALSE
+                return false;
             default:
                 throw new IOException("unknown node type: " + type);
         }
@@ -0,0 +1,140 @@
+package com.example.solr.cond;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.example.solr.cond.ConditionExpressionParser.And;
+import com.example.solr.cond.ConditionExpressionParser.AtLeast;
+import com.example.solr.cond.ConditionExpressionParser.Const;
+import com.example.solr.cond.ConditionExpressionParser.Leaf;
+import com.example.solr.cond.ConditionExpressionParser.Node;
+import com.example.solr.cond.ConditionExpressionParser.Not;
+import com.example.solr.cond.ConditionExpressionParser.Or;
+
+/**
+ * 条件式の木を正規形にする。
+ * <ul>
+ *   <li>入れ子の AND / OR を平らにする</li>
+ *   <li>重複した子を取り除き、二重否定を消す</li>
+ *   <li>{@code X AND NOT X} や定数を含む部分木を TRUE / FALSE に畳み込む</li>
+ *   <li>AT LEAST は定数の子を k に繰り込み、k = 1 なら OR、k = 子の数なら AND にする（重複した子は数に効くので残す）</li>
+ *   <li>子を「小さい（安く評価できる）順、同じ大きさなら文字列表現の順」に並べる</li>
+ * </ul>
+ * 結果は書き方に依らず決まるので、等しい式は同じバイト列になる。
+ */
+public final class ConditionExpressionCanonicalizer {
+    private ConditionExpressionCanonicalizer() {}
+
+    // 正規化済みの部分木と、その文字列表現・ノード数・（NOT / AND / OR なら）正規化済みの子
+    private record Canon(Node node, String key, int size, List<Canon> parts) {}
+
+    private static final Canon TRUE = new Canon(Const.TRUE, "TRUE", 1, List.of());
+    private static final Canon FALSE = new Canon(Const.FALSE, "FALSE", 1, List.of());
+
+    private static final Comparator<Canon> ORDER =
+            Comparator.comparingInt(Canon::size).thenComparing(Canon::key);
+
+    public static Node canonicalize(Node root) {
+        return canon(root).node;
+    }
+
+    private static Canon canon(Node n) {
+        if (n instanceof Leaf leaf) {
+            return new Canon(leaf, leaf.id, 1, List.of());
+        } else if (n instanceof Const c) {
+            return c.value ? TRUE : FALSE;
+        } else if (n instanceof Not not) {
+            return negate(canon(not.child));
+        } else if (n instanceof And and) {
+            return junction(true, and.children);
+        } else if (n instanceof Or or) {
+            return junction(false, or.children);
+        } else if (n instanceof AtLeast atLeast) {
+            return atLeast(atLeast.k, atLeast.children);
+        }
+        throw new IllegalArgumentException("unknown node: " + n);
+    }
+
+    private static Canon negate(Canon c) {
+        if (c == TRUE) return FALSE;
+        if (c == FALSE) return TRUE;
+        if (c.node instanceof Not) return c.parts.get(0);
+        return new Canon(new Not(c.node), "NOT " + c.key, c.size + 1, List.of(c));
+    }
+
+    private static Canon atLeast(int k, List<Node> children) {
+        List<Canon> rest = new ArrayList<>();
+        for (Node c : children) {
+            Canon cc = canon(c);
+            if (cc == TRUE) {
+                k--;
+            } else if (cc != FALSE) {
+                rest.add(cc);
+            }
+        }
+        if (k <= 0) return TRUE;
+        if (k > rest.size()) return FALSE;
+        List<Node> nodes = new ArrayList<>(rest.size());
+        if (k == 1 || k == rest.size()) {
+            for (Canon c : rest) nodes.add(c.node);
+            return junction(k == rest.size(), nodes);
+        }
+        rest.sort(ORDER);
+        StringBuilder key = new StringBuilder("AT LEAST ").append(k).append(" OF (");
+        int size = 1;
+        for (Canon c : rest) {
+            if (!nodes.isEmpty()) key.append(", ");
+            nodes.add(c.node);
+            key.append(c.key);
+            size += c.size;
+        }
+        key.append(')');
+        return new Canon(new AtLeast(k, nodes), key.toString(), size, rest);
+    }
+
+    /** {@code isAnd} なら AND、そうでなければ OR */
+    private static Canon junction(boolean isAnd, List<Node> children) {
+        Canon identity = isAnd ? TRUE : FALSE;    // 取り除ける定数
+        Canon absorbing = isAnd ? FALSE : TRUE;   // 全体を決める定数
+
+        Map<String, Canon> unique = new LinkedHashMap<>();
+        List<Canon> pending = new ArrayList<>();
+        for (Node c : children) pending.add(canon(c));
+        while (!pending.isEmpty()) {
+            Canon c = pending.remove(pending.size() - 1);
+            if (c == absorbing) return absorbing;
+            if (c == identity) continue;
+            if (isAnd ? c.node instanceof And : c.node instanceof Or) {
+                // 同じ演算子の子を平らにする
+                pending.addAll(c.parts);
+                continue;
+            }
+            unique.putIfAbsent(c.key, c);
+        }
+        for (Canon c : unique.values()) {
+            // X と NOT X が並んでいれば AND は偽、OR は真
+            if (c.node instanceof Not && unique.containsKey(c.key.substring("NOT ".length()))) {
+                return absorbing;
+            }
+        }
+        if (unique.isEmpty()) return identity;
+        if (unique.size() == 1) return unique.values().iterator().next();
+
+        List<Canon> sorted = new ArrayList<>(unique.values());
+        sorted.sort(ORDER);
+        List<Node> nodes = new ArrayList<>(sorted.size());
+        StringBuilder key = new StringBuilder("(");
+        int size = 1;
+        for (Canon c : sorted) {
+            if (!nodes.isEmpty()) key.append(isAnd ? " AND " : " OR ");
+            nodes.add(c.node);
+            key.append(c.key);
+            size += c.size;
+        }
+        key.append(')');
+        return new Canon(isAnd ? new And(nodes) : new Or(nodes), key.toString(), size, sorted);
+    }
+}
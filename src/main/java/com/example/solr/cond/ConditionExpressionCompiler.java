@@ -0,0 +1,322 @@
+package com.example.solr.cond;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * {@link ConditionExpressionParser#compile(String)} と同じバイト列を、{@code Node} の木や
+ * ストリームを作らずに求めるコンパイラー。インデックス時の変換に使う。
+ * <p>
+ * 式は一度だけ走査して、ノードを前順（バイト列に書く順）に int の配列へ並べる。演算子の判定では
+ * 部分文字列を作らず、文字列にするのは異なる葉 ID だけ。葉の番号は全体を読んでから
+ * UTF-8 バイト順に振り直し、各ノードの大きさを後ろから求めてから、ちょうどの長さの配列に書く。
+ * 文法とエラーは {@link ConditionExpressionParser} と同じ（正規化はしない）。
+ * インスタンスは使い回せるがスレッド間で共有しないこと。
+ */
+final class ConditionExpressionCompiler {
+    private static final ThreadLocal<ConditionExpressionCompiler> LOCAL =
+            ThreadLocal.withInitial(ConditionExpressionCompiler::new);
+
+    // ノードの型。SINGLE は子が一つだけの AND / OR で、何も書かずに子をそのまま使う
+    private static final int LEAF = 0, AND = 1, OR = 2, NOT = 3, AT_LEAST = 6, SINGLE = -1;
+
+    private String s;
+    private int pos;
+
+    // 前順のノード
+    private int size;
+    private int[] type = new int[16];
+    private int[] arg = new int[16];       // 葉なら仮の番号、AT LEAST なら k
+    private int[] children = new int[16];
+    private int[] end = new int[16];       // 部分木の次のノード
+    private int[] bytes = new int[16];     // 書いたときの大きさ
+
+    // 出てきた順の葉
+    private final Map<String, Integer> leafIds = new HashMap<>();
+    private BytesRef[] leaves = new BytesRef[16];
+
+    /** 呼び出したスレッドのインスタンスで変換する */
+    static CompiledExpression compile(String expr) {
+        return LOCAL.get().compileExpression(expr);
+    }
+
+    CompiledExpression compileExpression(String expr) {
+        s = expr;
+        pos = 0;
+        size = 0;
+        leafIds.clear();
+        try {
+            parseOr();
+            int rest = nextToken();
+            if (rest >= 0) throw new IllegalArgumentException("trailing tokens: " + s.substring(rest).trim());
+            return encode();
+        } finally {
+            s = null;
+        }
+    }
+
+    // ---- 走査 ----
+
+    private void parseOr() {
+        int node = add(OR, 0);
+        int n = 1;
+        parseAnd();
+        while (peekWord("OR")) {
+            nextToken();
+            parseAnd();
+            n++;
+        }
+        close(node, n);
+    }
+
+    private void parseAnd() {
+        int node = add(AND, 0);
+        int n = 1;
+        parseNot();
+        while (peekWord("AND")) {
+            nextToken();
+            parseNot();
+            n++;
+        }
+        close(node, n);
+    }
+
+    private void parseNot() {
+        if (peekWord("NOT")) {
+            nextToken();
+            int node = add(NOT, 0);
+            parsePrimary();
+            children[node] = 1;
+            end[node] = size;
+            return;
+        }
+        parsePrimary();
+    }
+
+    private void parsePrimary() {
+        int start = nextToken();
+        if (start < 0) throw new IllegalArgumentException("unexpected end");
+        int tokenEnd = pos;
+        if (tokenEnd - start == 1 && s.charAt(start) == '(') {
+            parseOr();
+            int c = nextToken();
+            if (c < 0 || pos - c != 1 || s.charAt(c) != ')') throw new IllegalArgumentException("expected )");
+            return;
+        }
+        if (is(start, tokenEnd, "AND") || is(start, tokenEnd, "OR") || is(start, tokenEnd, "NOT")) {
+            throw new IllegalArgumentException("unexpected operator: " + s.substring(start, tokenEnd));
+        }
+        // AT は LEAST が続くときだけ演算子。それ以外は葉 ID として扱う
+        if (is(start, tokenEnd, "AT") && peekWord("LEAST")) {
+            nextToken();
+            parseAtLeast();
+            return;
+        }
+        // 葉 ID は英数字のみ（目印の term やパターンの * ? と衝突しない）
+        if (!Character.isLetterOrDigit(s.charAt(start))) {
+            throw new IllegalArgumentException("invalid leaf id: " + s.substring(start, tokenEnd));
+        }
+        String id = s.substring(start, tokenEnd);
+        Integer leaf = leafIds.get(id);
+        if (leaf == null) {
+            leaf = leafIds.size();
+            leafIds.put(id, leaf);
+            if (leaf == leaves.length) leaves = Arrays.copyOf(leaves, leaf * 2);
+            leaves[leaf] = new BytesRef(id);
+        }
+        int node = add(LEAF, leaf);
+        end[node] = size;
+    }
+
+    // AT LEAST の後: k OF ( 式 , 式 , ... )
+    private void parseAtLeast() {
+        int start = nextToken();
+        String num = start < 0 ? null : s.substring(start, pos);
+        int k;
+        try {
+            k = Integer.parseInt(num);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expected number after AT LEAST: " + num);
+        }
+        start = nextToken();
+        if (start < 0 || !is(start, pos, "OF")) throw new IllegalArgumentException("expected OF");
+        if (!nextIs('(')) throw new IllegalArgumentException("expected (");
+        int node = add(AT_LEAST, k);
+        int n = 0;
+        while (true) {
+            parseOr();
+            n++;
+            int c = nextToken();
+            if (c >= 0 && pos - c == 1 && s.charAt(c) == ')') break;
+            if (c < 0 || pos - c != 1 || s.charAt(c) != ',') throw new IllegalArgumentException("expected , or )");
+        }
+        if (k < 1 || k > n) {
+            throw new IllegalArgumentException("AT LEAST " + k + " OF " + n + " children");
+        }
+        children[node] = n;
+        end[node] = size;
+    }
+
+    /** 子が一つなら AND / OR を作らない（{@link ConditionExpressionParser} と同じ木にする） */
+    private void close(int node, int n) {
+        if (n == 1) type[node] = SINGLE;
+        children[node] = n;
+        end[node] = size;
+    }
+
+    private int add(int t, int a) {
+        if (size == type.length) {
+            int cap = size * 2;
+            type = Arrays.copyOf(type, cap);
+            arg = Arrays.copyOf(arg, cap);
+            children = Arrays.copyOf(children, cap);
+            end = Arrays.copyOf(end, cap);
+            bytes = Arrays.copyOf(bytes, cap);
+        }
+        type[size] = t;
+        arg[size] = a;
+        children[size] = 0;
+        return size++;
+    }
+
+    // ---- 字句 ----
+
+    private void skipWs() {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+    }
+
+    /** 次のトークンの先頭（pos はその末尾に進む）。無ければ -1 */
+    private int nextToken() {
+        skipWs();
+        if (pos >= s.length()) return -1;
+        int start = pos;
+        if (Character.isLetterOrDigit(s.charAt(pos))) {
+            while (pos < s.length() && Character.isLetterOrDigit(s.charAt(pos))) pos++;
+        } else {
+            pos++;
+        }
+        return start;
+    }
+
+    private boolean peekWord(String word) {
+        skipWs();
+        int e = pos;
+        while (e < s.length() && Character.isLetterOrDigit(s.charAt(e))) e++;
+        return is(pos, e, word);
+    }
+
+    private boolean nextIs(char c) {
+        int start = nextToken();
+        return start >= 0 && pos - start == 1 && s.charAt(start) == c;
+    }
+
+    private boolean is(int start, int e, String word) {
+        return e - start == word.length() && s.regionMatches(true, start, word, 0, word.length());
+    }
+
+    // ---- 書き出し ----
+
+    private CompiledExpression encode() {
+        int leafCount = leafIds.size();
+        // 仮の番号 → UTF-8 バイト順の番号
+        Integer[] order = new Integer[leafCount];
+        for (int i = 0; i < leafCount; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> leaves[a].compareTo(leaves[b]));
+        int[] rank = new int[leafCount];
+        BytesRef[] sorted = new BytesRef[leafCount];
+        for (int i = 0; i < leafCount; i++) {
+            rank[order[i]] = i;
+            sorted[i] = leaves[order[i]];
+        }
+
+        // 子は親より後ろにあるので、後ろから大きさが決まる
+        for (int i = size - 1; i >= 0; i--) {
+            int childBytes = childrenBytes(i);
+            switch (type[i]) {
+                case LEAF: {
+                    int r = rank[arg[i]];
+                    bytes[i] = r < ConditionEvaluator.SHORT_LEAF_LIMIT ? 1 : 1 + vIntSize(r);
+                    break;
+                }
+                case AND:
+                case OR:
+                    bytes[i] = 1 + vIntSize(children[i]) + vIntSize(childBytes) + childBytes;
+                    break;
+                case NOT:
+                    bytes[i] = 1 + childBytes;
+                    break;
+                case AT_LEAST:
+                    bytes[i] = 1 + vIntSize(arg[i]) + vIntSize(children[i]) + vIntSize(childBytes) + childBytes;
+                    break;
+                default: // SINGLE
+                    bytes[i] = childBytes;
+            }
+        }
+
+        // 前順はそのままバイト列の順
+        byte[] out = new byte[1 + bytes[0]];
+        int p = 0;
+        out[p++] = ConditionEvaluator.FORMAT_V2;
+        for (int i = 0; i < size; i++) {
+            switch (type[i]) {
+                case LEAF: {
+                    int r = rank[arg[i]];
+                    if (r < ConditionEvaluator.SHORT_LEAF_LIMIT) {
+                        out[p++] = (byte) (0x80 | r);
+                    } else {
+                        out[p++] = 0;
+                        p = writeVInt(r, out, p);
+                    }
+                    break;
+                }
+                case AND:
+                case OR:
+                    out[p++] = (byte) type[i];
+                    p = writeVInt(children[i], out, p);
+                    p = writeVInt(childrenBytes(i), out, p);
+                    break;
+                case NOT:
+                    out[p++] = NOT;
+                    break;
+                case AT_LEAST:
+                    out[p++] = AT_LEAST;
+                    p = writeVInt(arg[i], out, p);
+                    p = writeVInt(children[i], out, p);
+                    p = writeVInt(childrenBytes(i), out, p);
+                    break;
+                default: // SINGLE
+            }
+        }
+        boolean matchesWithoutLeaves = ConditionEvaluator.evaluate(new BytesRef(out), new long[(leafCount + 63) >>> 6]);
+        return new CompiledExpression(out, List.of(sorted), matchesWithoutLeaves);
+    }
+
+    private int childrenBytes(int i) {
+        int sum = 0;
+        for (int c = 0, j = i + 1; c < children[i]; c++, j = end[j]) sum += bytes[j];
+        return sum;
+    }
+
+    private static int vIntSize(int i) {
+        int n = 1;
+        while ((i & ~0x7F) != 0) {
+            i >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    // Lucene の DataOutput#writeVInt と同じ形式
+    private static int writeVInt(int i, byte[] out, int p) {
+        while ((i & ~0x7F) != 0) {
+            out[p++] = (byte) ((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        out[p++] = (byte) i;
+        return p;
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.solr.cond;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * 条件式のバイト列を式の文字列に戻す。書き方は {@link ConditionExpressionCanonicalizer} の正規形と同じ
+ * （AND / OR は括弧で囲み、AT LEAST は {@code AT LEAST k OF (a, b)}、定数は TRUE / FALSE）で、
+ * 子はバイト列に書かれた順に並べる。正規化して格納した式なら正規形そのものになる。
+ * 木・葉テーブル付きの形式・葉 ID を文字列で書いた古い形式のどれも読める。古い形式は先頭のバイトで
+ * 文書ごとに見分ける（{@link ConditionEvaluator#isLegacy}）。
+ */
+final class ConditionExpressionDecompiler {
+    private final byte[] bytes;
+    private int pos;
+    private final BytesRef[] leaves;
+    private final StringBuilder out = new StringBuilder();
+
+    private ConditionExpressionDecompiler(BytesRef ref, BytesRef[] leaves) {
+        this.bytes = ref.bytes;
+        this.pos = ref.offset;
+        this.leaves = leaves;
+    }
+
+    /** 葉をローカル番号で書いた式。{@code leaves[i]} は番号 i の葉 ID。古い形式なら {@code leaves} は使わない */
+    static String decompile(BytesRef tree, BytesRef[] leaves) {
+        if (ConditionEvaluator.isLegacy(tree)) return decompileLegacy(tree);
+        ConditionExpressionDecompiler d = new ConditionExpressionDecompiler(tree, leaves);
+        d.pos++;  // FORMAT_V2
+        d.node();
+        return d.out.toString();
+    }
+
+    /** {@link CompiledExpression#bytesWithLeafTable()} の形式の式 */
+    static String decompileWithLeafTable(BytesRef ref) {
+        ConditionExpressionDecompiler table = new ConditionExpressionDecompiler(ref, null);
+        int n = table.readVInt();
+        BytesRef[] leaves = new BytesRef[n];
+        for (int i = 0; i < n; i++) {
+            int len = table.readVInt();
+            leaves[i] = new BytesRef(ref.bytes, table.pos, len);
+            table.pos += len;
+        }
+        return decompile(new BytesRef(ref.bytes, table.pos, ref.offset + ref.length - table.pos), leaves);
+    }
+
+    /**
+     * 葉辞書の無いセグメントの storage=binary の式。
+     * 葉を含まない新しい形式の式か、葉 ID を文字列で書いた古い形式になっている。
+     * 葉を含む新しい形式の式なら IllegalStateException
+     */
+    static String decompileWithoutLeafDict(BytesRef ref) {
+        return decompile(ref, new BytesRef[0]);
+    }
+
+    private static String decompileLegacy(BytesRef ref) {
+        StringBuilder sb = new StringBuilder();
+        try (var in = new DataInputStream(new ByteArrayInputStream(ref.bytes, ref.offset, ref.length))) {
+            legacyNode(in, sb);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sb.toString();
+    }
+
+    private void node() {
+        byte type = bytes[pos++];
+        if (type < 0) { // 版 2 の短い葉
+            out.append(leaf(type & 0x7F));
+            return;
+        }
+        switch (type) {
+            case 0: // LEAF
+                out.append(leaf(readVInt()));
+                return;
+            case 1: // AND
+            case 2: { // OR
+                int n = readVInt();
+                readVInt();
+                out.append('(');
+                for (int i = 0; i < n; i++) {
+                    if (i > 0) out.append(type == 1 ? " AND " : " OR ");
+                    node();
+                }
+                out.append(')');
+                return;
+            }
+            case 3: { // NOT
+                // NOT の直後に NOT は書けないので括弧で囲む
+                boolean nested = bytes[pos] == 3;
+                out.append(nested ? "NOT (" : "NOT ");
+                node();
+                if (nested) out.append(')');
+                return;
+            }
+            case 4:
+                out.append("TRUE");
+                return;
+            case 5:
+                out.append("FALSE");
+                return;
+            case 6: { // AT LEAST
+                int k = readVInt();
+                int n = readVInt();
+                readVInt();
+                out.append("AT LEAST ").append(k).append(" OF (");
+                for (int i = 0; i < n; i++) {
+                    if (i > 0) out.append(", ");
+                    node();
+                }
+                out.append(')');
+                return;
+            }
+            default:
+                throw new IllegalStateException("unknown node type: " + type);
+        }
+    }
+
+    private String leaf(int local) {
+        if (local >= leaves.length) throw new IllegalStateException("leaf " + local + " is not in the leaf table");
+        return leaves[local].utf8ToString();
+    }
+
+    private static void legacyNode(DataInputStream in, StringBuilder sb) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case 0:
+                sb.append(in.readUTF());
+                return;
+            case 1:
+            case 2: {
+                int n = in.readByte();
+                sb.append('(');
+                for (int i = 0; i < n; i++) {
+                    if (i > 0) sb.append(type == 1 ? " AND " : " OR ");
+                    legacyNode(in, sb);
+                }
+                sb.append(')');
+                return;
+            }
+            case 3: {
+                StringBuilder child = new StringBuilder();
+                legacyNode(in, child);
+                boolean nested = child.indexOf("NOT ") == 0;
+                sb.append(nested ? "NOT (" : "NOT ").append(child);
+                if (nested) sb.append(')');
+                return;
+            }
+            case 4:
+                sb.append("TRUE");
+                return;
+            case 5:
+                sb.append("FALSE");
+                return;
+            default:
+                throw new IOException("unknown node type: " + type);
+        }
+    }
+
+    private int readVInt() {
+        byte b = bytes[pos++];
+        int i = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = bytes[pos++];
+            i |= (b & 0x7F) << shift;
+        }
+        return i;
+    }
+}
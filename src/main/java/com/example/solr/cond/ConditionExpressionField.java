@@ -2,47 +2,230 @@ package com.example.solr.cond;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.response.TextResponseWriter;
 import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.uninverting.UninvertingReader;
 
 /**
  * 条件式専用 FieldType。
- * DocValues にバイナリとして格納し、インデックスは行わない。
+ * DocValues にバイナリとして格納し、葉 ID は別名のフィールドにポスティング
+ * （{@link #leavesField(String)}）と SortedSetDocValues（{@link #leafDictField(String)}、
+ * セグメントごとの葉辞書）として書く。バイナリ中の葉はこの葉辞書の並びでのローカル番号になっている。
+ * 式の大きさや定数かどうかも {@link #statsField(String)} に term として書き、セグメントの統計
+ * （{@link ConditionSegmentStats}）にする。
+ * <p>
+ * {@code storage="sorted"} を指定すると、条件式を葉テーブル付きのバイト列にして
+ * SortedDocValues に格納する。同じ式は同じ ordinal になるので、検索時は
+ * 異なる式ごとに一度だけ評価すれば済む（値は 32766 バイトまで）。
+ * <p>
+ * {@code canonicalize="true"} を指定すると、式を {@link ConditionExpressionCanonicalizer} で
+ * 正規形にしてから格納する。
+ * <p>
+ * 変換した式は {@code compileCacheSize}（既定 4096、0 なら使わない）件まで覚えておき、
+ * 同じ式の文書では変換し直さない。正規化しない場合の変換は {@link ConditionExpressionCompiler} による。
+ * <p>
+ * 保存フィールドは書かない。検索結果で式を返すには {@link ConditionExpressionTransformerFactory}
+ * （{@code fl=[cond]}）を使う。DocValues の値から式に戻す {@link #toObject(SchemaField, BytesRef)} は
+ * JSON Facet の terms などで使われるが、Solr 9.4 の useDocValuesAsStored は SORTED / BINARY の値を
+ * FieldType を通さずに返す（UTF-8 の文字列かバイト列のまま）ので、保存しないフィールドに
+ * useDocValuesAsStored を明示するとスキーマの読み込みで拒否する。
  */
 public class ConditionExpressionField extends FieldType {
+    /** 葉 ID をインデックスするフィールド名のサフィックス */
+    public static final String LEAVES_FIELD_SUFFIX = "__leaves";
+    /**
+     * 葉辞書（SortedSetDocValues）のフィールド名のサフィックス。
+     * 葉を含まない式（定数）の文書にも目印のポスティングは付くので、ポスティングとは別名にする。
+     */
+    public static final String LEAF_DICT_FIELD_SUFFIX = "__leafdict";
+    /** 式の性質（{@link ConditionSegmentStats}）をインデックスするフィールド名のサフィックス */
+    public static final String STATS_FIELD_SUFFIX = "__stats";
+
+    /**
+     * 葉がすべて偽でもマッチする文書（NOT を含む式など）に付ける目印の term。
+     * 葉 ID は英数字のみ（式の変換で検査する）なので衝突しない。ポスティングにだけ入れ、葉辞書には入れない。
+     */
+    public static final String MATCH_WITHOUT_LEAVES = "\u0000";
+
+    public static String leavesField(String field) {
+        return field + LEAVES_FIELD_SUFFIX;
+    }
+
+    public static String leafDictField(String field) {
+        return field + LEAF_DICT_FIELD_SUFFIX;
+    }
+
+    public static String statsField(String field) {
+        return field + STATS_FIELD_SUFFIX;
+    }
+
+    /** 条件式の DocValues の形式 */
+    public enum Storage { BINARY, SORTED }
+
+    private Storage storage = Storage.BINARY;
+    private boolean canonicalize = false;
+    private CompiledExpressionCache compileCache = new CompiledExpressionCache(4096);
+
+    @Override
+    protected void init(IndexSchema schema, Map<String, String> args) {
+        String s = args.remove("storage");
+        if (s != null) storage = Storage.valueOf(s.toUpperCase(Locale.ROOT));
+        String c = args.remove("canonicalize");
+        if (c != null) canonicalize = Boolean.parseBoolean(c);
+        String size = args.remove("compileCacheSize");
+        if (size != null) compileCache = new CompiledExpressionCache(Integer.parseInt(size));
+        // useDocValuesAsStored では式の文字列にならない（checkSchemaField）ので、既定では使わない。
+        // 式の文字列は [cond]（ConditionExpressionTransformerFactory）で返す
+        if ((trueProperties & USE_DOCVALUES_AS_STORED) == 0) properties &= ~USE_DOCVALUES_AS_STORED;
+        super.init(schema, args);
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /** インデックスする形に変換する。式が不正なら IllegalArgumentException */
+    public CompiledExpression compile(String expr) {
+        return compileCache.get(expr, canonicalize
+                ? e -> ConditionExpressionParser.compile(e, true)
+                : ConditionExpressionCompiler::compile);
+    }
+
     @Override
     public boolean isTokenized() {
         return false;
     }
 
+    @Override
+    public void checkSchemaField(SchemaField field) {
+        super.checkSchemaField(field);
+        if (field.hasDocValues() && !field.stored() && field.useDocValuesAsStored()) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "useDocValuesAsStored is not supported on "
+                    + field.getName() + ": Solr returns the raw docValues bytes; use fl=[cond] instead");
+        }
+    }
+
     @Override
     public UninvertingReader.Type getUninversionType(SchemaField sf) {
         return UninvertingReader.Type.SORTED;
     }
 
+    /**
+     * 元の文字列があればそれを、DocValues の値なら戻した式を書く。
+     * 戻せない storage=binary の木（{@link #toObject(SchemaField, BytesRef)}）は null になる。
+     */
     @Override
     public void write(TextResponseWriter writer, String name, IndexableField f)
             throws IOException {
+        String str = f.stringValue();
         BytesRef val = f.binaryValue();
-        if (val != null) {
-            writer.writeStr(name, val.utf8ToString(), true);
+        String text = str != null ? str : val != null ? decompile(val) : null;
+        if (text != null) {
+            writer.writeStr(name, text, true);
         } else {
             writer.writeNull(name);
         }
     }
 
+    /**
+     * DocValues の値を式の文字列に戻す。storage=sorted は葉テーブルから戻す。storage=binary の木は
+     * 葉辞書が無いと葉を戻せないので、葉を含まない式か古い形式の式だけ戻し、ほかは BAD_REQUEST にする
+     * （文書ごとに戻すには {@code fl=[cond]} を使う）。
+     */
+    @Override
+    public Object toObject(SchemaField sf, BytesRef term) {
+        String text = decompile(term);
+        if (text == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    "storage=binary expressions of " + sf.getName() + " need the leaf dictionary; use fl=[cond]");
+        }
+        return text;
+    }
+
+    /** facet.field などの値。{@link #toObject(SchemaField, BytesRef)} と同じく式に戻す */
+    @Override
+    public CharsRef indexedToReadable(BytesRef input, CharsRefBuilder output) {
+        String text = decompile(input);
+        if (text == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    "storage=binary expressions need the leaf dictionary; use fl=[cond]");
+        }
+        output.copyChars(text.toCharArray(), 0, text.length());
+        return output.get();
+    }
+
+    /** 葉を含む storage=binary の木は葉辞書が無いと戻せないので null */
+    private String decompile(BytesRef value) {
+        if (storage == Storage.SORTED) return ConditionExpressionDecompiler.decompileWithLeafTable(value);
+        try {
+            return ConditionExpressionDecompiler.decompileWithoutLeafDict(value);
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+
     @Override
     public IndexableField createField(SchemaField field, Object value) {
         if (value == null) return null;
-        byte[] bytes = ConditionExpressionParser.parseToBytes(value.toString());
-        return new BinaryDocValuesField(field.getName(), new BytesRef(bytes));
+        return docValuesField(field.getName(), compile(value.toString()), storage);
+    }
+
+    @Override
+    public List<IndexableField> createFields(SchemaField field, Object value) {
+        if (value == null) return List.of();
+        return luceneFields(field.getName(), compile(value.toString()), storage);
+    }
+
+    /** 1 文書分の Lucene のフィールド（DocValues・葉のポスティング・葉辞書・統計） */
+    static List<IndexableField> luceneFields(String name, CompiledExpression compiled, Storage storage) {
+        String leavesField = leavesField(name);
+        String leafDictField = leafDictField(name);
+        List<IndexableField> fields = new ArrayList<>(2 * compiled.leaves().size() + 4);
+        fields.add(docValuesField(name, compiled, storage));
+        for (BytesRef leaf : compiled.leaves()) {
+            fields.add(new StringField(leavesField, leaf, Field.Store.NO));
+            fields.add(new SortedSetDocValuesField(leafDictField, leaf));
+        }
+        if (compiled.matchesWithoutLeaves()) {
+            fields.add(new StringField(leavesField, MATCH_WITHOUT_LEAVES, Field.Store.NO));
+        }
+        for (String term : ConditionSegmentStats.terms(compiled)) {
+            fields.add(new StringField(statsField(name), term, Field.Store.NO));
+        }
+        return fields;
+    }
+
+    private static IndexableField docValuesField(String name, CompiledExpression compiled, Storage storage) {
+        if (storage == Storage.SORTED) {
+            // SortedDocValues の値は term と同じ長さまで。超えると IndexWriter が文書ごと拒否するので先に 400 にする
+            byte[] bytes = compiled.bytesWithLeafTable();
+            if (bytes.length > IndexWriter.MAX_TERM_LENGTH) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "expression of " + name + " is "
+                        + bytes.length + " bytes with its leaf table; storage=sorted allows up to "
+                        + IndexWriter.MAX_TERM_LENGTH + " (use storage=binary)");
+            }
+            return new SortedDocValuesField(name, new BytesRef(bytes));
+        }
+        return new BinaryDocValuesField(name, new BytesRef(compiled.bytes()));
     }
 
     @Override
@@ -3,6 +3,8 @@ package com.example.solr.cond;
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.util.BytesRef;
+
 public class ConditionExpressionParser {
 
     private static class Tokenizer {
@@ -43,6 +45,10 @@ public class ConditionExpressionParser {
         void skipWs() {
             while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
         }
+
+        String rest() {
+            return s.substring(pos).trim();
+        }
     }
 
     public static abstract class Node {}
@@ -62,10 +68,25 @@ public class ConditionExpressionParser {
         final Node child;
         Not(Node c) { this.child = c; }
     }
+    /** {@code AT LEAST k OF (X, Y, ...)}: 子のうち k 個以上が真 */
+    public static class AtLeast extends Node {
+        final int k;
+        final List<Node> children;
+        AtLeast(int k, List<Node> c) { this.k = k; this.children = c; }
+    }
+    /** 正規化で畳み込まれた定数。式の文法には現れない */
+    public static class Const extends Node {
+        static final Const TRUE = new Const(true);
+        static final Const FALSE = new Const(false);
+        final boolean value;
+        private Const(boolean value) { this.value = value; }
+    }
 
     public static Node parse(String expr) {
         Tokenizer t = new Tokenizer(expr);
-        return parseOr(t);
+        Node node = parseOr(t);
+        if (t.peek() != null) throw new IllegalArgumentException("trailing tokens: " + t.rest());
+        return node;
     }
 
     private static Node parseOr(Tokenizer t) {
@@ -116,37 +137,154 @@ public class ConditionExpressionParser {
         }
         if (tok.equalsIgnoreCase("AND") || tok.equalsIgnoreCase("OR") || tok.equalsIgnoreCase("NOT"))
             throw new IllegalArgumentException("unexpected operator: " + tok);
+        // AT は LEAST が続くときだけ演算子。それ以外は葉 ID として扱う
+        String next = t.peek();
+        if (tok.equalsIgnoreCase("AT") && next != null && next.equalsIgnoreCase("LEAST")) {
+            t.next();
+            return parseAtLeast(t);
+        }
+        // 葉 ID は英数字のみ（目印の term やパターンの * ? と衝突しない）
+        if (!Character.isLetterOrDigit(tok.charAt(0))) throw new IllegalArgumentException("invalid leaf id: " + tok);
         return new Leaf(tok);
     }
 
+    // AT LEAST の後: k OF ( 式 , 式 , ... )
+    private static Node parseAtLeast(Tokenizer t) {
+        String num = t.next();
+        int k;
+        try {
+            k = Integer.parseInt(num);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expected number after AT LEAST: " + num);
+        }
+        if (!"OF".equalsIgnoreCase(t.next())) throw new IllegalArgumentException("expected OF");
+        if (!"(".equals(t.next())) throw new IllegalArgumentException("expected (");
+        List<Node> list = new ArrayList<>();
+        while (true) {
+            list.add(parseOr(t));
+            String c = t.next();
+            if (")".equals(c)) break;
+            if (!",".equals(c)) throw new IllegalArgumentException("expected , or )");
+        }
+        if (k < 1 || k > list.size()) {
+            throw new IllegalArgumentException("AT LEAST " + k + " OF " + list.size() + " children");
+        }
+        return new AtLeast(k, list);
+    }
+
     // ---- serialization ----
+    //
+    // 葉は ID 文字列ではなく「その式に現れる葉 ID を UTF-8 バイト順に並べたときの番号」を書く。
+    // 同じ並びは葉辞書フィールドの SortedSetDocValues の ordinal 順と一致するので、
+    // 検索時は文書の ordinal を順に読めば番号 → 真偽が引ける。
+    // 書くのは常に版 2（ConditionEvaluator#FORMAT_V2 で始まる形式）。
 
     public static byte[] parseToBytes(String expr) {
+        return compile(expr).bytes();
+    }
+
+    /**
+     * バイト列に加えて、葉辞書・ポスティング用の葉 ID と
+     * 「葉がすべて偽でもマッチするか」を求める。
+     */
+    public static CompiledExpression compile(String expr) {
+        return compile(expr, false);
+    }
+
+    /** {@code canonicalize} なら {@link ConditionExpressionCanonicalizer} で正規形にしてから書く */
+    public static CompiledExpression compile(String expr, boolean canonicalize) {
         Node root = parse(expr);
+        if (canonicalize) root = ConditionExpressionCanonicalizer.canonicalize(root);
+        TreeMap<BytesRef, Integer> leaves = new TreeMap<>();
+        collectLeaves(root, leaves);
+        int i = 0;
+        for (Map.Entry<BytesRef, Integer> e : leaves.entrySet()) e.setValue(i++);
+        byte[] bytes = toBytes(root, leaves);
+        boolean matchesWithoutLeaves = ConditionEvaluator.evaluate(
+                new BytesRef(bytes), new long[(leaves.size() + 63) >>> 6]);
+        return new CompiledExpression(bytes, List.copyOf(leaves.keySet()), matchesWithoutLeaves);
+    }
+
+    private static void collectLeaves(Node n, Map<BytesRef, Integer> out) {
+        if (n instanceof Leaf leaf) {
+            out.put(new BytesRef(leaf.id), -1);
+        } else if (n instanceof And and) {
+            for (Node c : and.children) collectLeaves(c, out);
+        } else if (n instanceof Or or) {
+            for (Node c : or.children) collectLeaves(c, out);
+        } else if (n instanceof Not not) {
+            collectLeaves(not.child, out);
+        } else if (n instanceof AtLeast atLeast) {
+            for (Node c : atLeast.children) collectLeaves(c, out);
+        }
+    }
+
+    private static byte[] toBytes(Node root, Map<BytesRef, Integer> leaves) {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         try (DataOutputStream dos = new DataOutputStream(out)) {
-            writeNode(root, dos);
+            dos.writeByte(ConditionEvaluator.FORMAT_V2);
+            writeNode(root, leaves, dos);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
         return out.toByteArray();
     }
 
-    private static void writeNode(Node n, DataOutputStream out) throws IOException {
+    private static void writeNode(Node n, Map<BytesRef, Integer> leaves, DataOutputStream out)
+            throws IOException {
         if (n instanceof Leaf leaf) {
-            out.writeByte(0);
-            out.writeUTF(leaf.id);
+            int i = leaves.get(new BytesRef(leaf.id));
+            if (i < ConditionEvaluator.SHORT_LEAF_LIMIT) {
+                out.writeByte(0x80 | i);
+            } else {
+                out.writeByte(0);
+                writeVInt(i, out);
+            }
         } else if (n instanceof And and) {
-            out.writeByte(1);
-            out.writeByte(and.children.size());
-            for (Node c : and.children) writeNode(c, out);
+            writeChildren(1, and.children, leaves, out);
         } else if (n instanceof Or or) {
-            out.writeByte(2);
-            out.writeByte(or.children.size());
-            for (Node c : or.children) writeNode(c, out);
+            writeChildren(2, or.children, leaves, out);
         } else if (n instanceof Not not) {
             out.writeByte(3);
-            writeNode(not.child, out);
+            writeNode(not.child, leaves, out);
+        } else if (n instanceof Const c) {
+            out.writeByte(c.value ? 4 : 5);
+        } else if (n instanceof AtLeast atLeast) {
+            // 型・k・子の数・子の合計バイト長・子 の順（数はいずれも VInt）
+            ByteArrayOutputStream buf = childrenBytes(atLeast.children, leaves);
+            out.writeByte(6);
+            writeVInt(atLeast.k, out);
+            writeVInt(atLeast.children.size(), out);
+            writeVInt(buf.size(), out);
+            buf.writeTo(out);
         } else throw new IOException("unknown node");
     }
+
+    // AND / OR は 型・子の数・子の合計バイト長・子 の順（数は VInt）。バイト長は評価時の読み飛ばしに使う
+    private static void writeChildren(int type, List<Node> children, Map<BytesRef, Integer> leaves,
+                                      DataOutputStream out) throws IOException {
+        ByteArrayOutputStream buf = childrenBytes(children, leaves);
+        out.writeByte(type);
+        writeVInt(children.size(), out);
+        writeVInt(buf.size(), out);
+        buf.writeTo(out);
+    }
+
+    private static ByteArrayOutputStream childrenBytes(List<Node> children, Map<BytesRef, Integer> leaves)
+            throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(buf)) {
+            for (Node c : children) writeNode(c, leaves, dos);
+        }
+        return buf;
+    }
+
+    // Lucene の DataOutput#writeVInt と同じ形式
+    private static void writeVInt(int i, DataOutputStream out) throws IOException {
+        while ((i & ~0x7F) != 0) {
+            out.writeByte((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        out.writeByte(i);
+    }
 }
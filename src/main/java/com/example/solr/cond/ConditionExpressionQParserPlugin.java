@@ -1,28 +1,187 @@
 package com.example.solr.cond;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
 import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.metrics.SolrMetricsContext;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QParserPlugin;
 
-public class ConditionExpressionQParserPlugin extends QParserPlugin {
+/**
+ * {@code {!cond field=... true_ids=A,B}} のクエリパーサー。
+ * {@code true_ids=A:2.5,B} のように重みを付けると、マッチした文書を重みでスコアづけする
+ * （省略した ID の重みは 1）。
+ * <p>
+ * 真の葉 ID は次のいずれかで渡す。
+ * <ul>
+ *   <li>{@code true_ids}: カンマ区切り。大きな集合は {@code true_ids=$ids} として POST の本文で渡せる。
+ *       {@code R1*} や {@code R?S2*} のように {@code *}・{@code ?} を含む要素はパターン（{@link LeafIdPatterns}）で、
+ *       当てはまる葉をセグメントごとに葉辞書から求める（重みは付けられない）</li>
+ *   <li>{@code true_ids_bin}: {@link ActivationSet#encode} の形式</li>
+ *   <li>{@code set}: {@link ActivationSetHandler} で登録した集合の名前</li>
+ * </ul>
+ * <p>
+ * solrconfig.xml の初期化引数:
+ * <ul>
+ *   <li>{@code resultCache}: 結果を入れるユーザー定義キャッシュの名前（{@link ConditionResultCache}）。
+ *       {@code cache=false} を付けたクエリはこのキャッシュもセッションキャッシュも使わない</li>
+ *   <li>{@code sessionCache}: {@code session=...} を付けたクエリの直前の結果を入れるユーザー定義キャッシュの名前。
+ *       同じセッションで真の葉 ID が少しだけ変わったときは、変わった葉を含む文書だけを評価し直す</li>
+ *   <li>{@code parallelThreshold}: maxDoc がこれ以上のセグメントは分割して並列に評価する。省略時は並列化しない</li>
+ *   <li>{@code parallelism}: 並列評価のスレッド数。0 なら ForkJoinPool の共通プールを使う（既定はコア数）</li>
+ *   <li>{@code parallelChunkSize}: 並列評価の 1 タスクあたりの doc 数（64 の倍数、既定 65536）</li>
+ *   <li>{@code bddMaxNodes}: 正なら、セグメントの式をまとめた二分決定図（{@link ConditionBdd}）を
+ *       このノード数まで作って評価に使う。重み付きのスコア計算には使わない（既定 0 = 使わない）</li>
+ * </ul>
+ * 評価の統計（{@link ConditionMetrics}）はコアのメトリクスに {@code QUERY.<クラス名>.*} として出る。
+ * {@code debugQuery=true} なら、メインのクエリとして使ったときにセグメントごとの内訳をデバッグ情報
+ * （{@code debug/cond}）に出す。
+ */
+public class ConditionExpressionQParserPlugin extends QParserPlugin implements AutoCloseable {
+    private volatile ConditionQueryConfig config = ConditionQueryConfig.DEFAULT;
+    private ForkJoinPool ownPool;  // close() で止める
+    private final ActivationSetRegistry activationSets = new ActivationSetRegistry();
+    private volatile SolrMetricsContext metricsContext;
+
+    @Override
+    public void init(NamedList<?> args) {
+        if (args == null) return;
+        Object cache = args.get("resultCache");
+        String resultCache = cache == null ? null : cache.toString();
+        Object session = args.get("sessionCache");
+        String sessionCache = session == null ? null : session.toString();
+        ExecutorService executor = null;
+        int threshold = Integer.MAX_VALUE;
+        Object t = args.get("parallelThreshold");
+        if (t != null) {
+            threshold = Integer.parseInt(t.toString());
+            Object p = args.get("parallelism");
+            int parallelism = p == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(p.toString());
+            if (parallelism > 0) {
+                executor = ownPool = new ForkJoinPool(parallelism);
+            } else {
+                executor = ForkJoinPool.commonPool();
+            }
+        }
+        Object c = args.get("parallelChunkSize");
+        int chunkSize = c == null ? ConditionQueryConfig.DEFAULT.chunkSize() : Integer.parseInt(c.toString());
+        Object b = args.get("bddMaxNodes");
+        int bddMaxNodes = b == null ? 0 : Integer.parseInt(b.toString());
+        config = new ConditionQueryConfig(resultCache, sessionCache, executor, threshold, chunkSize,
+                bddMaxNodes, config.metrics());
+    }
+
+    public ActivationSetRegistry getActivationSets() {
+        return activationSets;
+    }
+
+    ConditionQueryConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public void initializeMetrics(SolrMetricsContext parentContext, String scope) {
+        SolrMetricsContext context = parentContext.getChildContext(this);
+        config = config.withMetrics(new ConditionMetrics(context, scope));
+        metricsContext = context;
+    }
+
+    @Override
+    public SolrMetricsContext getSolrMetricsContext() {
+        return metricsContext;
+    }
+
+    @Override
+    public void close() {
+        if (ownPool != null) ownPool.shutdown();
+        if (metricsContext != null) metricsContext.unregister();
+    }
+
     @Override
     public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
         return new QParser(qstr, localParams, params, req) {
+            private ConditionStats stats;
+
+            @Override
+            public void addDebugInfo(NamedList<Object> debugInfo) {
+                super.addDebugInfo(debugInfo);
+                if (stats != null) debugInfo.add("cond", stats.toNamedList());
+            }
+
             @Override
             public Query parse() {
                 String field = localParams.get("field");
                 String trueIdsCsv = localParams.get("true_ids", "");
                 if (field == null) throw new IllegalArgumentException("missing local param: field");
-                // parse true ids into set of strings
+                String session = localParams.get("session");
+                if (req.getParams().getBool(CommonParams.DEBUG_QUERY, false)) stats = new ConditionStats();
+                String setName = localParams.get("set");
+                if (setName != null) {
+                    ActivationSet set = activationSets.get(setName);
+                    if (set == null) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                "unknown activation set: " + setName);
+                    }
+                    return new ConditionExpressionQuery(field, set, java.util.Map.of(), config, session, stats);
+                }
+                String encoded = localParams.get("true_ids_bin");
+                if (encoded != null) {
+                    java.util.Set<String> trueIds = new java.util.HashSet<>();
+                    java.util.Set<String> patterns = new java.util.HashSet<>();
+                    for (String id : ActivationSet.decode(encoded)) {
+                        (LeafIdPatterns.isPattern(id) ? patterns : trueIds).add(id);
+                    }
+                    ActivationSet set = ActivationSet.of(null, trueIds, patterns(patterns));
+                    return new ConditionExpressionQuery(field, set, java.util.Map.of(), config, session, stats);
+                }
+                // parse true ids (optionally "id:weight") into set of strings
                 java.util.Set<String> trueIds = new java.util.HashSet<>();
+                java.util.Set<String> patterns = new java.util.HashSet<>();
+                java.util.Map<String, Float> weights = new java.util.HashMap<>();
+                boolean weighted = false;
                 for (String s : trueIdsCsv.split(",")) {
                     s = s.trim();
-                    if (!s.isEmpty()) trueIds.add(s);
+                    if (s.isEmpty()) continue;
+                    int colon = s.indexOf(':');
+                    float weight = 1f;
+                    if (colon >= 0) {
+                        try {
+                            weight = Float.parseFloat(s.substring(colon + 1).trim());
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("invalid weight in true_ids: " + s, e);
+                        }
+                        s = s.substring(0, colon).trim();
+                        weighted = true;
+                    }
+                    if (LeafIdPatterns.isPattern(s)) {
+                        patterns.add(s);
+                        continue;
+                    }
+                    trueIds.add(s);
+                    weights.put(s, weight);
                 }
-                return new ConditionExpressionQuery(field, trueIds);
+                if (weighted && !patterns.isEmpty()) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                            "weights cannot be combined with leaf id patterns: " + patterns);
+                }
+                return new ConditionExpressionQuery(field,
+                        ActivationSet.of(null, trueIds, patterns(patterns)),
+                        weighted ? weights : java.util.Map.of(), config, session, stats);
             }
         };
     }
+
+    private static LeafIdPatterns patterns(java.util.Collection<String> patterns) {
+        try {
+            return LeafIdPatterns.of(patterns);
+        } catch (IllegalArgumentException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
 }
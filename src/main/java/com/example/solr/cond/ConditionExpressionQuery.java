@@ -2,24 +2,135 @@ package com.example.solr.cond;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BitSetIterator;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.ThreadInterruptedException;
 import org.apache.lucene.search.*;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * 条件式が真になる文書にマッチするクエリ。
+ * {@code cache=false cost>=100} を付けると PostFilter として、他の条件をすべて通った文書だけを評価する。
+ * <p>
+ * 真の葉 ID に重みを付けると、マッチした文書を式を真にした葉の重みでスコアづけする
+ * （{@link ConditionEvaluator}）。重みが無ければスコアは常に 1。
+ * <p>
+ * セグメントごとに、真の葉のポスティングの文書頻度とセグメントの統計（{@link ConditionSegmentStats}）から
+ * 候補の作り方・見積もった候補数（{@code cost()}）・AND / OR の子の評価順を決める（{@link Plan}）。
+ * 真の葉 ID のパターン（{@link LeafIdPatterns}）は、計画を立てるときにセグメントの葉の term と突き合わせる。
+ */
+public class ConditionExpressionQuery extends ExtendedQueryBase implements PostFilter {
+    // 1 文書の式の評価にかかるおおよその手間（TwoPhaseIterator#matchCost）。統計があれば式の平均バイト数を使う
+    static final float MATCH_COST = 50f;
+    // これ以下の term 数なら候補のポスティングを遅延して辿る（BooleanQuery の既定の上限に合わせる）
+    static final int LAZY_DISJUNCTION_MAX_TERMS = 16;
+    // セッションの差分を評価し直す文書がこの割合（maxDoc に対する）を超えたら全体を評価し直す
+    static final int SESSION_DELTA_MAX_FRACTION = 4;
 
-public class ConditionExpressionQuery extends Query {
     private final String dvField;
+    private final String leavesField;
+    private final ActivationSet set;
     private final Set<String> trueIds;
+    // ID のほかに真にする葉のパターン
+    private final LeafIdPatterns patterns;
+    // 名前付きの集合から作った場合の名前（toString 用）。equals には含めない
+    private final String setName;
+    // 真の葉 ID ごとの重み（ソート済み）。空ならスコアは定数
+    private final Map<String, Float> weights;
+    // 候補文書を集めるための term（ソート済み）
+    private final List<BytesRef> candidateTerms;
+    // 実行方法の設定。equals には含めない
+    private final ConditionQueryConfig config;
+    // 結果には影響しないので equals には含めない
+    private final String session;
+    // このリクエストの評価の内訳（debugQuery のときだけ）。equals には含めない
+    private final ConditionStats stats;
+    // 真の葉 ID が数万になっても hashCode を毎回計算しない
+    private final int hash;
 
     public ConditionExpressionQuery(String dvField, Set<String> trueIds) {
+        this(dvField, trueIds, ConditionQueryConfig.DEFAULT);
+    }
+
+    ConditionExpressionQuery(String dvField, Set<String> trueIds, ConditionQueryConfig config) {
+        this(dvField, trueIds, Map.of(), config);
+    }
+
+    /** 真の葉 ID とその重み（0 以上の有限値） */
+    public ConditionExpressionQuery(String dvField, Map<String, Float> weights) {
+        this(dvField, weights, ConditionQueryConfig.DEFAULT);
+    }
+
+    ConditionExpressionQuery(String dvField, Map<String, Float> weights, ConditionQueryConfig config) {
+        this(dvField, weights.keySet(), weights, config);
+    }
+
+    private ConditionExpressionQuery(String dvField, Set<String> trueIds, Map<String, Float> weights,
+                                     ConditionQueryConfig config) {
+        this(dvField, ActivationSet.of(null, trueIds), weights, config, null, null);
+    }
+
+    /**
+     * @param set     真の葉 ID。登録済みの集合（{@link ActivationSetRegistry}）なら前処理をそのまま使う
+     * @param weights 真の葉 ID ごとの重み。空ならスコアは定数
+     * @param session 直前の結果を引き継ぐセッションのキー（{@code sessionCache}）。null なら引き継がない
+     * @param stats   評価の内訳を残す先。null なら残さない
+     */
+    ConditionExpressionQuery(String dvField, ActivationSet set, Map<String, Float> weights,
+                             ConditionQueryConfig config, String session, ConditionStats stats) {
+        for (Map.Entry<String, Float> e : weights.entrySet()) {
+            float w = e.getValue();
+            if (!(w >= 0) || Float.isInfinite(w)) {
+                throw new IllegalArgumentException("invalid weight for " + e.getKey() + ": " + w);
+            }
+        }
+        if (!weights.isEmpty() && !set.patterns().isEmpty()) {
+            throw new IllegalArgumentException("weights cannot be combined with leaf id patterns: " + set.patterns());
+        }
         this.dvField = dvField;
-        this.trueIds = Collections.unmodifiableSet(new HashSet<>(trueIds));
+        this.leavesField = ConditionExpressionField.leavesField(dvField);
+        this.set = set;
+        // 順序に依らない正規形（toString もキャッシュのキーも安定する）
+        this.trueIds = set.ids();
+        this.patterns = set.patterns();
+        this.setName = set.name();
+        this.candidateTerms = set.candidateTerms();
+        this.weights = Collections.unmodifiableSortedMap(new TreeMap<>(weights));
+        this.config = config;
+        this.session = session;
+        this.stats = stats;
+        this.hash = Objects.hash(dvField, set.contentHash(), this.weights);
     }
 
     @Override
     public String toString(String field) {
+        if (!weights.isEmpty()) {
+            return "ConditionExpressionQuery(field=" + dvField + ", weights=" + weights + ")";
+        }
+        if (setName != null) {
+            return "ConditionExpressionQuery(field=" + dvField + ", set=" + setName
+                    + ", size=" + trueIds.size() + ")";
+        }
+        if (!patterns.isEmpty()) {
+            return "ConditionExpressionQuery(field=" + dvField + ", trueIds=" + trueIds + ", patterns=" + patterns + ")";
+        }
         return "ConditionExpressionQuery(field=" + dvField + ", trueIds=" + trueIds + ")";
     }
 
@@ -32,114 +143,511 @@ public class ConditionExpressionQuery extends Query {
     public boolean equals(Object other) {
         if (!(other instanceof ConditionExpressionQuery)) return false;
         ConditionExpressionQuery o = (ConditionExpressionQuery) other;
-        return dvField.equals(o.dvField) && trueIds.equals(o.trueIds);
+        return hash == o.hash && dvField.equals(o.dvField) && trueIds.equals(o.trueIds)
+                && patterns.equals(o.patterns) && weights.equals(o.weights);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(dvField, trueIds);
+        return hash;
+    }
+
+    /** 候補文書の作り方 */
+    enum Strategy {
+        /** 候補が無い */
+        NONE,
+        /** 真の葉のポスティングを遅延して辿る */
+        LAZY_POSTINGS,
+        /** 真の葉のポスティングの和集合を先に作る */
+        POSTINGS_UNION,
+        /** 式を持つ全文書（葉のポスティングが無いか、候補が全文書に近い） */
+        ALL_DOCS
+    }
+
+    /**
+     * 1 セグメントの評価の計画。
+     *
+     * @param cost             見積もった候補数
+     * @param matchCost        1 文書の評価の手間
+     * @param leavesFirstInAnd AND の子のうち葉を先に評価するか（葉が偽になりやすい）
+     * @param leavesFirstInOr  OR の子のうち葉を先に評価するか（葉が真になりやすい）
+     * @param stats            セグメントの統計。統計を書く前のセグメントでは null
+     * @param legacyDocs       統計の term を持たない（古い形式の）文書が混ざっているか。そうなら常に全文書を評価する
+     * @param terms            候補を集める term（目印の term・真の葉 ID・パターンに当てはまる葉）
+     */
+    record Plan(Strategy strategy, long cost, float matchCost, boolean leavesFirstInAnd,
+                boolean leavesFirstInOr, ConditionSegmentStats stats, boolean legacyDocs, List<BytesRef> terms) {}
+
+    /**
+     * 候補の数は真の葉（と目印の term）の文書頻度の和で見積もり、式を持つ文書数に達すれば全文書を評価する。
+     * 評価順は、葉の出現のうち真の葉の割合が半分未満なら AND で、それ以上なら OR で葉を先にする。
+     */
+    Plan plan(LeafReaderContext context) throws IOException {
+        LeafReader reader = context.reader();
+        ConditionSegmentStats stats = ConditionSegmentStats.read(reader, dvField);
+        float matchCost = stats == null ? MATCH_COST : (float) Math.max(1, stats.meanExpressionBytes());
+        long docCount = stats == null ? reader.maxDoc() : stats.docCount();
+        // マージはバイト列をそのまま写すので、古い形式の文書が新しいセグメントに混ざることがある。
+        // そういう文書は葉のポスティングに載っていないので、ポスティングからは候補を集めない
+        boolean legacyDocs = ConditionSegmentStats.hasDocsWithoutStats(reader, dvField, stats);
+        Terms terms = reader.terms(leavesField);
+        if (terms == null || legacyDocs) {
+            if (legacyDocs) docCount = SegmentMatcher.docsWithValue(reader, dvField).cost();
+            Plan plan = new Plan(Strategy.ALL_DOCS, docCount, matchCost, false, false, stats, legacyDocs,
+                    candidateTerms);
+            if (stats != null && this.stats != null) this.stats.recordPlan(context.ord, plan);
+            return plan;
+        }
+        List<BytesRef> segmentTerms = candidateTerms;
+        if (!patterns.isEmpty()) {
+            // パターンに当てはまる葉は term 辞書を一度辿って求める。ID と重なった term は二重に数えない
+            List<BytesRef> matched = patterns.terms(terms);
+            Set<BytesRef> seen = new HashSet<>(candidateTerms);
+            segmentTerms = new ArrayList<>(candidateTerms.size() + matched.size());
+            segmentTerms.addAll(candidateTerms);
+            for (BytesRef term : matched) {
+                if (seen.add(term)) segmentTerms.add(term);
+            }
+        }
+        TermsEnum te = terms.iterator();
+        BytesRef marker = new BytesRef(ConditionExpressionField.MATCH_WITHOUT_LEAVES);
+        long candidates = 0;
+        long trueLeafPostings = 0;
+        for (BytesRef term : segmentTerms) {
+            if (!te.seekExact(term)) continue;
+            candidates += te.docFreq();
+            if (!term.equals(marker)) trueLeafPostings += te.docFreq();
+        }
+        long leafPostings = terms.getSumDocFreq();
+        if (te.seekExact(marker)) leafPostings -= te.docFreq();
+        boolean leavesFirstInAnd = leafPostings > 0 && 2 * trueLeafPostings < leafPostings;
+        boolean leavesFirstInOr = leafPostings > 0 && !leavesFirstInAnd;
+        Strategy strategy;
+        long cost;
+        if (candidates == 0) {
+            strategy = Strategy.NONE;
+            cost = 0;
+        } else if (stats != null && candidates >= docCount) {
+            strategy = Strategy.ALL_DOCS;
+            cost = docCount;
+        } else {
+            strategy = segmentTerms.size() <= LAZY_DISJUNCTION_MAX_TERMS
+                    ? Strategy.LAZY_POSTINGS : Strategy.POSTINGS_UNION;
+            // 常に偽の式は目印の term も葉も持たないので候補にならない
+            cost = Math.min(candidates, docCount - (stats == null ? 0 : stats.alwaysFalse()));
+        }
+        Plan plan = new Plan(strategy, cost, matchCost, leavesFirstInAnd, leavesFirstInOr, stats, false,
+                segmentTerms);
+        if (stats != null && this.stats != null) this.stats.recordPlan(context.ord, plan);
+        return plan;
     }
 
     @Override
+    public DelegatingCollector getFilterCollector(IndexSearcher searcher) {
+        return new DelegatingCollector() {
+            private SegmentMatcher matcher;
+
+            @Override
+            protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                if (matcher != null) recordPostFilter(this.context, matcher);
+                super.doSetNextReader(context);
+                matcher = matcher(context, plan(context));
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                if (matcher != null && matcher.matches(doc)) super.collect(doc);
+            }
+
+            @Override
+            public void complete() throws IOException {
+                if (matcher != null) recordPostFilter(context, matcher);
+                matcher = null;
+                super.complete();
+            }
+        };
+    }
+
+    /** 重み無しの評価。条件式の無いセグメントでは null */
+    private SegmentMatcher matcher(LeafReaderContext context, Plan plan) throws IOException {
+        SegmentMatcher matcher = SegmentMatcher.create(context.reader(), dvField, set, config.bddMaxNodes());
+        if (matcher != null) matcher.leavesFirst(plan.leavesFirstInAnd(), plan.leavesFirstInOr());
+        return matcher;
+    }
+
+    /** セグメント（並列評価ならその区切り）の評価を終えた matcher の数を統計に足す */
+    private void record(LeafReaderContext context, SegmentMatcher matcher, long nanos) {
+        if (config.metrics() != null) config.metrics().record(matcher, nanos, false);
+        if (stats != null) stats.record(context.ord, context.reader().maxDoc(), matcher, nanos);
+    }
+
+    /** PostFilter（{@link #getFilterCollector}）として評価したセグメントの分。時間は測らない */
+    private void recordPostFilter(LeafReaderContext context, SegmentMatcher matcher) {
+        if (config.metrics() != null) config.metrics().record(matcher, -1, true);
+        if (stats != null) stats.record(context.ord, context.reader().maxDoc(), matcher, -1);
+    }
+
+    private boolean recording() {
+        return config.metrics() != null || stats != null;
+    }
+
+    /**
+     * 候補を最後まで辿ったときに matcher の数を統計に足す。
+     * 他の節や Collector と交互に進むので時間は測らない。途中で打ち切られた分は足さない。
+     */
+    private DocIdSetIterator recordWhenExhausted(LeafReaderContext context, SegmentMatcher matcher,
+                                                 DocIdSetIterator in) {
+        if (!recording()) return in;
+        return new DocIdSetIterator() {
+            private boolean recorded;
+
+            @Override
+            public int docID() {
+                return in.docID();
+            }
+
+            @Override
+            public int nextDoc() throws IOException {
+                return check(in.nextDoc());
+            }
+
+            @Override
+            public int advance(int target) throws IOException {
+                return check(in.advance(target));
+            }
+
+            private int check(int doc) {
+                if (doc == NO_MORE_DOCS && !recorded) {
+                    recorded = true;
+                    record(context, matcher, -1);
+                }
+                return doc;
+            }
+
+            @Override
+            public long cost() {
+                return in.cost();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
     public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
-        return new ConditionWeight(this);
+        SolrCache<ConditionResultCache.Key, FixedBitSet> cache = null;
+        SolrCache<ConditionResultCache.SessionKey, ConditionResultCache.SessionState> sessions = null;
+        // {!cond cache=false} は結果キャッシュもセッションも使わず、毎回式を評価する
+        if (getCache() && searcher instanceof SolrIndexSearcher solrSearcher) {
+            if (config.resultCache() != null) cache = solrSearcher.getCache(config.resultCache());
+            if (session != null && config.sessionCache() != null) {
+                sessions = solrSearcher.getCache(config.sessionCache());
+            }
+        }
+        return new ConditionWeight(this, scoreMode, boost, cache, sessions);
     }
 
     private class ConditionWeight extends Weight {
-        protected ConditionWeight(Query query) { super(query); }
+        private final ScoreMode scoreMode;
+        private final float boost;
+        private final SolrCache<ConditionResultCache.Key, FixedBitSet> cache;
+        private final SolrCache<ConditionResultCache.SessionKey, ConditionResultCache.SessionState> sessions;
+        // セグメント（LeafReaderContext#ord）ごとの計画。並列評価の区切りごとに作り直さない
+        private final Map<Integer, Plan> plans = new ConcurrentHashMap<>();
+
+        protected ConditionWeight(Query query, ScoreMode scoreMode, float boost,
+                                  SolrCache<ConditionResultCache.Key, FixedBitSet> cache,
+                                  SolrCache<ConditionResultCache.SessionKey, ConditionResultCache.SessionState> sessions) {
+            super(query);
+            this.scoreMode = scoreMode;
+            this.boost = boost;
+            this.cache = cache;
+            this.sessions = sessions;
+        }
+
+        private Plan segmentPlan(LeafReaderContext context) throws IOException {
+            Plan plan = plans.get(context.ord);
+            if (plan == null) {
+                plan = plan(context);
+                plans.put(context.ord, plan);
+            }
+            return plan;
+        }
+
+        /** 結果のビット集合をキャッシュ（セッションか結果キャッシュ）から作るか */
+        private boolean cached(LeafReaderContext context) {
+            return (sessions != null || cache != null) && isCacheable(context);
+        }
+
+        /** 重みでスコアを求めるか。重みが無いかスコアが要らなければ定数スコアで、キャッシュや並列評価が使える */
+        private boolean weighted() {
+            return !weights.isEmpty() && scoreMode.needsScores();
+        }
 
         @Override
         public Explanation explain(LeafReaderContext context, int doc) throws IOException {
-            // return simple explanation
-            BinaryDocValues dv = getBinaryDocValuesOrNull(context, dvField);
-            boolean match = false;
-            if (dv != null) {
-                BytesRef ref = getBytesRefForDoc(dv, doc);
-                if (ref != null) {
-                    match = ConditionEvaluator.evaluate(ref, trueIds);
-                }
+            SegmentMatcher matcher = SegmentMatcher.create(context.reader(), dvField, set, weights);
+            if (matcher == null || !matcher.matches(doc)) {
+                return Explanation.noMatch("ConditionExpressionQuery match=false");
             }
-            return Explanation.match(match ? 1f : 0f, "ConditionExpressionQuery match=" + match);
+            if (weights.isEmpty()) return Explanation.match(1f, "ConditionExpressionQuery match=true");
+            return Explanation.match(matcher.score(doc) * boost,
+                    "ConditionExpressionQuery match=true, weights=" + weights + ", boost=" + boost);
         }
 
         @Override
         public Scorer scorer(LeafReaderContext context) throws IOException {
-            BinaryDocValues dv = getBinaryDocValuesOrNull(context, dvField);
-            if (dv == null) return null;
-            final int maxDoc = context.reader().maxDoc();
-            return new Scorer(this) {
-                private int docID = -1;
+            if (weighted()) {
+                SegmentMatcher matcher = SegmentMatcher.create(context.reader(), dvField, set, weights);
+                if (matcher == null) return null;
+                Plan plan = segmentPlan(context);
+                return new WeightedConditionScorer(this, context.reader(), leavesField, matcher,
+                        recordWhenExhausted(context, matcher, candidates(context, plan)),
+                        weights, boost, plan.legacyDocs(),
+                        scoreMode == ScoreMode.TOP_SCORES);
+            }
+            if (cached(context)) {
+                FixedBitSet bits = sessions != null ? sessionMatches(context)
+                        : cache.computeIfAbsent(
+                                ConditionResultCache.key(context, dvField, set),
+                                k -> matchAll(context));
+                if (bits == null) return null;
+                return new ConstantScoreScorer(this, 1.0f, scoreMode,
+                        new BitSetIterator(bits, bits.approximateCardinality()));
+            }
+            Plan plan = segmentPlan(context);
+            if (plan.strategy() == Strategy.NONE) return null;
+            SegmentMatcher matcher = matcher(context, plan);
+            if (matcher == null) return null;
+            return twoPhaseScorer(context, plan, matcher);
+        }
 
+        /**
+         * 重み無しでキャッシュも使わない場合は、候補を作る前に計画の見積もりを {@code cost()} として返す。
+         * 他の節が先導するなら候補のポスティングの和集合は作らずに済む。
+         */
+        @Override
+        public ScorerSupplier scorerSupplier(LeafReaderContext context) throws IOException {
+            if (weighted() || cached(context)) return super.scorerSupplier(context);
+            Plan plan = segmentPlan(context);
+            if (plan.strategy() == Strategy.NONE) return null;
+            SegmentMatcher matcher = matcher(context, plan);
+            if (matcher == null) return null;
+            return new ScorerSupplier() {
                 @Override
-                public DocIdSetIterator iterator() {
-                    return new DocIdSetIterator() {
-                        private final BytesRef scratch = new BytesRef();
-
-                        @Override
-                        public int docID() { return docID; }
-
-                        @Override
-                        public int nextDoc() throws IOException {
-                            return advance(docID + 1);
-                        }
-
-                        @Override
-                        public int advance(int target) throws IOException {
-                            for (int d = Math.max(target, 0); d < maxDoc; ++d) {
-                                BytesRef ref = getBytesRefForDoc(dv, d);
-                                if (ref == null) continue;
-                                if (ConditionEvaluator.evaluate(ref, trueIds)) {
-                                    docID = d;
-                                    return docID;
-                                }
-                            }
-                            docID = NO_MORE_DOCS;
-                            return NO_MORE_DOCS;
-                        }
-
-                        @Override
-                        public long cost() { return maxDoc; }
-                    };
+                public Scorer get(long leadCost) throws IOException {
+                    return twoPhaseScorer(context, plan, matcher);
                 }
 
                 @Override
-                public int docID() { return docID; }
+                public long cost() {
+                    return plan.cost();
+                }
+            };
+        }
 
+        private Scorer twoPhaseScorer(LeafReaderContext context, Plan plan, SegmentMatcher matcher)
+                throws IOException {
+            final DocIdSetIterator candidates = recordWhenExhausted(context, matcher, candidates(context, plan));
+            // 候補の列挙（ポスティング）で位置を決め、式の評価は matches() でだけ行う。
+            // 他の節と組み合わせたとき、他の節が候補を絞った後の文書だけが評価される
+            TwoPhaseIterator twoPhase = new TwoPhaseIterator(candidates) {
                 @Override
-                public float score() { return 1.0f; }
+                public boolean matches() throws IOException {
+                    return matcher.matches(approximation.docID());
+                }
 
                 @Override
-                public float getMaxScore(int upTo) {
-                    return 1.0f;
+                public float matchCost() {
+                    return plan.matchCost();
                 }
             };
+            return new ConstantScoreScorer(this, 1.0f, scoreMode, twoPhase);
         }
 
+        /**
+         * 式を評価する候補文書。真の葉 ID のいずれかを含む文書と、
+         * 葉がすべて偽でもマッチする文書の和集合になる。
+         * 葉のポスティングが無い（このフィールド型以前に書かれた）セグメントと、候補が全文書に近い場合は
+         * 式を持つ全文書。それ以外は計画に従ってポスティングを遅延して辿るか、先に和集合を作る。
+         */
+        private DocIdSetIterator candidates(LeafReaderContext context, Plan plan) throws IOException {
+            final int maxDoc = context.reader().maxDoc();
+            if (plan.strategy() == Strategy.NONE) return DocIdSetIterator.empty();
+            Terms terms = context.reader().terms(leavesField);
+            if (terms == null || plan.strategy() == Strategy.ALL_DOCS) {
+                return SegmentMatcher.docsWithValue(context.reader(), dvField);
+            }
+            TermsEnum te = terms.iterator();
+            if (plan.strategy() == Strategy.LAZY_POSTINGS) {
+                List<PostingsEnum> postings = new ArrayList<>(plan.terms().size());
+                for (BytesRef term : plan.terms()) {
+                    if (te.seekExact(term)) postings.add(te.postings(null, PostingsEnum.NONE));
+                }
+                if (postings.isEmpty()) return DocIdSetIterator.empty();
+                if (postings.size() == 1) return postings.get(0);
+                return new PostingsDisjunction(postings);
+            }
+            DocIdSetBuilder builder = new DocIdSetBuilder(maxDoc, terms);
+            PostingsEnum postings = null;
+            for (BytesRef term : plan.terms()) {
+                if (te.seekExact(term)) {
+                    postings = te.postings(postings, PostingsEnum.NONE);
+                    builder.add(postings);
+                }
+            }
+            return builder.build().iterator();
+        }
+
+        /**
+         * 大きなセグメントは分割して並列に評価し、結果のビット集合を doc 順に流す。
+         * それ以外（とキャッシュを使う場合、重みでスコアを求める場合）は通常の Scorer による。
+         */
         @Override
-        public boolean isCacheable(LeafReaderContext ctx) { return false; } // conservative
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+            if (weighted() || !config.parallel(context.reader().maxDoc()) || cached(context)) {
+                return super.bulkScorer(context);
+            }
+            FixedBitSet bits = matchAll(context);
+            if (bits == null) return null;
+            return new DefaultBulkScorer(new ConstantScoreScorer(this, 1.0f, scoreMode,
+                    new BitSetIterator(bits, bits.approximateCardinality())));
+        }
+
+        /**
+         * セッションの直前の結果を引き継ぎ、真の葉 ID の差分に関わる文書だけを評価し直す。
+         * 差分の葉を含む文書は葉のポスティング（葉 → 文書の索引）で引く。
+         * 直前の結果が無いか差分が大きければセグメント全体を評価する。
+         */
+        private FixedBitSet sessionMatches(LeafReaderContext context) throws IOException {
+            ConditionResultCache.SessionKey key = ConditionResultCache.sessionKey(context, dvField, session);
+            ConditionResultCache.SessionState prev = sessions.get(key);
+            FixedBitSet bits = prev == null ? null : applyDelta(context, prev);
+            if (bits == null) bits = matchAll(context);
+            if (bits == null) return null;
+            if (prev == null || prev.bits() != bits) {
+                sessions.put(key, new ConditionResultCache.SessionState(trueIds, patterns, bits));
+            }
+            return bits;
+        }
+
+        /**
+         * 直前の結果に差分を当てたもの（直前のビット集合は書き換えない）。当てられなければ null。
+         * パターンが変わった場合は差分を求めずに全体を評価し直す
+         */
+        private FixedBitSet applyDelta(LeafReaderContext context, ConditionResultCache.SessionState prev)
+                throws IOException {
+            if (!prev.patterns().equals(patterns)) return null;
+            if (prev.trueIds().equals(trueIds)) return prev.bits();
+            // 古い形式の文書は葉のポスティングで引けない
+            if (segmentPlan(context).legacyDocs()) return null;
+            Terms terms = context.reader().terms(leavesField);
+            if (terms == null) return null;
+            final int maxDoc = context.reader().maxDoc();
+            TermsEnum te = terms.iterator();
+            List<BytesRef> changed = new ArrayList<>();
+            long cost = changedTerms(te, trueIds, prev.trueIds(), changed)
+                    + changedTerms(te, prev.trueIds(), trueIds, changed);
+            if (cost > maxDoc / SESSION_DELTA_MAX_FRACTION) return null;
+            SegmentMatcher matcher = matcher(context, segmentPlan(context));
+            if (matcher == null) return null;
+            long start = System.nanoTime();
+            DocIdSetBuilder builder = new DocIdSetBuilder(maxDoc, terms);
+            PostingsEnum postings = null;
+            for (BytesRef term : changed) {
+                te.seekExact(term);
+                postings = te.postings(postings, PostingsEnum.NONE);
+                builder.add(postings);
+            }
+            FixedBitSet bits = prev.bits().clone();
+            DocIdSetIterator docs = builder.build().iterator();
+            for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+                if (matcher.matches(d)) {
+                    bits.set(d);
+                } else {
+                    bits.clear(d);
+                }
+            }
+            record(context, matcher, System.nanoTime() - start);
+            return bits;
+        }
 
-        private BinaryDocValues getBinaryDocValuesOrNull(LeafReaderContext ctx, String field) {
+        /** {@code ids} にあって {@code others} に無い葉のうち、このセグメントに現れるもの。戻り値は文書数の和 */
+        private long changedTerms(TermsEnum te, Set<String> ids, Set<String> others, List<BytesRef> out)
+                throws IOException {
+            long cost = 0;
+            for (String id : ids) {
+                if (others.contains(id)) continue;
+                BytesRef term = new BytesRef(id);
+                if (te.seekExact(term)) {
+                    out.add(term);
+                    cost += te.docFreq();
+                }
+            }
+            return cost;
+        }
+
+        /** セグメント全体のマッチ（削除は考慮しない）。条件式の無いセグメントでは null */
+        private FixedBitSet matchAll(LeafReaderContext context) throws IOException {
+            Plan plan = segmentPlan(context);
+            SegmentMatcher matcher = matcher(context, plan);
+            if (matcher == null) return null;
+            final int maxDoc = context.reader().maxDoc();
+            FixedBitSet bits = new FixedBitSet(maxDoc);
+            if (!config.parallel(maxDoc)) {
+                matchRange(context, matcher, candidates(context, plan), bits, 0, maxDoc);
+                return bits;
+            }
+            // 候補の和集合・真の葉の ordinal・BDD の評価済みのノードはセグメントで一度だけ作り、区切りで共有する。
+            // 遅延して辿るポスティングは区切りごとに開いて、区切りの先頭へ飛ぶ
+            FixedBitSet union = null;
+            if (plan.strategy() == Strategy.POSTINGS_UNION) {
+                union = new FixedBitSet(maxDoc);
+                union.or(candidates(context, plan));
+            }
+            final FixedBitSet sharedCandidates = union;
+            // 区切りは 64 の倍数なので、各タスクが書き込む long は重ならない
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int from = 0; from < maxDoc; from += config.chunkSize()) {
+                final int start = from;
+                final int end = Math.min(maxDoc, from + config.chunkSize());
+                tasks.add(() -> {
+                    SegmentMatcher chunk = matcher.fork(context.reader(), dvField);
+                    chunk.leavesFirst(plan.leavesFirstInAnd(), plan.leavesFirstInOr());
+                    DocIdSetIterator candidates = sharedCandidates != null
+                            ? new BitSetIterator(sharedCandidates, sharedCandidates.approximateCardinality())
+                            : candidates(context, plan);
+                    matchRange(context, chunk, candidates, bits, start, end);
+                    return null;
+                });
+            }
             try {
-                return DocValues.getBinary(ctx.reader(), field);
-            } catch (IOException e) {
-                return null;
-            } catch (IllegalArgumentException e) {
-                // field not found
-                return null;
+                for (Future<Void> f : config.executor().invokeAll(tasks)) f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ThreadInterruptedException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) throw io;
+                throw new RuntimeException(e.getCause());
             }
+            return bits;
         }
-    }
 
-    // Solrのバージョンが違っても使えるような不要に柔軟なコードを書こうとしていた
-    // （リフレクションによる）ので、人間が手で書き直した
-    private static BytesRef getBytesRefForDoc(BinaryDocValues dv, int docId) throws IOException {
-        if (dv == null) return null;
+        /** [from, to) の候補のマッチを bits に立てる。{@code matcher} と {@code candidates} はこの呼び出しだけで使う */
+        private void matchRange(LeafReaderContext context, SegmentMatcher matcher, DocIdSetIterator candidates,
+                                FixedBitSet bits, int from, int to) throws IOException {
+            long start = System.nanoTime();
+            for (int d = candidates.advance(from); d < to; d = candidates.nextDoc()) {
+                if (matcher.matches(d)) bits.set(d);
+            }
+            record(context, matcher, System.nanoTime() - start);
+        }
 
-        dv.advance(docId);
-        if (dv.docID() == docId) {
-            return dv.binaryValue();
-        } else {
-            return null;
+        // 結果は DocValues と葉のポスティングだけで決まる。DocValues の更新が無ければキャッシュしてよい
+        @Override
+        public boolean isCacheable(LeafReaderContext ctx) {
+            return ctx.reader().getCoreCacheHelper() != null
+                    && DocValues.isCacheable(ctx, dvField,
+                            ConditionExpressionField.leafDictField(dvField));
         }
     }
 }
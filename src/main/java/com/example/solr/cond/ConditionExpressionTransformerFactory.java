@@ -0,0 +1,205 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.transform.DocTransformer;
+import org.apache.solr.response.transform.TransformerFactory;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * 条件式の DocValues を式の文字列（{@link ConditionExpressionDecompiler}）にして返す DocTransformer。
+ * 保存フィールドを別に持たなくても {@code fl} で式を返せる。
+ * <pre>
+ * &lt;transformer name="cond" class="com.example.solr.cond.ConditionExpressionTransformerFactory"/&gt;
+ * </pre>
+ * {@code fl=id,cond_expr,[cond]} なら {@code fl} で求めた条件式のフィールド（{@code fl=*,[cond]} なら
+ * DocValues を持つものすべて）を、{@code fl=id,expr:[cond f=cond_expr]} なら指定したフィールドを
+ * {@code expr} として返す。
+ * 同じ式の文書が多いページでも戻すのは一度で済むよう、セグメントごとに
+ * storage=sorted は ordinal で、storage=binary は木と葉の ordinal の並びで覚えておく。
+ * <p>
+ * Solr 9.4 の useDocValuesAsStored は SORTED の値を UTF-8 の文字列として、BINARY の値をバイト列として
+ * そのまま返し、{@link ConditionExpressionField#toObject} を通さない（通るのは JSON Facet などの値）。
+ * そのため {@link ConditionExpressionField} は useDocValuesAsStored を既定で無効にし、
+ * 保存しないフィールドに明示されたら拒否する。{@code fl=*,[cond]} なら式を返せる。
+ */
+public class ConditionExpressionTransformerFactory extends TransformerFactory {
+    public static final String FIELD = "f";
+
+    @Override
+    public DocTransformer create(String name, SolrParams params, SolrQueryRequest req) {
+        IndexSchema schema = req.getSchema();
+        String field = params.get(FIELD);
+        if (field != null) {
+            SchemaField sf = schema.getFieldOrNull(field);
+            if (sf == null || !(sf.getType() instanceof ConditionExpressionField) || !sf.hasDocValues()) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                        "not a condition expression field with docValues: " + field);
+            }
+            return new Transformer(name, List.of(field), name);
+        }
+        List<String> fields = new ArrayList<>();
+        for (SchemaField sf : schema.getFields().values()) {
+            if (sf.getType() instanceof ConditionExpressionField && sf.hasDocValues()) fields.add(sf.getName());
+        }
+        return new Transformer(name, fields, null);
+    }
+
+    static final class Transformer extends DocTransformer {
+        private final String name;
+        private final List<String> candidates;
+        private final String outputName;  // null ならフィールド名のまま返す
+        private final List<String> fields = new ArrayList<>();
+        // フィールド名 → セグメントの番号ごとの状態
+        private final Map<String, Segment[]> segments = new HashMap<>();
+        private List<LeafReaderContext> leaves;
+
+        Transformer(String name, List<String> candidates, String outputName) {
+            this.name = name;
+            this.candidates = candidates;
+            this.outputName = outputName;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean needsSolrIndexSearcher() {
+            return true;
+        }
+
+        @Override
+        public void setContext(ResultContext context) {
+            super.setContext(context);
+            leaves = context.getSearcher().getIndexReader().leaves();
+            segments.clear();
+            fields.clear();
+            for (String field : candidates) {
+                if (outputName != null || context.getReturnFields().wantsField(field)) fields.add(field);
+            }
+        }
+
+        @Override
+        public void transform(SolrDocument doc, int docid) throws IOException {
+            int n = ReaderUtil.subIndex(docid, leaves);
+            LeafReaderContext leaf = leaves.get(n);
+            for (String field : fields) {
+                Segment[] bySegment = segments.computeIfAbsent(field, f -> new Segment[leaves.size()]);
+                if (bySegment[n] == null) bySegment[n] = new Segment(leaf.reader(), field);
+                String text = bySegment[n].text(docid - leaf.docBase);
+                if (text != null) doc.setField(outputName == null ? field : outputName, text);
+            }
+        }
+    }
+
+    /**
+     * 1 セグメント・1 フィールド分の状態。結果の文書は doc の昇順とは限らないので、
+     * 前の文書より前に戻ったら DocValues を開き直す。
+     */
+    static final class Segment {
+        private final LeafReader reader;
+        private final String field;
+        private final DocValuesType type;
+        private final boolean hasLeafDict;
+        private BinaryDocValues binary;
+        private SortedDocValues sorted;
+        private SortedSetDocValues leafOrds;
+        private int lastDoc = Integer.MAX_VALUE;
+
+        // storage=sorted: ordinal ごとの式
+        private String[] byOrd;
+        // storage=binary: 木と葉の ordinal の並び → 式
+        private final Map<BytesRef, String> byBytes = new HashMap<>();
+        private final BytesRefBuilder key = new BytesRefBuilder();
+        private long[] ords = new long[8];
+
+        Segment(LeafReader reader, String field) {
+            this.reader = reader;
+            this.field = field;
+            FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+            this.type = info == null ? DocValuesType.NONE : info.getDocValuesType();
+            FieldInfo dictInfo = reader.getFieldInfos().fieldInfo(ConditionExpressionField.leafDictField(field));
+            this.hasLeafDict = dictInfo != null && dictInfo.getDocValuesType() == DocValuesType.SORTED_SET;
+        }
+
+        /** 式を持たない文書では null */
+        String text(int doc) throws IOException {
+            if (type != DocValuesType.BINARY && type != DocValuesType.SORTED) return null;
+            if (doc <= lastDoc) reopen();
+            lastDoc = doc;
+            if (type == DocValuesType.SORTED) {
+                if (!sorted.advanceExact(doc)) return null;
+                int ord = sorted.ordValue();
+                if (byOrd[ord] == null) {
+                    byOrd[ord] = ConditionExpressionDecompiler.decompileWithLeafTable(sorted.lookupOrd(ord));
+                }
+                return byOrd[ord];
+            }
+            if (!binary.advanceExact(doc)) return null;
+            BytesRef tree = binary.binaryValue();
+            int count = 0;
+            if (hasLeafDict && leafOrds.advanceExact(doc)) {
+                count = leafOrds.docValueCount();
+                if (ords.length < count) ords = new long[Math.max(count, ords.length * 2)];
+                for (int i = 0; i < count; i++) ords[i] = leafOrds.nextOrd();
+            }
+            key.clear();
+            appendVInt(tree.length);
+            key.append(tree);
+            for (int i = 0; i < count; i++) appendVInt((int) ords[i]);
+            String text = byBytes.get(key.get());
+            if (text == null) {
+                if (hasLeafDict) {
+                    BytesRef[] ids = new BytesRef[count];
+                    for (int i = 0; i < count; i++) ids[i] = BytesRef.deepCopyOf(leafOrds.lookupOrd(ords[i]));
+                    text = ConditionExpressionDecompiler.decompile(tree, ids);
+                } else {
+                    text = ConditionExpressionDecompiler.decompileWithoutLeafDict(tree);
+                }
+                byBytes.put(key.toBytesRef(), text);
+            }
+            return text;
+        }
+
+        private void reopen() throws IOException {
+            if (type == DocValuesType.SORTED) {
+                sorted = DocValues.getSorted(reader, field);
+                if (byOrd == null) byOrd = new String[sorted.getValueCount()];
+            } else {
+                binary = DocValues.getBinary(reader, field);
+                if (hasLeafDict) leafOrds = DocValues.getSortedSet(reader, ConditionExpressionField.leafDictField(field));
+            }
+        }
+
+        private void appendVInt(int i) {
+            while ((i & ~0x7F) != 0) {
+                key.append((byte) ((i & 0x7F) | 0x80));
+                i >>>= 7;
+            }
+            key.append((byte) i);
+        }
+    }
+}
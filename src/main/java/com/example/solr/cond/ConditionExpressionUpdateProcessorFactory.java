@@ -0,0 +1,64 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+
+/**
+ * 条件式のフィールド（{@link ConditionExpressionField}）の値を、インデックスする前に変換しておく
+ * UpdateRequestProcessor。変換の結果はフィールド型の式キャッシュに入るので、文書を作るときは
+ * キャッシュを引くだけで済む。不正な式は文書 ID 付きの 400 で、インデックスに渡す前に返す。
+ * <pre>
+ * &lt;updateRequestProcessorChain name="cond"&gt;
+ *   &lt;processor class="com.example.solr.cond.ConditionExpressionUpdateProcessorFactory"/&gt;
+ *   &lt;processor class="solr.RunUpdateProcessorFactory"/&gt;
+ * &lt;/updateRequestProcessorChain&gt;
+ * </pre>
+ * 値は文字列のまま残すので、更新ログの再生やレプリカへの転送には影響しない。
+ */
+public class ConditionExpressionUpdateProcessorFactory extends UpdateRequestProcessorFactory {
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp,
+                                              UpdateRequestProcessor next) {
+        return new UpdateRequestProcessor(next) {
+            @Override
+            public void processAdd(AddUpdateCommand cmd) throws IOException {
+                compileAll(req.getSchema(), cmd);
+                super.processAdd(cmd);
+            }
+        };
+    }
+
+    private static void compileAll(IndexSchema schema, AddUpdateCommand cmd) {
+        SolrInputDocument doc = cmd.getSolrInputDocument();
+        for (SolrInputField field : doc) {
+            SchemaField sf = schema.getFieldOrNull(field.getName());
+            if (sf == null) continue;
+            FieldType type = sf.getType();
+            if (!(type instanceof ConditionExpressionField cond)) continue;
+            for (Object value : field) {
+                // アトミック更新（{"set": ...} など）の値は後で文書に組み込まれるときに変換される
+                if (value == null || value instanceof Map) continue;
+                try {
+                    cond.compile(value.toString());
+                } catch (IllegalArgumentException e) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                            "invalid condition expression in field " + field.getName()
+                                    + " of document " + cmd.getPrintableId() + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.solr.cond;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import org.apache.solr.metrics.SolrMetricsContext;
+
+/**
+ * {@code {!cond}} の評価の統計を Solr のメトリクス（{@code /admin/metrics} の
+ * {@code QUERY.<scope>.*}）に出す。
+ * 文書ごとには {@link SegmentMatcher} のフィールドを数えるだけで、ここへはセグメント
+ * （並列評価ならその区切り）の評価を終えたときにまとめて足す。
+ */
+final class ConditionMetrics {
+    private final Counter passes;       // 評価を終えたセグメント（区切り）の数
+    private final Counter postFilterPasses;  // そのうち PostFilter として評価したもの
+    private final Counter evaluated;    // 式を評価した文書数
+    private final Counter matched;      // そのうちマッチした文書数
+    private final Counter nodes;        // 訪れたノード数
+    private final Counter exprBytes;    // 読んだ式のバイト数
+    private final Histogram matchRatio; // マッチした割合（%）
+    private final Histogram nodesPerDoc;
+    private final Timer passTime;       // 1 パスの時間（候補を順に評価する場合だけ）
+
+    ConditionMetrics(SolrMetricsContext context, String scope) {
+        String category = "QUERY";
+        passes = context.counter("passes", category, scope);
+        postFilterPasses = context.counter("postFilterPasses", category, scope);
+        evaluated = context.counter("evaluatedDocs", category, scope);
+        matched = context.counter("matchedDocs", category, scope);
+        nodes = context.counter("visitedNodes", category, scope);
+        exprBytes = context.counter("expressionBytes", category, scope);
+        matchRatio = context.histogram("matchRatioPercent", category, scope);
+        nodesPerDoc = context.histogram("nodesPerEvaluatedDoc", category, scope);
+        passTime = context.timer("passTime", category, scope);
+    }
+
+    /**
+     * {@code nanos} が負なら時間は測っていない（他の節や Collector と交互に進む場合）。
+     * {@code postFilter} は PostFilter の Collector で評価した場合
+     */
+    void record(SegmentMatcher matcher, long nanos, boolean postFilter) {
+        passes.inc();
+        if (postFilter) postFilterPasses.inc();
+        if (nanos >= 0) passTime.update(nanos, TimeUnit.NANOSECONDS);
+        long e = matcher.evaluated();
+        if (e == 0) return;
+        evaluated.inc(e);
+        matched.inc(matcher.matched());
+        nodes.inc(matcher.visitedNodes());
+        exprBytes.inc(matcher.expressionBytes());
+        matchRatio.update(matcher.matched() * 100 / e);
+        nodesPerDoc.update(matcher.visitedNodes() / e);
+    }
+}
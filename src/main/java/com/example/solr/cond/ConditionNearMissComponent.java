@@ -0,0 +1,141 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * 「どの葉をもう一つ真にすると、いくつの文書が新たにマッチするか」を数える検索コンポーネント。
+ * 条件式の DocValues を一度だけ辿り、今の真の葉 ID ではマッチしない文書ごとに、
+ * 一つだけ真にすると式が真になる葉を {@link ConditionEvaluator#sensitivity} で求めて数える
+ * （{@link NearMissCounter}）。葉ごとに {@code {!cond}} を投げ直す必要が無い。
+ * <pre>
+ * &lt;searchComponent name="condNearMiss" class="com.example.solr.cond.ConditionNearMissComponent"&gt;
+ *   &lt;str name="parser"&gt;cond&lt;/str&gt;
+ * &lt;/searchComponent&gt;
+ * </pre>
+ * パラメーター:
+ * <ul>
+ *   <li>{@code cond.nearmiss}: true で有効</li>
+ *   <li>{@code cond.nearmiss.field}: 条件式のフィールド</li>
+ *   <li>{@code cond.nearmiss.true_ids}: 今の真の葉 ID（カンマ区切り）。
+ *       {@code cond.nearmiss.set} で {@link ActivationSetHandler} の集合の名前も指定できる</li>
+ *   <li>{@code cond.nearmiss.limit}: 返す葉の数（既定 10）</li>
+ *   <li>{@code cond.nearmiss.filter}: true ならメインのクエリの結果（DocSet）の中だけで数える</li>
+ * </ul>
+ * 結果は {@code cond_nearmiss} に、マッチした・しなかった文書数と、葉 ID → 新たにマッチする文書数
+ * （多い順）を返す。分散検索には対応しない。
+ */
+public class ConditionNearMissComponent extends SearchComponent {
+    public static final String NEAR_MISS = "cond.nearmiss";
+    public static final String FIELD = NEAR_MISS + ".field";
+    public static final String TRUE_IDS = NEAR_MISS + ".true_ids";
+    public static final String SET = NEAR_MISS + ".set";
+    public static final String LIMIT = NEAR_MISS + ".limit";
+    public static final String FILTER = NEAR_MISS + ".filter";
+
+    private String parserName = "cond";
+
+    @Override
+    public void init(NamedList<?> args) {
+        super.init(args);
+        Object p = args == null ? null : args.get("parser");
+        if (p != null) parserName = p.toString();
+    }
+
+    @Override
+    public void prepare(ResponseBuilder rb) {
+        SolrParams params = rb.req.getParams();
+        if (params.getBool(NEAR_MISS, false) && params.getBool(FILTER, false)) rb.setNeedDocSet(true);
+    }
+
+    @Override
+    public void process(ResponseBuilder rb) throws IOException {
+        SolrParams params = rb.req.getParams();
+        if (!params.getBool(NEAR_MISS, false)) return;
+        String field = params.get(FIELD);
+        if (field == null) throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "missing param: " + FIELD);
+        Set<String> trueIds = trueIds(rb, params);
+        int limit = params.getInt(LIMIT, 10);
+        DocSet filter = null;
+        if (params.getBool(FILTER, false)) {
+            if (rb.getResults() == null || rb.getResults().docSet == null) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                        FILTER + " requires the query component");
+            }
+            filter = rb.getResults().docSet;
+        }
+
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        Map<String, Long> counts = new HashMap<>();
+        long matched = 0, failing = 0, unlockable = 0;
+        for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+            NearMissCounter counter = NearMissCounter.create(context.reader(), field, trueIds);
+            if (counter == null) continue;
+            Bits live = context.reader().getLiveDocs();
+            DocIdSetIterator docs = SegmentMatcher.docsWithValue(context.reader(), field);
+            // DocValues のイテレータは counter とは別に作られるので、並べて進めてよい
+            for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+                if (live != null && !live.get(d)) continue;
+                if (filter != null && !filter.exists(context.docBase + d)) continue;
+                counter.collect(d);
+            }
+            counter.addTo(counts);
+            matched += counter.matched();
+            failing += counter.failing();
+            unlockable += counter.unlockable();
+        }
+
+        List<Map.Entry<String, Long>> top = new ArrayList<>(counts.entrySet());
+        top.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        NamedList<Object> unlocks = new SimpleOrderedMap<>();
+        for (Map.Entry<String, Long> e : top.subList(0, Math.min(limit, top.size()))) {
+            unlocks.add(e.getKey(), e.getValue());
+        }
+        NamedList<Object> out = new SimpleOrderedMap<>();
+        out.add("matchedDocs", matched);
+        out.add("failingDocs", failing);
+        out.add("unlockableDocs", unlockable);
+        out.add("unlocks", unlocks);
+        rb.rsp.add("cond_nearmiss", out);
+    }
+
+    private Set<String> trueIds(ResponseBuilder rb, SolrParams params) {
+        String setName = params.get(SET);
+        if (setName != null) {
+            ActivationSet set = ActivationSetHandler.registry(rb.req, parserName).get(setName);
+            if (set == null) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unknown activation set: " + setName);
+            }
+            return set.ids();
+        }
+        Set<String> ids = new TreeSet<>();
+        for (String id : StrUtils.splitSmart(params.get(TRUE_IDS, ""), ',')) {
+            id = id.trim();
+            if (!id.isEmpty()) ids.add(id);
+        }
+        return ids;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Documents one extra true leaf away from matching {!cond}";
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.solr.cond;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * {@link ConditionExpressionQParserPlugin} の設定のうち、クエリの実行方法だけに関わるもの。
+ * 結果には影響しないので、クエリの equals / hashCode には含めない。
+ *
+ * @param resultCache       結果を入れるユーザー定義キャッシュの名前。null なら使わない
+ * @param sessionCache      セッションごとの直前の結果を入れるユーザー定義キャッシュの名前。null なら使わない
+ * @param executor          セグメントを分割して並列に評価するスレッドプール。null なら並列化しない
+ * @param parallelThreshold maxDoc がこれ以上のセグメントだけを並列に評価する
+ * @param chunkSize         並列評価の 1 タスクあたりの doc 数（64 の倍数）
+ * @param bddMaxNodes       セグメントごとの {@link ConditionBdd} のノード数の上限。0 なら BDD を使わない
+ * @param metrics           評価の統計を足す先。null なら数えるだけで出さない
+ */
+record ConditionQueryConfig(String resultCache, String sessionCache, ExecutorService executor,
+                            int parallelThreshold, int chunkSize, int bddMaxNodes, ConditionMetrics metrics) {
+
+    static final ConditionQueryConfig DEFAULT =
+            new ConditionQueryConfig(null, null, null, Integer.MAX_VALUE, 1 << 16, 0, null);
+
+    ConditionQueryConfig {
+        if (chunkSize <= 0 || chunkSize % 64 != 0) {
+            throw new IllegalArgumentException("chunkSize must be a positive multiple of 64: " + chunkSize);
+        }
+    }
+
+    ConditionQueryConfig withMetrics(ConditionMetrics metrics) {
+        return new ConditionQueryConfig(resultCache, sessionCache, executor, parallelThreshold, chunkSize,
+                bddMaxNodes, metrics);
+    }
+
+    boolean parallel(int maxDoc) {
+        return executor != null && maxDoc >= parallelThreshold && maxDoc > chunkSize;
+    }
+}
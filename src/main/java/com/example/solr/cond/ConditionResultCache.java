@@ -0,0 +1,75 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * {@code {!cond}} の結果（セグメントごとのマッチのビット集合）を入れる solrconfig.xml のユーザー定義キャッシュ。
+ * キーはセグメントのコアと、フィールド名・真の葉 ID の集合とパターン。ビット集合は削除を考慮しない。
+ *
+ * <pre>
+ * &lt;cache name="condCache" class="solr.CaffeineCache" size="1024" maxIdleTime="600"
+ *        autowarmCount="100%" regenerator="com.example.solr.cond.ConditionResultCache$Regenerator"/&gt;
+ * </pre>
+ * サイズ・有効期間（maxIdleTime）による追い出しとヒット率などの統計はキャッシュ実装が持つ。
+ * <p>
+ * セッションキャッシュも同じ設定で作れる（キーは {@link SessionKey}）。
+ */
+final class ConditionResultCache {
+    private ConditionResultCache() {}
+
+    /** {@code setHash} は {@link ActivationSet#contentHash()}。ID の集合のハッシュを引くたびに計算し直さない */
+    record Key(Object coreKey, String field, int setHash, Set<String> trueIds, LeafIdPatterns patterns) {
+        @Override
+        public int hashCode() {
+            return 31 * (31 * coreKey.hashCode() + field.hashCode()) + setHash;
+        }
+    }
+
+    static Key key(LeafReaderContext context, String field, ActivationSet set) {
+        return new Key(context.reader().getCoreCacheHelper().getKey(), field, set.contentHash(), set.ids(),
+                set.patterns());
+    }
+
+    /**
+     * セッションキャッシュ（{@code sessionCache}）のキー。値はそのセッションで直前に使った
+     * 真の葉 ID・パターンとその結果（{@link SessionState}）
+     */
+    record SessionKey(Object coreKey, String field, String session) {}
+
+    static SessionKey sessionKey(LeafReaderContext context, String field, String session) {
+        return new SessionKey(context.reader().getCoreCacheHelper().getKey(), field, session);
+    }
+
+    /** ビット集合は複数のリクエストから読まれるので書き換えない */
+    record SessionState(Set<String> trueIds, LeafIdPatterns patterns, FixedBitSet bits) {}
+
+    /**
+     * 新しいサーチャーでも残っているセグメントの結果だけを引き継ぐ。
+     * マージで消えたセグメントの結果は捨てる。
+     */
+    public static class Regenerator implements CacheRegenerator {
+        @Override
+        public <K, V> boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache<K, V> newCache,
+                                             SolrCache<K, V> oldCache, K oldKey, V oldVal)
+                throws IOException {
+            Object coreKey = oldKey instanceof Key key ? key.coreKey()
+                    : oldKey instanceof SessionKey key ? key.coreKey() : null;
+            if (coreKey != null) {
+                for (LeafReaderContext leaf : newSearcher.getTopReaderContext().leaves()) {
+                    if (leaf.reader().getCoreCacheHelper().getKey() == coreKey) {
+                        newCache.put(oldKey, oldVal);
+                        break;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
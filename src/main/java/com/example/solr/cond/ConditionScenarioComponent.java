@@ -0,0 +1,156 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * 名前付きの真の葉 ID の集合（シナリオ）ごとに、{@code {!cond}} にマッチする文書数を数える検索コンポーネント。
+ * 文書の式は 64 シナリオごとに一度だけ読み、葉の真偽をシナリオのビットマスクとして評価する
+ * （{@link ScenarioMatcher}）ので、{@code true_ids} だけが違うクエリを何度も投げずに済む。
+ * <pre>
+ * &lt;searchComponent name="condScenarios" class="com.example.solr.cond.ConditionScenarioComponent"&gt;
+ *   &lt;str name="parser"&gt;cond&lt;/str&gt;
+ * &lt;/searchComponent&gt;
+ * </pre>
+ * パラメーター:
+ * <ul>
+ *   <li>{@code cond.scenarios}: true で有効</li>
+ *   <li>{@code cond.scenarios.field}: 条件式のフィールド</li>
+ *   <li>{@code cond.scenarios.sets}: {@link ActivationSetHandler} で登録した集合の名前（カンマ区切り、複数指定可）</li>
+ *   <li>{@code cond.scenarios.filter}: true ならメインのクエリの結果（DocSet）の中だけで数える</li>
+ * </ul>
+ * 結果は {@code cond_scenarios} に集合の名前 → 文書数で返す。分散検索には対応しない。
+ */
+public class ConditionScenarioComponent extends SearchComponent {
+    public static final String SCENARIOS = "cond.scenarios";
+    public static final String FIELD = SCENARIOS + ".field";
+    public static final String SETS = SCENARIOS + ".sets";
+    public static final String FILTER = SCENARIOS + ".filter";
+
+    private static final int BATCH = 64;
+
+    private String parserName = "cond";
+
+    @Override
+    public void init(NamedList<?> args) {
+        super.init(args);
+        Object p = args == null ? null : args.get("parser");
+        if (p != null) parserName = p.toString();
+    }
+
+    @Override
+    public void prepare(ResponseBuilder rb) {
+        SolrParams params = rb.req.getParams();
+        if (params.getBool(SCENARIOS, false) && params.getBool(FILTER, false)) rb.setNeedDocSet(true);
+    }
+
+    @Override
+    public void process(ResponseBuilder rb) throws IOException {
+        SolrParams params = rb.req.getParams();
+        if (!params.getBool(SCENARIOS, false)) return;
+        String field = params.get(FIELD);
+        if (field == null) throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "missing param: " + FIELD);
+        ActivationSetRegistry registry = ActivationSetHandler.registry(rb.req, parserName);
+        List<ActivationSet> scenarios = new ArrayList<>();
+        String[] names = params.getParams(SETS);
+        if (names != null) {
+            for (String csv : names) {
+                for (String name : StrUtils.splitSmart(csv, ',')) {
+                    name = name.trim();
+                    if (name.isEmpty()) continue;
+                    ActivationSet set = registry.get(name);
+                    if (set == null) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unknown activation set: " + name);
+                    }
+                    scenarios.add(set);
+                }
+            }
+        }
+        DocSet filter = null;
+        if (params.getBool(FILTER, false)) {
+            if (rb.getResults() == null || rb.getResults().docSet == null) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                        FILTER + " requires the query component");
+            }
+            filter = rb.getResults().docSet;
+        }
+
+        long[] counts = new long[scenarios.size()];
+        for (int from = 0; from < scenarios.size(); from += BATCH) {
+            List<ActivationSet> batch = scenarios.subList(from, Math.min(scenarios.size(), from + BATCH));
+            count(rb.req.getSearcher(), field, batch, filter, counts, from);
+        }
+        NamedList<Object> out = new SimpleOrderedMap<>();
+        for (int i = 0; i < scenarios.size(); i++) out.add(scenarios.get(i).name(), counts[i]);
+        rb.rsp.add("cond_scenarios", out);
+    }
+
+    /** 64 までのシナリオを 1 パスで数え、{@code counts[offset + i]} に足す */
+    private static void count(SolrIndexSearcher searcher, String field, List<ActivationSet> scenarios,
+                              DocSet filter, long[] counts, int offset) throws IOException {
+        for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+            ScenarioMatcher matcher = ScenarioMatcher.create(context.reader(), field, scenarios);
+            if (matcher == null) continue;
+            Bits live = context.reader().getLiveDocs();
+            DocIdSetIterator docs = candidates(context, field, scenarios);
+            for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+                if (live != null && !live.get(d)) continue;
+                if (filter != null && !filter.exists(context.docBase + d)) continue;
+                for (long mask = matcher.matches(d); mask != 0L; mask &= mask - 1) {
+                    counts[offset + Long.numberOfTrailingZeros(mask)]++;
+                }
+            }
+        }
+    }
+
+    /** いずれかのシナリオでマッチしうる文書（どれかの真の葉か、目印の term を持つもの） */
+    private static DocIdSetIterator candidates(LeafReaderContext context, String field,
+                                               List<ActivationSet> scenarios) throws IOException {
+        LeafReader reader = context.reader();
+        Terms terms = reader.terms(ConditionExpressionField.leavesField(field));
+        // 古い形式の文書は葉のポスティングに載っていないので、混ざっていれば全文書を評価する
+        if (terms == null || ConditionSegmentStats.hasDocsWithoutStats(
+                reader, field, ConditionSegmentStats.read(reader, field))) {
+            return SegmentMatcher.docsWithValue(reader, field);
+        }
+        TreeSet<BytesRef> union = new TreeSet<>();
+        for (ActivationSet set : scenarios) union.addAll(set.candidateTerms());
+        TermsEnum te = terms.iterator();
+        DocIdSetBuilder builder = new DocIdSetBuilder(reader.maxDoc(), terms);
+        PostingsEnum postings = null;
+        for (BytesRef term : union) {
+            if (te.seekExact(term)) {
+                postings = te.postings(postings, PostingsEnum.NONE);
+                builder.add(postings);
+            }
+        }
+        DocIdSetIterator it = builder.build().iterator();
+        return it == null ? DocIdSetIterator.empty() : it;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Per-scenario match counts for {!cond}";
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * 1 セグメント分の条件式の統計。インデックス時に文書ごとの性質を
+ * {@link ConditionExpressionField#statsField(String)} の term として書いておき、検索時はその文書頻度を読むだけで求める
+ * （マージでもそのまま足し合わされる）。葉ごとの文書頻度は葉のポスティングの文書頻度をそのまま使う。
+ * 削除された文書も数えるので、見積もりにだけ使うこと。
+ */
+final class ConditionSegmentStats {
+    // 統計の term。バイト数の区間 [2^i, 2^(i+1)) は SIZE_PREFIX + i
+    static final String ALWAYS_TRUE = "T";
+    static final String ALWAYS_FALSE = "F";
+    static final String NOT_ROOTED = "N";
+    static final String SIZE_PREFIX = "S";
+    static final int SIZE_BUCKETS = 32;
+
+    private final int docCount;
+    private final long alwaysTrue;
+    private final long alwaysFalse;
+    private final long notRooted;
+    private final long[] sizeHistogram;
+
+    private ConditionSegmentStats(int docCount, long alwaysTrue, long alwaysFalse, long notRooted,
+                                  long[] sizeHistogram) {
+        this.docCount = docCount;
+        this.alwaysTrue = alwaysTrue;
+        this.alwaysFalse = alwaysFalse;
+        this.notRooted = notRooted;
+        this.sizeHistogram = sizeHistogram;
+    }
+
+    /** 1 文書分の統計の term。どの文書にもバイト数の区間の term が一つ付く */
+    static List<String> terms(CompiledExpression compiled) {
+        List<String> terms = new ArrayList<>(2);
+        byte[] bytes = compiled.bytes();
+        terms.add(SIZE_PREFIX + (31 - Integer.numberOfLeadingZeros(bytes.length)));
+        if (compiled.leaves().isEmpty()) terms.add(compiled.matchesWithoutLeaves() ? ALWAYS_TRUE : ALWAYS_FALSE);
+        int root = bytes.length > 1 && bytes[0] == ConditionEvaluator.FORMAT_V2 ? 1 : 0;
+        if (bytes[root] == 3) terms.add(NOT_ROOTED);
+        return terms;
+    }
+
+    /** 統計の無い（統計を書く前の版で書かれた）セグメントでは null */
+    static ConditionSegmentStats read(LeafReader reader, String field) throws IOException {
+        Terms terms = reader.terms(ConditionExpressionField.statsField(field));
+        if (terms == null) return null;
+        long alwaysTrue = 0, alwaysFalse = 0, notRooted = 0;
+        long[] sizeHistogram = new long[SIZE_BUCKETS];
+        TermsEnum te = terms.iterator();
+        for (BytesRef term = te.next(); term != null; term = te.next()) {
+            String s = term.utf8ToString();
+            if (s.equals(ALWAYS_TRUE)) {
+                alwaysTrue = te.docFreq();
+            } else if (s.equals(ALWAYS_FALSE)) {
+                alwaysFalse = te.docFreq();
+            } else if (s.equals(NOT_ROOTED)) {
+                notRooted = te.docFreq();
+            } else if (s.startsWith(SIZE_PREFIX)) {
+                sizeHistogram[Integer.parseInt(s.substring(SIZE_PREFIX.length()))] = te.docFreq();
+            }
+        }
+        return new ConditionSegmentStats(terms.getDocCount(), alwaysTrue, alwaysFalse, notRooted, sizeHistogram);
+    }
+
+    /**
+     * 統計の term を持たない文書が混ざっているか（{@code stats} が null なら式を持つ文書があるか）。
+     * 葉 ID を文字列で書いた古い形式の文書は統計の term も葉のポスティングも持たないので、
+     * そういうセグメントではポスティングから候補を集めてはいけない。
+     */
+    static boolean hasDocsWithoutStats(LeafReader reader, String field, ConditionSegmentStats stats)
+            throws IOException {
+        // DocValues のイテレータの cost() は式を持つ文書数（削除された文書も数える）
+        long withValue = SegmentMatcher.docsWithValue(reader, field).cost();
+        return (stats == null ? 0 : stats.docCount) < withValue;
+    }
+
+    /** 式を持つ文書数 */
+    int docCount() {
+        return docCount;
+    }
+
+    /** 葉を含まず常に真の式の文書数 */
+    long alwaysTrue() {
+        return alwaysTrue;
+    }
+
+    /** 葉を含まず常に偽の式の文書数 */
+    long alwaysFalse() {
+        return alwaysFalse;
+    }
+
+    /** 根が NOT の式の文書数 */
+    long notRooted() {
+        return notRooted;
+    }
+
+    /** 式のバイト数の平均（区間の中央で近似） */
+    double meanExpressionBytes() {
+        double sum = 0;
+        long n = 0;
+        for (int i = 0; i < SIZE_BUCKETS; i++) {
+            sum += sizeHistogram[i] * 1.5 * (1L << i);
+            n += sizeHistogram[i];
+        }
+        return n == 0 ? 0 : sum / n;
+    }
+
+    NamedList<Object> toNamedList() {
+        NamedList<Object> out = new SimpleOrderedMap<>();
+        out.add("docCount", docCount);
+        out.add("alwaysTrue", alwaysTrue);
+        out.add("alwaysFalse", alwaysFalse);
+        out.add("notRooted", notRooted);
+        NamedList<Object> sizes = new SimpleOrderedMap<>();
+        for (int i = 0; i < SIZE_BUCKETS; i++) {
+            if (sizeHistogram[i] > 0) sizes.add(Long.toString(1L << i), sizeHistogram[i]);
+        }
+        out.add("expressionBytes", sizes);
+        return out;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.solr.cond;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * 1 リクエスト分の評価の内訳（{@code debugQuery=true} のときだけ作る）。
+ * セグメント（並列評価ならその区切り）ごとに {@link SegmentMatcher} の数を残す。
+ * 統計のあるセグメントでは、評価の計画（{@link ConditionExpressionQuery.Plan}）も残す。
+ */
+final class ConditionStats {
+    private record Pass(int segment, int maxDoc, long evaluated, long matched, long nodes, long bytes,
+                        long nanos) {}
+
+    private record SegmentPlan(int segment, ConditionExpressionQuery.Plan plan) {}
+
+    private final List<Pass> passes = new ArrayList<>();
+    private final List<SegmentPlan> plans = new ArrayList<>();
+
+    synchronized void record(int segment, int maxDoc, SegmentMatcher matcher, long nanos) {
+        passes.add(new Pass(segment, maxDoc, matcher.evaluated(), matcher.matched(),
+                matcher.visitedNodes(), matcher.expressionBytes(), nanos));
+    }
+
+    synchronized void recordPlan(int segment, ConditionExpressionQuery.Plan plan) {
+        plans.add(new SegmentPlan(segment, plan));
+    }
+
+    synchronized NamedList<Object> toNamedList() {
+        NamedList<Object> out = new SimpleOrderedMap<>();
+        long evaluated = 0, matched = 0, nodes = 0, bytes = 0;
+        List<NamedList<Object>> rows = new ArrayList<>(passes.size());
+        for (Pass p : passes) {
+            evaluated += p.evaluated;
+            matched += p.matched;
+            nodes += p.nodes;
+            bytes += p.bytes;
+            NamedList<Object> row = new SimpleOrderedMap<>();
+            row.add("segment", p.segment);
+            row.add("maxDoc", p.maxDoc);
+            row.add("evaluatedDocs", p.evaluated);
+            row.add("matchedDocs", p.matched);
+            row.add("visitedNodes", p.nodes);
+            row.add("expressionBytes", p.bytes);
+            if (p.nanos >= 0) row.add("timeMs", p.nanos / 1e6);
+            rows.add(row);
+        }
+        out.add("evaluatedDocs", evaluated);
+        out.add("matchedDocs", matched);
+        out.add("visitedNodes", nodes);
+        out.add("expressionBytes", bytes);
+        out.add("passes", rows);
+        if (!plans.isEmpty()) {
+            List<NamedList<Object>> segments = new ArrayList<>(plans.size());
+            for (SegmentPlan p : plans) {
+                NamedList<Object> row = new SimpleOrderedMap<>();
+                row.add("segment", p.segment);
+                row.add("strategy", p.plan.strategy().name());
+                row.add("estimatedCost", p.plan.cost());
+                if (p.plan.legacyDocs()) row.add("legacyDocs", true);
+                row.add("leavesFirst", p.plan.leavesFirstInAnd() ? "AND" : p.plan.leavesFirstInOr() ? "OR" : "none");
+                row.add("stats", p.plan.stats().toNamedList());
+                segments.add(row);
+            }
+            out.add("segments", segments);
+        }
+        return out;
+    }
+}
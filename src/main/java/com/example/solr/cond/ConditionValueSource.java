@@ -0,0 +1,118 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+
+/**
+ * 文書の条件式が真なら 1（重み付きならそのスコア）、偽なら 0 を返す ValueSource。
+ * {@link ConditionExpressionQuery} の Weight の Scorer を求められた doc まで進めて（advance）引くので、
+ * maxDoc の大きさの配列は作らず、評価するのは求められた文書だけになる。同じ doc を続けて引いても
+ * 評価し直さず、doc が前に戻ったら Scorer を作り直す。
+ * {@code resultCache} があればそのビット集合を辿るだけで済む。
+ */
+final class ConditionValueSource extends ValueSource {
+    private final ConditionExpressionQuery query;
+    private final boolean weighted;
+    private final String description;
+
+    ConditionValueSource(ConditionExpressionQuery query, boolean weighted, String description) {
+        this.query = query;
+        this.weighted = weighted;
+        this.description = description;
+    }
+
+    @Override
+    public void createWeight(Map<Object, Object> context, IndexSearcher searcher) throws IOException {
+        context.put(this, weight(searcher));
+    }
+
+    private Weight weight(IndexSearcher searcher) throws IOException {
+        ScoreMode mode = weighted ? ScoreMode.COMPLETE : ScoreMode.COMPLETE_NO_SCORES;
+        return searcher.createWeight(searcher.rewrite(query), mode, 1f);
+    }
+
+    @Override
+    public FunctionValues getValues(Map<Object, Object> context, LeafReaderContext readerContext)
+            throws IOException {
+        Weight weight = (Weight) context.get(this);
+        if (weight == null) {
+            IndexSearcher searcher = (IndexSearcher) context.get("searcher");
+            if (searcher == null) throw new IllegalStateException("no searcher in the function context");
+            weight = weight(searcher);
+            context.put(this, weight);
+        }
+        Weight w = weight;
+        return new FloatDocValues(this) {
+            private Scorer scorer;
+            private DocIdSetIterator approximation;  // 二相で無ければ iterator そのもの。null ならマッチしない
+            private TwoPhaseIterator twoPhase;
+            private int lastDoc;
+            private boolean lastMatch;
+            private float lastScore;
+
+            {
+                reopen();
+            }
+
+            @Override
+            public float floatVal(int doc) throws IOException {
+                if (!matches(doc)) return 0f;
+                return weighted ? lastScore : 1f;
+            }
+
+            @Override
+            public boolean exists(int doc) {
+                return true;
+            }
+
+            private boolean matches(int doc) throws IOException {
+                if (doc == lastDoc) return lastMatch;
+                if (doc < lastDoc) reopen();
+                lastDoc = doc;
+                lastMatch = false;
+                if (approximation == null) return false;
+                int d = approximation.docID();
+                if (d < doc) d = approximation.advance(doc);
+                if (d != doc) return false;
+                lastMatch = twoPhase == null || twoPhase.matches();
+                if (lastMatch && weighted) lastScore = scorer.score();
+                return lastMatch;
+            }
+
+            /** doc が前に戻ったら Scorer を作り直す */
+            private void reopen() throws IOException {
+                lastDoc = -1;
+                scorer = w.scorer(readerContext);
+                twoPhase = scorer == null ? null : scorer.twoPhaseIterator();
+                approximation = scorer == null ? null
+                        : twoPhase != null ? twoPhase.approximation() : scorer.iterator();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ConditionValueSource other && query.equals(other.query);
+    }
+
+    @Override
+    public int hashCode() {
+        return query.hashCode();
+    }
+
+    @Override
+    public String description() {
+        return description;
+    }
+}
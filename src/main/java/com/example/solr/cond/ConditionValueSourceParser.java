@@ -0,0 +1,82 @@
+package com.example.solr.cond;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.search.FunctionQParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.ValueSourceParser;
+
+/**
+ * 関数 {@code cond(field,set)} と {@code cond(field,set,weights)}（{@link ConditionValueSource}）。
+ * <pre>
+ * &lt;valueSourceParser name="cond" class="com.example.solr.cond.ConditionValueSourceParser"&gt;
+ *   &lt;str name="parser"&gt;cond&lt;/str&gt;
+ * &lt;/valueSourceParser&gt;
+ * </pre>
+ * {@code set} は {@link ActivationSetHandler} で登録した集合の名前で、{@code parser} のクエリパーサーの
+ * 集合と設定（結果キャッシュなど）を使う。{@code weights} は {@code id:重み} のカンマ区切りで、
+ * 指定すると 0/1 ではなく重み付きのスコアを返す（集合の ID のうち書かなかったものの重みは 1）。
+ * <pre>
+ * sort=cond(cond_expr,campaign) desc
+ * bf=cond(cond_expr,campaign,'A:2,B:0.5')
+ * json.facet={hits:"sum(cond(cond_expr,campaign))"}
+ * </pre>
+ */
+public class ConditionValueSourceParser extends ValueSourceParser {
+    private String parserName = "cond";
+
+    @Override
+    public void init(NamedList<?> args) {
+        Object p = args == null ? null : args.get("parser");
+        if (p != null) parserName = p.toString();
+    }
+
+    @Override
+    public ValueSource parse(FunctionQParser fp) throws SyntaxError {
+        String field = fp.parseArg();
+        String setName = fp.parseArg();
+        if (field == null || setName == null) throw new SyntaxError("cond(field,set[,weights]) expected");
+        String weightsCsv = fp.hasMoreArguments() ? fp.parseArg() : null;
+
+        QParserPlugin plugin = fp.getReq().getCore().getQueryPlugin(parserName);
+        if (!(plugin instanceof ConditionExpressionQParserPlugin cond)) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    "query parser is not a ConditionExpressionQParserPlugin: " + parserName);
+        }
+        ActivationSet set = cond.getActivationSets().get(setName);
+        if (set == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unknown activation set: " + setName);
+        }
+        Map<String, Float> weights = Map.of();
+        String description = "cond(" + field + "," + setName + ")";
+        if (weightsCsv != null) {
+            Map<String, Float> given = new HashMap<>();
+            for (String s : StrUtils.splitSmart(weightsCsv, ',')) {
+                s = s.trim();
+                int colon = s.indexOf(':');
+                if (colon < 0) throw new SyntaxError("expected id:weight in cond() weights: " + s);
+                try {
+                    given.put(s.substring(0, colon).trim(), Float.parseFloat(s.substring(colon + 1).trim()));
+                } catch (NumberFormatException e) {
+                    throw new SyntaxError("invalid weight in cond() weights: " + s, e);
+                }
+            }
+            weights = new HashMap<>();
+            for (String id : set.ids()) weights.put(id, given.getOrDefault(id, 1f));
+            description = "cond(" + field + "," + setName + ",'" + weightsCsv + "')";
+        }
+        ConditionExpressionQuery query;
+        try {
+            query = new ConditionExpressionQuery(field, set, weights, cond.getConfig(), null, null);
+        } catch (IllegalArgumentException e) {
+            throw new SyntaxError(e.getMessage(), e);
+        }
+        return new ConditionValueSource(query, !weights.isEmpty(), description);
+    }
+}
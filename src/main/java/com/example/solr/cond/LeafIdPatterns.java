@@ -0,0 +1,120 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongBitSet;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+
+/**
+ * 真の葉 ID のパターン（{@code R1*}・{@code R?S2*} など。{@code *} は任意の文字列、{@code ?} は任意の 1 文字）。
+ * 葉 ID は英数字だけ（式の変換で英数字以外の葉は拒否する）なので、{@code *} か {@code ?} を含む ID は
+ * パターンとして扱っても葉 ID と取り違えない。パターンも英数字と {@code *}・{@code ?} だけで書く。
+ * <p>
+ * パターンはまとめて一つのオートマトンにしておき、セグメントごとに葉辞書（SortedSetDocValues）や
+ * 葉のポスティングの term 辞書と突き合わせて、現れる葉 ID だけを一度に求める
+ * （{@link #addOrds}・{@link #terms}）。階層の下の ID を並べて渡す必要が無く、
+ * リクエストの大きさも準備の手間も階層の大きさに比例しない。
+ */
+final class LeafIdPatterns {
+    static final LeafIdPatterns NONE = new LeafIdPatterns(new TreeSet<>());
+
+    private final SortedSet<String> patterns;
+    private final CompiledAutomaton compiled;          // パターンが無ければ null
+    private final CharacterRunAutomaton run;           // 葉辞書の無いセグメント用
+
+    private LeafIdPatterns(TreeSet<String> patterns) {
+        this.patterns = Collections.unmodifiableSortedSet(patterns);
+        if (patterns.isEmpty()) {
+            this.compiled = null;
+            this.run = null;
+            return;
+        }
+        List<Automaton> automata = new ArrayList<>(patterns.size());
+        for (String p : patterns) automata.add(WildcardQuery.toAutomaton(new Term("", p)));
+        Automaton union = Operations.determinize(Operations.union(automata),
+                Operations.DEFAULT_DETERMINIZE_WORK_LIMIT);
+        this.compiled = new CompiledAutomaton(union, null, true, Operations.DEFAULT_DETERMINIZE_WORK_LIMIT, false);
+        this.run = new CharacterRunAutomaton(union);
+    }
+
+    /** 英数字と {@code *}・{@code ?} 以外の文字を含むパターンがあれば IllegalArgumentException */
+    static LeafIdPatterns of(Collection<String> patterns) {
+        for (String p : patterns) {
+            for (int i = 0; i < p.length(); i++) {
+                char c = p.charAt(i);
+                if (!Character.isLetterOrDigit(c) && c != WildcardQuery.WILDCARD_STRING
+                        && c != WildcardQuery.WILDCARD_CHAR) {
+                    throw new IllegalArgumentException("invalid leaf id pattern: " + p);
+                }
+            }
+        }
+        return patterns.isEmpty() ? NONE : new LeafIdPatterns(new TreeSet<>(patterns));
+    }
+
+    /** {@code true_ids} の要素がパターンか */
+    static boolean isPattern(String id) {
+        return id.indexOf(WildcardQuery.WILDCARD_STRING) >= 0 || id.indexOf(WildcardQuery.WILDCARD_CHAR) >= 0;
+    }
+
+    boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    SortedSet<String> patterns() {
+        return patterns;
+    }
+
+    /** 葉 ID がいずれかのパターンに当てはまるか（葉辞書の無いセグメント用） */
+    boolean matches(String id) {
+        return run != null && run.run(id);
+    }
+
+    /** 葉辞書のうちパターンに当てはまる葉の ordinal を {@code ords} に立てる */
+    void addOrds(SortedSetDocValues leafDict, LongBitSet ords) throws IOException {
+        if (compiled == null) return;
+        TermsEnum te = leafDict.intersect(compiled);
+        while (te.next() != null) ords.set(te.ord());
+    }
+
+    /** 葉のポスティングの term のうちパターンに当てはまるもの（目印の term は除く）。昇順 */
+    List<BytesRef> terms(Terms leaves) throws IOException {
+        if (compiled == null) return List.of();
+        List<BytesRef> out = new ArrayList<>();
+        TermsEnum te = compiled.getTermsEnum(leaves);
+        BytesRef marker = new BytesRef(ConditionExpressionField.MATCH_WITHOUT_LEAVES);
+        for (BytesRef term = te.next(); term != null; term = te.next()) {
+            if (!term.equals(marker)) out.add(BytesRef.deepCopyOf(term));
+        }
+        return out;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LeafIdPatterns other && patterns.equals(other.patterns);
+    }
+
+    @Override
+    public int hashCode() {
+        return patterns.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return patterns.toString();
+    }
+}
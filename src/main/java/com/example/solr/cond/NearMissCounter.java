@@ -0,0 +1,201 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongBitSet;
+
+/**
+ * 1 セグメント分の「あと一つ」の集計。今の真の葉 ID ではマッチしない文書について、
+ * 偽の葉を一つだけ真にするとマッチする葉（{@link ConditionEvaluator#sensitivity}）ごとに文書数を数える。
+ * storage=binary は葉辞書の ordinal ごとに、storage=sorted は異なる式ごとに数えてから、
+ * {@link #addTo} で葉 ID ごとの数に足す。{@link SegmentMatcher} と同じく doc の昇順に使うこと。
+ * 葉 ID を文字列で書いた古い形式の式は、文書ごとに {@link ConditionEvaluator#legacySensitivity} で数える。
+ */
+final class NearMissCounter {
+    private final BinaryDocValues dv;           // storage=binary
+    private final SortedDocValues sortedDv;     // storage=sorted
+    private final SortedSetDocValues leafOrds;  // null なら葉辞書の無い古いセグメント
+    private final LongBitSet trueOrds;
+    private final Set<String> trueIds;
+    private final ConditionEvaluator evaluator = new ConditionEvaluator();
+    private long[] localTrue = new long[1];
+    private long[] flips = new long[1];
+    private long[] docOrds = new long[1];
+
+    // storage=binary: 葉辞書の ordinal ごとの文書数
+    private int[] ordCounts;
+    // 古い形式の式: 葉 ID ごとの文書数
+    private final Map<String, Long> legacyCounts = new HashMap<>();
+    private final List<String> legacyFlips = new ArrayList<>();
+    // storage=sorted: 式の ordinal ごとの文書数と、評価した結果（マッチすれば null）
+    private int[] exprCounts;
+    private List<List<BytesRef>> exprFlips;
+    private boolean[] exprMatches;
+    private ConditionEvaluator.LeafTruth leafTruth;
+
+    private long matched;
+    private long failing;
+    private long unlockable;
+
+    private NearMissCounter(BinaryDocValues dv, SortedDocValues sortedDv, SortedSetDocValues leafOrds,
+                            LongBitSet trueOrds, Set<String> trueIds) {
+        this.dv = dv;
+        this.sortedDv = sortedDv;
+        this.leafOrds = leafOrds;
+        this.trueOrds = trueOrds;
+        this.trueIds = trueIds;
+        if (sortedDv != null) {
+            int valueCount = sortedDv.getValueCount();
+            this.exprCounts = new int[valueCount];
+            this.exprFlips = new ArrayList<>(valueCount);
+            for (int i = 0; i < valueCount; i++) exprFlips.add(null);
+            this.exprMatches = new boolean[valueCount];
+            this.leafTruth = id -> {
+                if (leafOrds == null) return trueIds.contains(id.utf8ToString());
+                long ord = leafOrds.lookupTerm(id);
+                return ord >= 0 && trueOrds.get(ord);
+            };
+        } else if (leafOrds != null) {
+            this.ordCounts = new int[(int) Math.max(1, leafOrds.getValueCount())];
+        }
+    }
+
+    /** 条件式の DocValues が無いセグメントでは null */
+    static NearMissCounter create(LeafReader reader, String field, Set<String> trueIds) throws IOException {
+        FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+        if (info == null) return null;
+        BinaryDocValues dv = null;
+        SortedDocValues sortedDv = null;
+        if (info.getDocValuesType() == DocValuesType.BINARY) {
+            dv = DocValues.getBinary(reader, field);
+        } else if (info.getDocValuesType() == DocValuesType.SORTED) {
+            sortedDv = DocValues.getSorted(reader, field);
+        } else {
+            return null;
+        }
+        FieldInfo dictInfo = reader.getFieldInfos().fieldInfo(ConditionExpressionField.leafDictField(field));
+        if (dictInfo == null || dictInfo.getDocValuesType() != DocValuesType.SORTED_SET) {
+            return new NearMissCounter(dv, sortedDv, null, null, trueIds);
+        }
+        SortedSetDocValues leafOrds = DocValues.getSortedSet(reader, dictInfo.name);
+        LongBitSet trueOrds = new LongBitSet(Math.max(1, leafOrds.getValueCount()));
+        for (String id : trueIds) {
+            long ord = leafOrds.lookupTerm(new BytesRef(id));
+            if (ord >= 0) trueOrds.set(ord);
+        }
+        return new NearMissCounter(dv, sortedDv, leafOrds, trueOrds, trueIds);
+    }
+
+    /** 式を持つ文書なら数える */
+    void collect(int doc) throws IOException {
+        if (sortedDv != null) {
+            if (!sortedDv.advanceExact(doc)) return;
+            int ord = sortedDv.ordValue();
+            if (exprFlips.get(ord) == null && !exprMatches[ord]) {
+                List<BytesRef> flipped = new ArrayList<>();
+                exprMatches[ord] = evaluator.sensitivityWithLeafTable(
+                        sortedDv.lookupOrd(ord), leafTruth, flipped);
+                if (!exprMatches[ord]) exprFlips.set(ord, flipped);
+            }
+            if (exprMatches[ord]) {
+                matched++;
+                return;
+            }
+            failing++;
+            if (!exprFlips.get(ord).isEmpty()) unlockable++;
+            exprCounts[ord]++;
+            return;
+        }
+        if (!dv.advanceExact(doc)) return;
+        BytesRef ref = dv.binaryValue();
+        if (leafOrds == null || ConditionEvaluator.isLegacy(ref)) {
+            collectLegacy(ref);
+            return;
+        }
+        int count = leafOrds.advanceExact(doc) ? leafOrds.docValueCount() : 0;
+        int words = Math.max(1, (count + 63) >>> 6);
+        if (localTrue.length < words) {
+            localTrue = new long[words];
+            flips = new long[words];
+        }
+        if (docOrds.length < count) docOrds = new long[Math.max(count, docOrds.length * 2)];
+        for (int i = 0; i < words; i++) localTrue[i] = 0L;
+        for (int i = 0; i < count; i++) {
+            docOrds[i] = leafOrds.nextOrd();
+            if (trueOrds.get(docOrds[i])) localTrue[i >>> 6] |= 1L << i;
+        }
+        if (evaluator.sensitivity(ref, localTrue, count, flips)) {
+            matched++;
+            return;
+        }
+        failing++;
+        boolean any = false;
+        for (int w = 0; w < words; w++) {
+            for (long bits = flips[w]; bits != 0L; bits &= bits - 1) {
+                ordCounts[(int) docOrds[(w << 6) + Long.numberOfTrailingZeros(bits)]]++;
+                any = true;
+            }
+        }
+        if (any) unlockable++;
+    }
+
+    // 古い形式の文書は葉辞書に載っていないので、葉 ID の文字列で数える
+    private void collectLegacy(BytesRef ref) {
+        legacyFlips.clear();
+        if (ConditionEvaluator.legacySensitivity(ref, trueIds::contains, legacyFlips)) {
+            matched++;
+            return;
+        }
+        failing++;
+        if (!legacyFlips.isEmpty()) unlockable++;
+        for (String id : legacyFlips) legacyCounts.merge(id, 1L, Long::sum);
+    }
+
+    /** 葉 ID ごとの文書数を {@code counts} に足す */
+    void addTo(Map<String, Long> counts) throws IOException {
+        legacyCounts.forEach((id, n) -> counts.merge(id, n, Long::sum));
+        if (sortedDv != null) {
+            for (int ord = 0; ord < exprCounts.length; ord++) {
+                if (exprCounts[ord] == 0) continue;
+                for (BytesRef id : exprFlips.get(ord)) {
+                    counts.merge(id.utf8ToString(), (long) exprCounts[ord], Long::sum);
+                }
+            }
+            return;
+        }
+        if (ordCounts == null) return;
+        for (int ord = 0; ord < ordCounts.length; ord++) {
+            if (ordCounts[ord] > 0) {
+                counts.merge(leafOrds.lookupOrd(ord).utf8ToString(), (long) ordCounts[ord], Long::sum);
+            }
+        }
+    }
+
+    /** 今の真の葉 ID でマッチした文書数 */
+    long matched() {
+        return matched;
+    }
+
+    /** マッチしなかった文書数 */
+    long failing() {
+        return failing;
+    }
+
+    /** マッチしなかったが、葉を一つ真にすればマッチする文書数 */
+    long unlockable() {
+        return unlockable;
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * 複数のポスティングの和集合を、docID の小さい順に遅延して辿る。
+ * 先頭の要素だけを進めるので、{@link #advance(int)} で読み飛ばした範囲のポスティングは読まない。
+ */
+final class PostingsDisjunction extends DocIdSetIterator {
+    private final PriorityQueue<PostingsEnum> queue;
+    private final long cost;
+    private int doc = -1;
+
+    PostingsDisjunction(List<PostingsEnum> postings) {
+        this.queue = new PriorityQueue<>(postings.size()) {
+            @Override
+            protected boolean lessThan(PostingsEnum a, PostingsEnum b) {
+                return a.docID() < b.docID();
+            }
+        };
+        long c = 0;
+        for (PostingsEnum p : postings) {
+            queue.add(p);
+            c += p.cost();
+        }
+        this.cost = c;
+    }
+
+    @Override
+    public int docID() {
+        return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+        PostingsEnum top = queue.top();
+        while (top.docID() == doc) {
+            top.nextDoc();
+            top = queue.updateTop();
+        }
+        return doc = top.docID();
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+        PostingsEnum top = queue.top();
+        while (top.docID() < target) {
+            top.advance(target);
+            top = queue.updateTop();
+        }
+        return doc = top.docID();
+    }
+
+    @Override
+    public long cost() {
+        return cost;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * 1 セグメント分の、最大 64 のシナリオ（真の葉 ID の集合）をまとめた評価。
+ * 葉辞書の ordinal ごとに「その葉を真にするシナリオ」のビットマスクを作っておき、
+ * 文書の式は一度だけ読んで {@link ConditionEvaluator#matchesMask} で全シナリオ分を求める。
+ * {@link SegmentMatcher} と同じく doc の昇順に使うこと。
+ */
+final class ScenarioMatcher {
+    private final List<ActivationSet> scenarios;
+    private final long all;
+    private final BinaryDocValues dv;           // storage=binary
+    private final SortedDocValues sortedDv;     // storage=sorted
+    private final SortedSetDocValues leafOrds;  // null なら葉辞書の無い古いセグメント
+    private final long[] maskedOrds;            // 昇順
+    private final long[] ordMasks;
+    private final ConditionEvaluator evaluator = new ConditionEvaluator();
+    private long[] localMasks = new long[1];
+
+    // storage=sorted の ordinal ごとの結果
+    private FixedBitSet evaluatedOrds;
+    private long[] sortedMasks;
+    private ConditionEvaluator.LeafMask leafMask;
+
+    private ScenarioMatcher(List<ActivationSet> scenarios, BinaryDocValues dv, SortedDocValues sortedDv,
+                            SortedSetDocValues leafOrds, long[] maskedOrds, long[] ordMasks) {
+        this.scenarios = scenarios;
+        this.all = scenarios.size() == 64 ? -1L : (1L << scenarios.size()) - 1;
+        this.dv = dv;
+        this.sortedDv = sortedDv;
+        this.leafOrds = leafOrds;
+        this.maskedOrds = maskedOrds;
+        this.ordMasks = ordMasks;
+        if (sortedDv != null) {
+            this.evaluatedOrds = new FixedBitSet(sortedDv.getValueCount());
+            this.sortedMasks = new long[sortedDv.getValueCount()];
+            this.leafMask = id -> leafOrds == null ? legacyMask(id) : mask(leafOrds.lookupTerm(id));
+        }
+    }
+
+    /** 条件式の DocValues が無いセグメントでは null。シナリオは 64 まで */
+    static ScenarioMatcher create(LeafReader reader, String field, List<ActivationSet> scenarios)
+            throws IOException {
+        if (scenarios.size() > 64) throw new IllegalArgumentException("too many scenarios: " + scenarios.size());
+        FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+        if (info == null) return null;
+        BinaryDocValues dv = null;
+        SortedDocValues sortedDv = null;
+        if (info.getDocValuesType() == DocValuesType.BINARY) {
+            dv = DocValues.getBinary(reader, field);
+        } else if (info.getDocValuesType() == DocValuesType.SORTED) {
+            sortedDv = DocValues.getSorted(reader, field);
+        } else {
+            return null;
+        }
+
+        FieldInfo dictInfo = reader.getFieldInfos().fieldInfo(ConditionExpressionField.leafDictField(field));
+        if (dictInfo == null || dictInfo.getDocValuesType() != DocValuesType.SORTED_SET) {
+            return new ScenarioMatcher(scenarios, dv, sortedDv, null, null, null);
+        }
+        SortedSetDocValues leafOrds = DocValues.getSortedSet(reader, dictInfo.name);
+        TreeMap<Long, Long> masks = new TreeMap<>();
+        for (int s = 0; s < scenarios.size(); s++) {
+            for (String id : scenarios.get(s).ids()) {
+                long ord = leafOrds.lookupTerm(new BytesRef(id));
+                if (ord >= 0) masks.merge(ord, 1L << s, (a, b) -> a | b);
+            }
+        }
+        long[] maskedOrds = new long[masks.size()];
+        long[] ordMasks = new long[masks.size()];
+        int i = 0;
+        for (Map.Entry<Long, Long> e : masks.entrySet()) {
+            maskedOrds[i] = e.getKey();
+            ordMasks[i++] = e.getValue();
+        }
+        return new ScenarioMatcher(scenarios, dv, sortedDv, leafOrds, maskedOrds, ordMasks);
+    }
+
+    /** 文書の式が真になるシナリオのビットマスク（i ビット目が i 番目のシナリオ） */
+    long matches(int doc) throws IOException {
+        if (sortedDv != null) {
+            if (!sortedDv.advanceExact(doc)) return 0L;
+            int ord = sortedDv.ordValue();
+            if (!evaluatedOrds.getAndSet(ord)) {
+                sortedMasks[ord] = evaluator.matchesMaskWithLeafTable(sortedDv.lookupOrd(ord), leafMask, all);
+            }
+            return sortedMasks[ord];
+        }
+        if (!dv.advanceExact(doc)) return 0L;
+        BytesRef ref = dv.binaryValue();
+        // 古い形式の文書は葉辞書に載っていないので文書ごとに見分ける
+        if (leafOrds == null || ConditionEvaluator.isLegacy(ref)) {
+            long mask = 0L;
+            for (int s = 0; s < scenarios.size(); s++) {
+                if (ConditionEvaluator.evaluate(ref, scenarios.get(s).ids())) mask |= 1L << s;
+            }
+            return mask;
+        }
+        int count = leafOrds.advanceExact(doc) ? leafOrds.docValueCount() : 0;
+        if (localMasks.length < count) localMasks = new long[Math.max(count, localMasks.length * 2)];
+        for (int i = 0; i < count; i++) localMasks[i] = mask(leafOrds.nextOrd());
+        return evaluator.matchesMask(ref, localMasks, all);
+    }
+
+    private long mask(long ord) {
+        if (ord < 0) return 0L;
+        int i = Arrays.binarySearch(maskedOrds, ord);
+        return i < 0 ? 0L : ordMasks[i];
+    }
+
+    // 葉辞書の無いセグメントの storage=sorted
+    private long legacyMask(BytesRef id) {
+        String s = id.utf8ToString();
+        long mask = 0L;
+        for (int i = 0; i < scenarios.size(); i++) {
+            if (scenarios.get(i).ids().contains(s)) mask |= 1L << i;
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,309 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LongBitSet;
+
+/**
+ * 1 セグメント分の条件式評価。
+ * 真の葉 ID はセグメントごとの葉辞書（{@link ConditionExpressionField#leafDictField(String)} の
+ * SortedSetDocValues）の ordinal のビット集合に一度だけ変換し、文書ごとの評価はビット検査で行う。
+ * ID のパターン（{@link LeafIdPatterns}）も同じく葉辞書と突き合わせてビット集合に足す。
+ * SortedDocValues で保存されたフィールドでは、異なる式（ordinal）ごとに一度だけ評価して結果を覚えておく。
+ * DocValues のイテレータを持つので、スレッド間で共有せず doc の昇順に使うこと。
+ * <p>
+ * 重み付きで作ると {@link #score(int)} で {@link ConditionEvaluator} のスコアも求められる。
+ * {@link ConditionBdd} を使うと、式を読まずにセグメントの二分決定図を辿って評価する。
+ */
+final class SegmentMatcher {
+    private final BinaryDocValues dv;           // storage=binary
+    private final SortedDocValues sortedDv;     // storage=sorted
+    private final SortedSetDocValues leafOrds;  // null なら葉辞書の無い古いセグメント
+    private final LongBitSet trueOrds;
+    private final Set<String> trueIds;
+    private final LeafIdPatterns patterns;
+    private final ConditionEvaluator evaluator = new ConditionEvaluator();
+    private long[] localTrue = new long[1];
+
+    // 重み付きのとき: 真の葉の ordinal（昇順）とその重み
+    private final Map<String, Float> weights;
+    private long[] weightedOrds;
+    private float[] ordWeights;
+    // storage=binary で直前に matches() した文書の葉の ordinal
+    private long[] docOrds = new long[1];
+    private int docOrdCount;
+    private float[] localWeights = new float[1];
+    private boolean legacyDoc;  // 直前の文書が古い形式の式だった
+
+    // 統計（ConditionMetrics / ConditionStats へ渡す）
+    private long evaluated;
+    private long matched;
+    private long expressionBytes;
+
+    // storage=sorted の ordinal ごとの評価結果
+    private FixedBitSet evaluatedOrds;
+    private FixedBitSet matchedOrds;
+    private ConditionEvaluator.LeafTruth leafTruth;
+    private float[] ordScores;  // NaN は未評価
+    private ConditionEvaluator.LeafWeight leafWeight;
+
+    private ConditionBdd.Evaluation bdd;
+
+    private SegmentMatcher(BinaryDocValues dv, SortedDocValues sortedDv, SortedSetDocValues leafOrds,
+                           LongBitSet trueOrds, Set<String> trueIds, LeafIdPatterns patterns,
+                           Map<String, Float> weights) {
+        this.dv = dv;
+        this.sortedDv = sortedDv;
+        this.leafOrds = leafOrds;
+        this.trueOrds = trueOrds;
+        this.trueIds = trueIds;
+        this.patterns = patterns;
+        this.weights = weights;
+        if (sortedDv != null) {
+            int valueCount = sortedDv.getValueCount();
+            this.evaluatedOrds = new FixedBitSet(valueCount);
+            this.matchedOrds = new FixedBitSet(valueCount);
+            this.leafTruth = id -> {
+                if (leafOrds == null) return isTrue(id.utf8ToString());
+                long ord = leafOrds.lookupTerm(id);
+                return ord >= 0 && trueOrds.get(ord);
+            };
+            this.leafWeight = id -> {
+                Float w = weights.get(id.utf8ToString());
+                return w == null ? ConditionEvaluator.NO_MATCH : w;
+            };
+        }
+    }
+
+    /** 条件式の DocValues が無いセグメントでは null */
+    static SegmentMatcher create(LeafReader reader, String field, Set<String> trueIds)
+            throws IOException {
+        return create(reader, field, ActivationSet.of(null, trueIds), Map.of());
+    }
+
+    /**
+     * {@code bddMaxNodes} が正なら、作れるセグメントでは {@link ConditionBdd} で評価する。
+     * 条件式の DocValues が無いセグメントでは null
+     */
+    static SegmentMatcher create(LeafReader reader, String field, ActivationSet set, int bddMaxNodes)
+            throws IOException {
+        SegmentMatcher matcher = create(reader, field, set, Map.of());
+        if (matcher != null && matcher.trueOrds != null) {
+            ConditionBdd shared = ConditionBdd.get(reader, field, bddMaxNodes);
+            if (shared != null) matcher.bdd = shared.evaluation(matcher.trueOrds);
+        }
+        return matcher;
+    }
+
+    /**
+     * 重み付きの評価。{@code weights} は真の葉 ID ごとの重み（{@code set} の ID と同じキー）で、
+     * パターンとは一緒に使えない。条件式の DocValues が無いセグメントでは null
+     */
+    static SegmentMatcher create(LeafReader reader, String field, ActivationSet set,
+                                 Map<String, Float> weights) throws IOException {
+        FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+        if (info == null) return null;
+        BinaryDocValues dv = null;
+        SortedDocValues sortedDv = null;
+        if (info.getDocValuesType() == DocValuesType.BINARY) {
+            dv = DocValues.getBinary(reader, field);
+        } else if (info.getDocValuesType() == DocValuesType.SORTED) {
+            sortedDv = DocValues.getSorted(reader, field);
+        } else {
+            return null;
+        }
+
+        Set<String> trueIds = set.ids();
+        LeafIdPatterns patterns = set.patterns();
+        FieldInfo dictInfo = reader.getFieldInfos().fieldInfo(ConditionExpressionField.leafDictField(field));
+        if (dictInfo == null || dictInfo.getDocValuesType() != DocValuesType.SORTED_SET) {
+            return new SegmentMatcher(dv, sortedDv, null, null, trueIds, patterns, weights);
+        }
+        SortedSetDocValues leafOrds = DocValues.getSortedSet(reader, dictInfo.name);
+        // 登録済みの集合ならセグメントごとに一度だけ葉辞書と突き合わせる（書き換えないこと）
+        LongBitSet trueOrds = set.trueOrds(reader, field, leafOrds);
+        SegmentMatcher matcher = new SegmentMatcher(dv, sortedDv, leafOrds, trueOrds, trueIds, patterns, weights);
+        if (!weights.isEmpty()) {
+            int n = (int) trueOrds.cardinality();
+            matcher.weightedOrds = new long[n];
+            matcher.ordWeights = new float[n];
+            long ord = -1;
+            for (int i = 0; i < n; i++) {
+                ord = trueOrds.nextSetBit(ord + 1);
+                matcher.weightedOrds[i] = ord;
+                matcher.ordWeights[i] = weights.get(leafOrds.lookupOrd(ord).utf8ToString());
+            }
+        }
+        return matcher;
+    }
+
+    /** 真の葉 ID とパターンを葉辞書の ordinal のビット集合にする */
+    static LongBitSet resolveOrds(SortedSetDocValues leafOrds, Set<String> trueIds, LeafIdPatterns patterns)
+            throws IOException {
+        LongBitSet trueOrds = new LongBitSet(Math.max(1, leafOrds.getValueCount()));
+        for (String id : trueIds) {
+            long ord = leafOrds.lookupTerm(new BytesRef(id));
+            if (ord >= 0) trueOrds.set(ord);
+        }
+        patterns.addOrds(leafOrds, trueOrds);
+        return trueOrds;
+    }
+
+    /**
+     * 同じセグメントを別のスレッドで評価するための matcher（並列評価の区切りごと）。
+     * DocValues のイテレータは作り直し、真の葉の ordinal と BDD の評価済みのノードは共有する。
+     * AND / OR の評価順（{@link #leavesFirst}）は引き継がない
+     */
+    SegmentMatcher fork(LeafReader reader, String field) throws IOException {
+        SegmentMatcher fork = new SegmentMatcher(
+                dv == null ? null : DocValues.getBinary(reader, field),
+                sortedDv == null ? null : DocValues.getSorted(reader, field),
+                leafOrds == null ? null : DocValues.getSortedSet(reader, ConditionExpressionField.leafDictField(field)),
+                trueOrds, trueIds, patterns, weights);
+        fork.weightedOrds = weightedOrds;
+        fork.ordWeights = ordWeights;
+        if (bdd != null) fork.bdd = bdd.fork();
+        return fork;
+    }
+
+    /** 式を持つ文書の列挙（DocValues のイテレータ）。{@link #create} と同じく型が合わなければ空 */
+    static DocIdSetIterator docsWithValue(LeafReader reader, String field) throws IOException {
+        FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+        if (info == null) return DocIdSetIterator.empty();
+        switch (info.getDocValuesType()) {
+            case BINARY:
+                return DocValues.getBinary(reader, field);
+            case SORTED:
+                return DocValues.getSorted(reader, field);
+            default:
+                return DocIdSetIterator.empty();
+        }
+    }
+
+    boolean matches(int doc) throws IOException {
+        if (bdd != null) return matchesBdd(doc);
+        if (sortedDv != null) return matchesSorted(doc);
+        if (!dv.advanceExact(doc)) return false;
+        BytesRef ref = dv.binaryValue();
+        evaluated++;
+        expressionBytes += ref.length;
+        // 古い形式の文書は葉辞書に載っていないので、セグメントに新しい文書が混ざっていても文書ごとに見分ける
+        legacyDoc = leafOrds == null || ConditionEvaluator.isLegacy(ref);
+        boolean match = legacyDoc
+                ? ConditionEvaluator.evaluate(ref, patterns.isEmpty() ? trueIds::contains : this::isTrue)
+                : matchesBinary(doc, ref);
+        if (match) matched++;
+        return match;
+    }
+
+    /** 古い形式の式で、葉 ID が真か */
+    private boolean isTrue(String id) {
+        return trueIds.contains(id) || patterns.matches(id);
+    }
+
+    private boolean matchesBdd(int doc) {
+        evaluated++;
+        if (!bdd.matches(doc)) return false;
+        matched++;
+        return true;
+    }
+
+    private boolean matchesBinary(int doc, BytesRef ref) throws IOException {
+        // 文書の葉は ordinal の昇順 = 式の中のローカル番号の順
+        int count = leafOrds.advanceExact(doc) ? leafOrds.docValueCount() : 0;
+        int words = (count + 63) >>> 6;
+        if (localTrue.length < words) localTrue = new long[words];
+        for (int i = 0; i < words; i++) localTrue[i] = 0L;
+        if (weightedOrds != null && docOrds.length < count) docOrds = new long[count];
+        docOrdCount = count;
+        for (int i = 0; i < count; i++) {
+            long ord = leafOrds.nextOrd();
+            if (weightedOrds != null) docOrds[i] = ord;
+            if (trueOrds.get(ord)) localTrue[i >>> 6] |= 1L << i;
+        }
+        return evaluator.matches(ref, localTrue);
+    }
+
+    /**
+     * 直前に {@link #matches(int)} が真を返した文書のスコア。重み無しで作った場合と、
+     * storage=binary の古い形式の式では 1。
+     */
+    float score(int doc) throws IOException {
+        if (weights.isEmpty()) return 1f;
+        if (sortedDv != null) return scoreSorted();
+        if (legacyDoc) return 1f;
+        int count = docOrdCount;
+        if (localWeights.length < count) localWeights = new float[count];
+        float trueWeightSum = 0f;
+        for (int i = 0; i < count; i++) {
+            if ((localTrue[i >>> 6] & (1L << i)) != 0) {
+                localWeights[i] = ordWeights[Arrays.binarySearch(weightedOrds, docOrds[i])];
+                trueWeightSum += localWeights[i];
+            }
+        }
+        return evaluator.score(dv.binaryValue(), localTrue, localWeights, trueWeightSum);
+    }
+
+    private float scoreSorted() throws IOException {
+        int ord = sortedDv.ordValue();
+        if (ordScores == null) {
+            ordScores = new float[sortedDv.getValueCount()];
+            Arrays.fill(ordScores, Float.NaN);
+        }
+        if (Float.isNaN(ordScores[ord])) {
+            ordScores[ord] = evaluator.scoreWithLeafTable(sortedDv.lookupOrd(ord), leafWeight);
+        }
+        return ordScores[ord];
+    }
+
+    private boolean matchesSorted(int doc) throws IOException {
+        if (!sortedDv.advanceExact(doc)) return false;
+        int ord = sortedDv.ordValue();
+        evaluated++;
+        if (!evaluatedOrds.getAndSet(ord)) {
+            BytesRef ref = sortedDv.lookupOrd(ord);
+            expressionBytes += ref.length;
+            if (evaluator.matchesWithLeafTable(ref, leafTruth)) matchedOrds.set(ord);
+        }
+        if (!matchedOrds.get(ord)) return false;
+        matched++;
+        return true;
+    }
+
+    /** AND / OR の子の評価順（{@link ConditionEvaluator#leavesFirst}）。BDD で評価する場合は使わない */
+    void leavesFirst(boolean inAnd, boolean inOr) {
+        evaluator.leavesFirst(inAnd, inOr);
+    }
+
+    /** 式を持っていて評価した（storage=sorted では結果を引いた分も含む）文書数 */
+    long evaluated() {
+        return evaluated;
+    }
+
+    long matched() {
+        return matched;
+    }
+
+    /** 訪れたノード数（storage=sorted では異なる式ごとに一度だけ評価した分、BDD では新たに評価したノード） */
+    long visitedNodes() {
+        return bdd != null ? bdd.visitedNodes() : evaluator.visitedNodes();
+    }
+
+    /** 読んだ式のバイト数 */
+    long expressionBytes() {
+        return expressionBytes;
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.solr.cond;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * 重み付きの真の葉 ID によるスコアを返す Scorer。
+ * スコアは {@link ConditionEvaluator} の定義により、文書の真の葉の重みの和で頭打ちになる。
+ * そこで 128 文書の区切りごとに「その区切りに現れる真の葉の重みの和」を上限として持ち、
+ * {@link #getMaxScore(int)} に返す。{@link #setMinCompetitiveScore(float)} 以後は
+ * 上限が足りない区切りを候補の列挙ごと読み飛ばす。
+ */
+final class WeightedConditionScorer extends Scorer {
+    static final int BLOCK_SHIFT = 7;
+    // 上限は double で足してから float にする。文書のスコアは float で足すので、
+    // 和が float で表せない（丸めが起きうる）ときは丸めの差の分だけ余裕を持たせる
+    private static final double ROUNDING_SLACK = 1e-5;
+
+    private final SegmentMatcher matcher;
+    private final float boost;
+    private final int maxDoc;
+    private final float[] blockMax;  // null なら区切りごとの上限を持たない
+    private final float maxScore;    // セグメント全体の上限（boost 前）
+    private final BlockSkippingIterator approximation;
+    private final TwoPhaseIterator twoPhase;
+    private float minCompetitiveScore;
+
+    /**
+     * @param leavesField 葉のポスティングのフィールド。区切りごとの上限はここから求める
+     * @param legacyDocs 葉のポスティングに載らない古い形式の文書が混ざっているか
+     * @param blockMaxScores 区切りごとの上限を求めるか（{@code ScoreMode.TOP_SCORES} のときだけ要る）
+     */
+    WeightedConditionScorer(Weight weight, LeafReader reader, String leavesField, SegmentMatcher matcher,
+                            DocIdSetIterator candidates, Map<String, Float> weights, float boost,
+                            boolean legacyDocs, boolean blockMaxScores) throws IOException {
+        super(weight);
+        this.matcher = matcher;
+        this.boost = boost;
+        this.maxDoc = reader.maxDoc();
+        double total = 0;
+        for (float w : weights.values()) total += w;
+        Terms terms = reader.terms(leavesField);
+        if (terms == null || legacyDocs) {
+            // 古い形式の文書は重みを使わずに 1 を返し、ポスティングからは区切りの上限を求められない
+            this.blockMax = null;
+            this.maxScore = Math.max(1f, slack(total));
+        } else {
+            this.blockMax = blockMaxScores ? blockMaxScores(terms, weights, maxDoc) : null;
+            this.maxScore = slack(total);
+        }
+        this.approximation = new BlockSkippingIterator(candidates);
+        this.twoPhase = new TwoPhaseIterator(approximation) {
+            @Override
+            public boolean matches() throws IOException {
+                return matcher.matches(approximation.docID());
+            }
+
+            @Override
+            public float matchCost() {
+                return ConditionExpressionQuery.MATCH_COST;
+            }
+        };
+    }
+
+    private static float slack(double sum) {
+        float f = (float) sum;
+        // 同点の文書を飛ばせるよう、表せるならちょうどの値にする
+        return f == sum ? f : Math.nextUp((float) (sum * (1 + ROUNDING_SLACK)));
+    }
+
+    /** 各区切りに現れる真の葉の重みの和。葉ごとにポスティングを区切り単位で飛ばしながら辿る */
+    private static float[] blockMaxScores(Terms terms, Map<String, Float> weights, int maxDoc)
+            throws IOException {
+        int blocks = (maxDoc >>> BLOCK_SHIFT) + 1;
+        double[] sums = new double[blocks];
+        TermsEnum te = terms.iterator();
+        PostingsEnum postings = null;
+        for (Map.Entry<String, Float> e : weights.entrySet()) {
+            if (e.getValue() == 0f || !te.seekExact(new BytesRef(e.getKey()))) continue;
+            postings = te.postings(postings, PostingsEnum.NONE);
+            for (int d = postings.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; ) {
+                int block = d >>> BLOCK_SHIFT;
+                sums[block] += e.getValue();
+                int next = (block + 1) << BLOCK_SHIFT;
+                d = next >= maxDoc ? DocIdSetIterator.NO_MORE_DOCS : postings.advance(next);
+            }
+        }
+        float[] max = new float[blocks];
+        for (int i = 0; i < blocks; i++) max[i] = slack(sums[i]);
+        return max;
+    }
+
+    @Override
+    public int docID() {
+        return approximation.docID();
+    }
+
+    @Override
+    public DocIdSetIterator iterator() {
+        return TwoPhaseIterator.asDocIdSetIterator(twoPhase);
+    }
+
+    @Override
+    public TwoPhaseIterator twoPhaseIterator() {
+        return twoPhase;
+    }
+
+    @Override
+    public float score() throws IOException {
+        return matcher.score(docID()) * boost;
+    }
+
+    @Override
+    public int advanceShallow(int target) {
+        if (blockMax == null || target >= maxDoc) return DocIdSetIterator.NO_MORE_DOCS;
+        return Math.min(maxDoc, ((target >>> BLOCK_SHIFT) + 1) << BLOCK_SHIFT) - 1;
+    }
+
+    @Override
+    public float getMaxScore(int upTo) {
+        if (blockMax == null) return maxScore * boost;
+        int from = Math.max(0, docID()) >>> BLOCK_SHIFT;
+        int to = Math.min(upTo, maxDoc - 1) >>> BLOCK_SHIFT;
+        float max = 0f;
+        for (int b = from; b <= to && b < blockMax.length; b++) max = Math.max(max, blockMax[b]);
+        return max * boost;
+    }
+
+    @Override
+    public void setMinCompetitiveScore(float minScore) {
+        this.minCompetitiveScore = minScore;
+    }
+
+    private boolean competitive(int block) {
+        return blockMax == null || blockMax[block] * boost >= minCompetitiveScore;
+    }
+
+    /** 候補の列挙のうち、上限が最低スコアに届かない区切りを飛ばしたもの */
+    private final class BlockSkippingIterator extends DocIdSetIterator {
+        private final DocIdSetIterator in;
+        private int doc = -1;
+
+        BlockSkippingIterator(DocIdSetIterator in) {
+            this.in = in;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            while (true) {
+                target = competitiveTarget(target);
+                if (target == NO_MORE_DOCS) return doc = NO_MORE_DOCS;
+                int d = in.docID() >= target ? in.docID() : in.advance(target);
+                if (d == NO_MORE_DOCS || competitive(d >>> BLOCK_SHIFT)) return doc = d;
+                target = ((d >>> BLOCK_SHIFT) + 1) << BLOCK_SHIFT;
+            }
+        }
+
+        /** target 以降で最初の、上限が足りる区切りの先頭（target の区切りが足りれば target） */
+        private int competitiveTarget(int target) {
+            if (target >= maxDoc) return NO_MORE_DOCS;
+            int block = target >>> BLOCK_SHIFT;
+            if (competitive(block)) return target;
+            int blocks = blockMax.length;
+            do {
+                block++;
+            } while (block < blocks && !competitive(block));
+            int start = block << BLOCK_SHIFT;
+            return block < blocks && start < maxDoc ? start : NO_MORE_DOCS;
+        }
+
+        @Override
+        public long cost() {
+            return in.cost();
+        }
+    }
+}
@@ -1,6 +1,44 @@
 package com.example.solr.cond;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongBitSet;
+import org.apache.lucene.util.Version;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.ConfigNode;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.IndexSchemaFactory;
+import org.apache.solr.search.QParser;
+import org.apache.solr.util.RefCounted;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -17,6 +55,9 @@ public class ConditionExpressionQueryTest extends SolrTestCaseJ4 {
         clearIndex();
     }
 
+    // 基本のクエリを、結果キャッシュとセッションを使う cond と、キャッシュを使わない ucond の両方で確かめる
+    private static final String[] CORE_PARSERS = {"cond", "ucond"};
+
     @Test
     public void testSingleCondition() {
         assertU(adoc("id", "1", "cond_expr", "A"));
@@ -26,10 +67,12 @@ public class ConditionExpressionQueryTest extends SolrTestCaseJ4 {
         assertU(adoc("id", "5", "cond_expr", "B"));
         assertU(commit());
 
-        assertQ(req("q", "{!cond field=cond_expr true_ids=A}"),
-                "//*[@numFound='2']",
-                "//doc/str[@name='id'][.='1']",
-                "//doc/str[@name='id'][.='4']");
+        for (String parser : CORE_PARSERS) {
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=A}"),
+                    "//*[@numFound='2']",
+                    "//doc/str[@name='id'][.='1']",
+                    "//doc/str[@name='id'][.='4']");
+        }
     }
 
     @Test
@@ -41,11 +84,13 @@ public class ConditionExpressionQueryTest extends SolrTestCaseJ4 {
         assertU(adoc("id", "5", "cond_expr", "B"));
         assertU(commit());
 
-        assertQ(req("q", "{!cond field=cond_expr true_ids=A,B}"),
-                "//*[@numFound='3']",
-                "//doc/str[@name='id'][.='1']",
-                "//doc/str[@name='id'][.='4']",
-                "//doc/str[@name='id'][.='5']");
+        for (String parser : CORE_PARSERS) {
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=A,B}"),
+                    "//*[@numFound='3']",
+                    "//doc/str[@name='id'][.='1']",
+                    "//doc/str[@name='id'][.='4']",
+                    "//doc/str[@name='id'][.='5']");
+        }
     }
 
     @Test
@@ -57,10 +102,12 @@ public class ConditionExpressionQueryTest extends SolrTestCaseJ4 {
         assertU(adoc("id", "5", "cond_expr", "E"));
         assertU(commit());
 
-        assertQ(req("q", "{!cond field=cond_expr true_ids=B}"),
-                "//*[@numFound='2']",
-                "//doc/str[@name='id'][.='1']",
-                "//doc/str[@name='id'][.='4']");
+        for (String parser : CORE_PARSERS) {
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=B}"),
+                    "//*[@numFound='2']",
+                    "//doc/str[@name='id'][.='1']",
+                    "//doc/str[@name='id'][.='4']");
+        }
     }
 
     @Test
@@ -72,10 +119,12 @@ public class ConditionExpressionQueryTest extends SolrTestCaseJ4 {
         assertU(adoc("id", "5", "cond_expr", "C"));
         assertU(commit());
 
-        assertQ(req("q", "{!cond field=cond_expr true_ids=A}"),
-                "//*[@numFound='2']",
-                "//doc/str[@name='id'][.='2']",
-                "//doc/str[@name='id'][.='3']");
+        for (String parser : CORE_PARSERS) {
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=A}"),
+                    "//*[@numFound='2']",
+                    "//doc/str[@name='id'][.='2']",
+                    "//doc/str[@name='id'][.='3']");
+        }
     }
 
     @Test
@@ -87,10 +136,1122 @@ public class ConditionExpressionQueryTest extends SolrTestCaseJ4 {
         assertU(adoc("id", "5", "cond_expr", "(A AND B AND C)"));
         assertU(commit());
 
-        assertQ(req("q", "{!cond field=cond_expr true_ids=A,B}"),
+        for (String parser : CORE_PARSERS) {
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=A,B}"),
+                    "//*[@numFound='3']",
+                    "//doc/str[@name='id'][.='1']",
+                    "//doc/str[@name='id'][.='3']",
+                    "//doc/str[@name='id'][.='4']");
+        }
+    }
+
+    @Test
+    public void testNoTrueIds() {
+        assertU(adoc("id", "1", "cond_expr", "(NOT A)"));
+        assertU(adoc("id", "2", "cond_expr", "(A OR (NOT B))"));
+        assertU(adoc("id", "3", "cond_expr", "(A AND (NOT B))"));
+        assertU(adoc("id", "4", "cond_expr", "B"));
+        assertU(commit());
+
+        for (String parser : CORE_PARSERS) {
+            assertQ(req("q", "{!" + parser + " field=cond_expr}"),
+                    "//*[@numFound='2']",
+                    "//doc/str[@name='id'][.='1']",
+                    "//doc/str[@name='id'][.='2']");
+        }
+    }
+
+    @Test
+    public void testAsFilterAcrossSegments() {
+        assertU(adoc("id", "1", "cond_expr", "(A AND (NOT C))"));
+        assertU(adoc("id", "2", "cond_expr", "(NOT B)"));
+        assertU(commit());
+        assertU(adoc("id", "3", "cond_expr", "(B OR C)"));
+        assertU(adoc("id", "4", "cond_expr", "A"));
+        assertU(commit());
+
+        for (String parser : CORE_PARSERS) {
+            assertQ(req("q", "id:(1 OR 3 OR 4)", "fq", "{!" + parser + " field=cond_expr true_ids=A,C}"),
+                    "//*[@numFound='2']",
+                    "//doc/str[@name='id'][.='3']",
+                    "//doc/str[@name='id'][.='4']");
+        }
+    }
+
+    @Test
+    public void testManyLeaves() {
+        // 1 文書に 64 を超える葉（ローカル番号が 2 ワード目にかかる）
+        StringBuilder wide = new StringBuilder("(");
+        for (int i = 0; i < 70; i++) {
+            if (i > 0) wide.append(" OR ");
+            wide.append("L").append(i);
+        }
+        wide.append(")");
+        assertU(adoc("id", "1", "cond_expr", wide.toString()));
+        assertU(adoc("id", "2", "cond_expr", "(L69 AND (NOT L1))"));
+        assertU(adoc("id", "3", "cond_expr", "L1"));
+        assertU(commit());
+
+        for (String parser : CORE_PARSERS) {
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=L69}"),
+                    "//*[@numFound='2']",
+                    "//doc/str[@name='id'][.='1']",
+                    "//doc/str[@name='id'][.='2']");
+        }
+        for (String parser : CORE_PARSERS) {
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=L1,L69}"),
+                    "//*[@numFound='2']",
+                    "//doc/str[@name='id'][.='1']",
+                    "//doc/str[@name='id'][.='3']");
+        }
+    }
+
+    @Test
+    public void testVersionedFormat() throws Exception {
+        // 新しい木は必ずヘッダーで始まり、ヘッダーの無いバイト列は古い形式として扱う
+        byte[] v2 = ConditionExpressionParser.parseToBytes("((A AND (NOT B)) OR C)");
+        assertEquals(ConditionEvaluator.FORMAT_V2, v2[0]);
+        byte[] legacy = legacyBytes("((A AND (NOT B)) OR C)");
+        assertTrue(ConditionEvaluator.isLegacy(new BytesRef(legacy)));
+        assertFalse(ConditionEvaluator.isLegacy(new BytesRef(v2)));
+        expectThrows(IllegalStateException.class,
+                () -> ConditionEvaluator.evaluate(new BytesRef(legacy), new long[] {0}));
+        String[] ids = {"A", "B", "C"};
+        for (int bits = 0; bits < 8; bits++) {
+            long[] localTrue = {bits};
+            Set<String> active = new HashSet<>();
+            for (int i = 0; i < ids.length; i++) {
+                if ((bits & (1 << i)) != 0) active.add(ids[i]);
+            }
+            assertEquals(ConditionEvaluator.evaluate(new BytesRef(v2), localTrue),
+                    ConditionEvaluator.evaluate(new BytesRef(legacy), active));
+        }
+
+        // 127 を超える子と、1 バイトに収まらない葉の番号
+        StringBuilder wide = new StringBuilder("(");
+        for (int i = 0; i < 200; i++) {
+            if (i > 0) wide.append(" OR ");
+            wide.append("W").append(i);
+        }
+        wide.append(")");
+        assertU(adoc("id", "1", "cond_expr", wide.toString()));
+        assertU(adoc("id", "2", "cond_sorted", wide.toString()));
+        assertU(adoc("id", "3", "cond_expr", "W10"));
+        assertU(commit());
+
+        assertQ(req("q", "{!cond field=cond_expr true_ids=W99}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='1']");
+        assertQ(req("q", "{!cond field=cond_sorted true_ids=W99}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='2']");
+        assertQ(req("q", "{!cond field=cond_expr true_ids=W10}"),
+                "//*[@numFound='2']",
+                "//doc/str[@name='id'][.='1']",
+                "//doc/str[@name='id'][.='3']");
+    }
+
+    @Test
+    public void testLegacyDocsInMixedSegment() throws Exception {
+        // 古い形式の文書（葉辞書・葉のポスティング・統計の term が無い）をマージで新しい文書と同じセグメントにする
+        assertU(adoc("id", "1", "cond_expr", "(A AND B)"));
+        assertU(adoc("id", "2", "cond_expr", "C"));
+        assertU(commit());
+        addLegacyDoc("L1", "(A AND (NOT D))");
+        addLegacyDoc("L2", "(B OR C)");
+        RefCounted<IndexWriter> writer = h.getCore().getSolrCoreState().getIndexWriter(h.getCore());
+        try {
+            writer.get().forceMerge(1);
+        } finally {
+            writer.decref();
+        }
+        assertU(commit());
+
+        h.getCore().withSearcher(searcher -> {
+            assertEquals(1, searcher.getIndexReader().leaves().size());
+            return null;
+        });
+        for (String parser : new String[] {"cond", "bcond", "pcond"}) {
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=A}"),
+                    "//*[@numFound='1']",
+                    "//doc/str[@name='id'][.='L1']");
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=A,B}"),
+                    "//*[@numFound='3']",
+                    "//doc/str[@name='id'][.='1']",
+                    "//doc/str[@name='id'][.='L1']",
+                    "//doc/str[@name='id'][.='L2']");
+            assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=C}"),
+                    "//*[@numFound='2']",
+                    "//doc/str[@name='id'][.='2']",
+                    "//doc/str[@name='id'][.='L2']");
+        }
+        // ポスティングからは候補を集めない（結果のキャッシュに無い集合で計画を見る）
+        String segment = "//lst[@name='debug']/lst[@name='cond']/arr[@name='segments']/lst/";
+        assertQ(req("q", "{!cond field=cond_expr true_ids=D}", "debugQuery", "true"),
+                "//*[@numFound='0']",
+                segment + "str[@name='strategy'][.='ALL_DOCS']",
+                segment + "bool[@name='legacyDocs'][.='true']",
+                segment + "lst[@name='stats']/int[@name='docCount'][.='2']");
+        // 重み付きでは古い形式の文書のスコアは 1
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A:2,B:3}", "fl", "id,score"),
+                "//*[@numFound='3']",
+                "//doc[str[@name='id']='1']/float[@name='score'][.='5.0']",
+                "//doc[str[@name='id']='L1']/float[@name='score'][.='1.0']");
+        // セッションの差分も葉のポスティングに頼らない
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A session=legacy}"), "//*[@numFound='1']");
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A,C session=legacy}"), "//*[@numFound='3']");
+
+        // 式の文字列・あと一つの集計も文書ごとに古い形式を読む
+        assertQ(req("q", "id:L1", "fl", "id,expr:[cond f=cond_expr]"),
+                "//doc/str[@name='expr'][.='(A AND NOT D)']");
+        String out = "//lst[@name='cond_nearmiss']/";
+        assertQ(req("q", "*:*", "rows", "0", "cond.nearmiss", "true", "cond.nearmiss.field", "cond_expr",
+                        "cond.nearmiss.true_ids", "A"),
+                out + "long[@name='matchedDocs'][.='1']",
+                out + "long[@name='failingDocs'][.='3']",
+                out + "lst[@name='unlocks']/long[@name='B'][.='2']",
+                out + "lst[@name='unlocks']/long[@name='C'][.='2']");
+        assertQ(req("qt", "/cond/sets", "action", "put", "name", "legacyC", "ids", "C"),
+                "//lst[@name='set']/str[@name='name'][.='legacyC']");
+        assertQ(req("q", "*:*", "rows", "0", "cond.scenarios", "true",
+                        "cond.scenarios.field", "cond_expr", "cond.scenarios.sets", "legacyC"),
+                "//lst[@name='cond_scenarios']/long[@name='legacyC'][.='2']");
+    }
+
+    /** 葉 ID を文字列で書いた古い形式のバイト列 */
+    private static byte[] legacyBytes(String expr) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeLegacy(ConditionExpressionParser.parse(expr), out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeLegacy(ConditionExpressionParser.Node n, DataOutputStream out) throws Exception {
+        if (n instanceof ConditionExpressionParser.Leaf leaf) {
+            out.writeByte(0);
+            out.writeUTF(leaf.id);
+        } else if (n instanceof ConditionExpressionParser.And and) {
+            out.writeByte(1);
+            out.writeByte(and.children.size());
+            for (ConditionExpressionParser.Node c : and.children) writeLegacy(c, out);
+        } else if (n instanceof ConditionExpressionParser.Or or) {
+            out.writeByte(2);
+            out.writeByte(or.children.size());
+            for (ConditionExpressionParser.Node c : or.children) writeLegacy(c, out);
+        } else if (n instanceof ConditionExpressionParser.Not not) {
+            out.writeByte(3);
+            writeLegacy(not.child, out);
+        } else {
+            throw new IllegalArgumentException("not in the legacy format: " + n);
+        }
+    }
+
+    /** 古い版のフィールドが書いていたのと同じく、式の DocValues と保存値だけを持つ文書を IndexWriter で足す */
+    private void addLegacyDoc(String id, String expr) throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField("id", id, Field.Store.YES));
+        doc.add(new StoredField("cond_expr", expr));
+        doc.add(new BinaryDocValuesField("cond_expr", new BytesRef(legacyBytes(expr))));
+        RefCounted<IndexWriter> writer = h.getCore().getSolrCoreState().getIndexWriter(h.getCore());
+        try {
+            writer.get().addDocument(doc);
+        } finally {
+            writer.decref();
+        }
+    }
+
+    @Test
+    public void testSinglePassCompiler() {
+        StringBuilder wide = new StringBuilder("(");
+        for (int i = 0; i < 150; i++) {
+            if (i > 0) wide.append(i % 3 == 0 ? " AND " : " OR ");
+            wide.append("K").append(149 - i);
+        }
+        wide.append(")");
+        String[] exprs = {
+                "A",
+                "((A AND B) OR C)",
+                "(NOT (b or a)) and c",
+                "((A OR (B AND C)) AND (NOT D)) OR A",
+                "AT LEAST 2 OF (A, (B AND C), NOT D)",
+                "(AT OR LEAST)",
+                "AT",
+                "(x1 AND \u00e9t\u00e9 AND Z)",
+                wide.toString(),
+        };
+        for (String expr : exprs) {
+            CompiledExpression expected = ConditionExpressionParser.compile(expr);
+            CompiledExpression actual = ConditionExpressionCompiler.compile(expr);
+            assertArrayEquals(expr, expected.bytes(), actual.bytes());
+            assertEquals(expr, expected.leaves(), actual.leaves());
+            assertEquals(expr, expected.matchesWithoutLeaves(), actual.matchesWithoutLeaves());
+        }
+        for (String bad : new String[] {"", "(A AND", "A AND OR B", "AT LEAST x OF (A)", "AT LEAST 3 OF (A, B)",
+                "A B", "(A AND B) C", "A)", "NOT A (B)", "A OR *", "(? AND B)", "A OR \u0000", "AT LEAST 1 OF (A, -)",
+                "A AND )"}) {
+            IllegalArgumentException expected = expectThrows(IllegalArgumentException.class,
+                    () -> ConditionExpressionParser.compile(bad));
+            IllegalArgumentException actual = expectThrows(IllegalArgumentException.class,
+                    () -> ConditionExpressionCompiler.compile(bad));
+            assertEquals(bad, expected.getMessage(), actual.getMessage());
+        }
+        // 葉 ID は英数字のみ。目印の term（\u0000）やパターンの記号は葉にできない
+        assertEquals("invalid leaf id: *", expectThrows(IllegalArgumentException.class,
+                () -> ConditionExpressionCompiler.compile("A OR * OR ? OR \u0000")).getMessage());
+        assertFailedU(adoc("id", "bad3", "cond_expr", "(A OR \u0000)"));
+        // 式の後に残ったトークンは読み捨てずに拒否する
+        assertEquals("trailing tokens: C", expectThrows(IllegalArgumentException.class,
+                () -> ConditionExpressionCompiler.compile("(A AND B) C")).getMessage());
+        assertEquals("trailing tokens: )", expectThrows(IllegalArgumentException.class,
+                () -> ConditionExpressionParser.parse("A )")).getMessage());
+
+        // 不正な式は文書 ID 付きで拒否する
+        assertFailedU(adoc("id", "bad1", "cond_expr", "(A AND"));
+        assertU(adoc("id", "1", "cond_expr", "(A AND B)"));
+        assertU(adoc("id", "2", "cond_expr", "(A AND B)"));
+        assertU(commit());
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A,B}"), "//*[@numFound='2']");
+        SolrException e = expectThrows(SolrException.class, () -> h.update(adoc("id", "bad2", "cond_expr", "A OR")));
+        assertEquals(400, e.code());
+        assertTrue(e.getMessage(), e.getMessage().contains("bad2"));
+    }
+
+    @Test
+    public void testShortCircuitSkipsRemainingChildren() {
+        // 途中で決まった AND / OR の残りを読み飛ばした後も、続く兄弟を正しく評価できること
+        assertU(adoc("id", "1", "cond_expr", "((C AND (A OR B) AND D) OR A)"));
+        assertU(adoc("id", "2", "cond_expr", "((A OR (B AND C)) AND (NOT D))"));
+        assertU(adoc("id", "3", "cond_expr", "((A OR B) AND (C OR (NOT A)))"));
+        assertU(adoc("id", "4", "cond_expr", "((NOT A) OR (B AND C) OR D)"));
+        assertU(commit());
+
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A}"),
+                "//*[@numFound='2']",
+                "//doc/str[@name='id'][.='1']",
+                "//doc/str[@name='id'][.='2']");
+    }
+
+    @Test
+    public void testLeavesFirstOrder() {
+        // 葉を先に評価しても、書かれた順に評価したときと結果は変わらない
+        String[] exprs = {
+                "((C AND (A OR B) AND D) OR A)",
+                "((A OR (B AND C)) AND (NOT D))",
+                "(A AND (NOT (B OR C)) AND AT LEAST 2 OF (A, B, (C AND D)))",
+                "((NOT A) OR (B AND C) OR D)",
+        };
+        ConditionEvaluator plain = new ConditionEvaluator();
+        ConditionEvaluator andFirst = new ConditionEvaluator();
+        andFirst.leavesFirst(true, false);
+        ConditionEvaluator orFirst = new ConditionEvaluator();
+        orFirst.leavesFirst(false, true);
+        for (String expr : exprs) {
+            BytesRef ref = new BytesRef(ConditionExpressionParser.parseToBytes(expr));
+            for (int bits = 0; bits < 16; bits++) {
+                long[] localTrue = {bits};
+                boolean expected = plain.matches(ref, localTrue);
+                assertEquals(expr, expected, andFirst.matches(ref, localTrue));
+                assertEquals(expr, expected, orFirst.matches(ref, localTrue));
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentStatsAndPlan() throws Exception {
+        assertU(adoc("id", "1", "cond_canon", "(A AND B)"));
+        assertU(adoc("id", "2", "cond_canon", "NOT C"));
+        assertU(adoc("id", "3", "cond_canon", "(A OR NOT A)"));
+        assertU(adoc("id", "4", "cond_canon", "(A AND NOT A)"));
+        assertU(adoc("id", "5", "cond_canon", "(A OR C)"));
+        assertU(commit());
+
+        // 候補は A の 2 文書と目印の 2 文書。常に偽の文書は候補にならない
+        String segment = "//lst[@name='debug']/lst[@name='cond']/arr[@name='segments']/lst/";
+        assertQ(req("q", "{!cond field=cond_canon true_ids=A}", "debugQuery", "true"),
+                "//*[@numFound='3']",
+                segment + "str[@name='strategy'][.='LAZY_POSTINGS']",
+                segment + "long[@name='estimatedCost'][.='4']",
+                segment + "str[@name='leavesFirst'][.='AND']",
+                segment + "lst[@name='stats']/int[@name='docCount'][.='5']",
+                segment + "lst[@name='stats']/long[@name='alwaysTrue'][.='1']",
+                segment + "lst[@name='stats']/long[@name='alwaysFalse'][.='1']",
+                segment + "lst[@name='stats']/long[@name='notRooted'][.='1']");
+        // 候補の文書頻度の和が式を持つ文書数に達すれば、ポスティングを辿らずに全文書を評価する
+        assertQ(req("q", "{!cond field=cond_canon true_ids=A,B,C}", "debugQuery", "true"),
+                "//*[@numFound='3']",
+                segment + "str[@name='strategy'][.='ALL_DOCS']",
+                segment + "str[@name='leavesFirst'][.='OR']");
+
+        Query query = new ConditionExpressionQuery("cond_canon", Set.of("A"));
+        h.getCore().withSearcher(searcher -> {
+            Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.COMPLETE_NO_SCORES, 1f);
+            LeafReaderContext leaf = searcher.getIndexReader().leaves().get(0);
+            assertEquals(4, weight.scorerSupplier(leaf).cost());
+            return null;
+        });
+        assertNull(h.getCore().withSearcher(searcher -> {
+            Query none = new ConditionExpressionQuery("cond_expr", Set.of("Z"));
+            Weight weight = searcher.createWeight(searcher.rewrite(none), ScoreMode.COMPLETE_NO_SCORES, 1f);
+            return weight.scorerSupplier(searcher.getIndexReader().leaves().get(0));
+        }));
+    }
+
+    @Test
+    public void testSortedStorage() {
+        // 同じ式を共有する文書は ordinal ごとに一度だけ評価される
+        assertU(adoc("id", "1", "cond_sorted", "((A AND B) OR C)"));
+        assertU(adoc("id", "2", "cond_sorted", "((A AND B) OR C)"));
+        assertU(adoc("id", "3", "cond_sorted", "(A AND (NOT B))"));
+        assertU(adoc("id", "4", "cond_sorted", "(C AND D)"));
+        assertU(commit());
+        assertU(adoc("id", "5", "cond_sorted", "(A AND (NOT B))"));
+        assertU(adoc("id", "6", "cond_sorted", "(NOT D)"));
+        assertU(commit());
+
+        assertQ(req("q", "{!cond field=cond_sorted true_ids=A,B}"),
+                "//*[@numFound='3']",
+                "//doc/str[@name='id'][.='1']",
+                "//doc/str[@name='id'][.='2']",
+                "//doc/str[@name='id'][.='6']");
+        assertQ(req("q", "{!cond field=cond_sorted true_ids=A,D}"),
+                "//*[@numFound='2']",
+                "//doc/str[@name='id'][.='3']",
+                "//doc/str[@name='id'][.='5']");
+
+        // 葉テーブルを含めて 32766 バイトを超える式は storage=sorted に入らない（binary なら入る）
+        StringBuilder big = new StringBuilder("L0");
+        for (int i = 1; i < 4000; i++) big.append(" OR L").append(i);
+        assertFailedU(adoc("id", "7", "cond_sorted", big.toString()));
+        assertU(adoc("id", "7", "cond_expr", big.toString()));
+        assertU(commit());
+        assertQ(req("q", "{!cond field=cond_expr true_ids=L3999}"), "//*[@numFound='1']");
+        assertQ(req("q", "id:7"), "//*[@numFound='1']");
+    }
+
+    @Test
+    public void testResultCache() throws Exception {
+        assertU(adoc("id", "1", "cond_expr", "(A AND B)"));
+        assertU(adoc("id", "2", "cond_expr", "(NOT C)"));
+        assertU(commit());
+        assertU(adoc("id", "3", "cond_expr", "(B OR C)"));
+        assertU(commit());
+
+        // true_ids の順序が違っても同じ結果（同じキャッシュのエントリ）になる
+        for (String ids : new String[] {"A,B", "B,A", "A,B"}) {
+            assertQ(req("q", "{!cond field=cond_expr true_ids=" + ids + "}"),
+                    "//*[@numFound='3']");
+        }
+        h.getCore().withSearcher(searcher -> {
+            assertEquals(2, searcher.getCache("condCache").size());  // 2 セグメント分
+            return null;
+        });
+
+        // 残っているセグメントの結果は新しいサーチャーへ引き継がれる
+        assertU(adoc("id", "4", "cond_expr", "A"));
+        assertU(commit());
+        h.getCore().withSearcher(searcher -> {
+            assertEquals(2, searcher.getCache("condCache").size());
+            return null;
+        });
+        assertQ(req("q", "{!cond field=cond_expr true_ids=B,A}"),
+                "//*[@numFound='4']");
+
+        // cache=false なら結果キャッシュに入れない（セッションも使わない）
+        assertQ(req("q", "{!cond cache=false field=cond_expr true_ids=C}"), "//*[@numFound='1']");
+        assertQ(req("q", "{!cond cache=false session=nc field=cond_expr true_ids=C}"), "//*[@numFound='1']");
+        h.getCore().withSearcher(searcher -> {
+            assertEquals(3, searcher.getCache("condCache").size());
+            assertEquals(0, searcher.getCache("condSessions").size());
+            return null;
+        });
+    }
+
+    @Test
+    public void testCanonicalize() throws Exception {
+        assertU(adoc("id", "1", "cond_canon", "(A AND (B AND A))"));
+        assertU(adoc("id", "2", "cond_canon", "(B AND A)"));
+        assertU(adoc("id", "3", "cond_canon", "NOT (NOT C)"));
+        assertU(adoc("id", "4", "cond_canon", "(A OR (NOT A))"));
+        assertU(adoc("id", "5", "cond_canon", "((B AND (NOT B)) OR (C AND D AND (NOT C)))"));
+        assertU(commit());
+
+        assertQ(req("q", "{!cond field=cond_canon true_ids=A,B}"),
                 "//*[@numFound='3']",
                 "//doc/str[@name='id'][.='1']",
+                "//doc/str[@name='id'][.='2']",
+                "//doc/str[@name='id'][.='4']");
+        assertQ(req("q", "{!cond field=cond_canon}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='4']");
+
+        // 正規形が等しい式は同じバイト列になる: (A AND B), C, TRUE, FALSE
+        h.getCore().withSearcher(searcher -> {
+            Set<BytesRef> distinct = new HashSet<>();
+            for (LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+                SortedDocValues dv = DocValues.getSorted(leaf.reader(), "cond_canon");
+                for (int ord = 0; ord < dv.getValueCount(); ord++) {
+                    distinct.add(BytesRef.deepCopyOf(dv.lookupOrd(ord)));
+                }
+            }
+            assertEquals(4, distinct.size());
+            return null;
+        });
+    }
+
+    @Test
+    public void testParallelBulkScorer() {
+        int expected = 0;
+        for (int i = 0; i < 300; i++) {
+            assertU(adoc("id", Integer.toString(i),
+                    "cond_expr", "(L" + (i % 7) + " OR (NOT L" + (i % 5) + "))"));
+            boolean l7 = i % 7 == 1 || i % 7 == 2;
+            boolean l5 = i % 5 == 1 || i % 5 == 2;
+            if (l7 || !l5) expected++;
+        }
+        assertU(commit());
+
+        assertQ(req("q", "{!pcond field=cond_expr true_ids=L1,L2}"),
+                "//*[@numFound='" + expected + "']");
+        assertQ(req("q", "*:*", "fq", "{!pcond field=cond_expr true_ids=L1,L2}"),
+                "//*[@numFound='" + expected + "']");
+        assertQ(req("q", "{!cond field=cond_expr true_ids=L1,L2}"),
+                "//*[@numFound='" + expected + "']");
+
+        // 目印の無い式を足して候補をポスティングから作る計画にし、区切りで候補と BDD の評価を共有しても同じ結果
+        int matched = 0;
+        for (int i = 300; i < 600; i++) {
+            assertU(adoc("id", Integer.toString(i), "cond_expr", "(P" + (i % 7) + " AND Q" + (i % 3) + ")"));
+            if ((i % 7 == 1 || i % 7 == 2) && i % 3 == 1) matched++;
+        }
+        assertU(commit());
+        assertU(optimize());
+        StringBuilder many = new StringBuilder("P1,P2,Q1");
+        for (int i = 0; i < ConditionExpressionQuery.LAZY_DISJUNCTION_MAX_TERMS; i++) many.append(",Z").append(i);
+        String[][] cases = {{"P1,P2,Q1", "LAZY_POSTINGS"}, {many.toString(), "POSTINGS_UNION"}};
+        for (String[] c : cases) {
+            for (String parser : new String[] {"pcond", "pbcond", "cond"}) {
+                assertQ(req("q", "{!" + parser + " field=cond_expr true_ids=" + c[0] + "}", "debugQuery", "true"),
+                        "//*[@numFound='" + (300 + matched) + "']",
+                        "//lst[@name='debug']/lst[@name='cond']/arr[@name='segments']/lst/str[@name='strategy'][.='"
+                                + c[1] + "']");
+            }
+        }
+    }
+
+    @Test
+    public void testPostFilter() {
+        assertU(adoc("id", "1", "cond_expr", "(A AND (NOT C))"));
+        assertU(adoc("id", "2", "cond_expr", "(NOT B)"));
+        assertU(commit());
+        assertU(adoc("id", "3", "cond_expr", "(B OR C)"));
+        assertU(adoc("id", "4", "cond_expr", "A"));
+        assertU(adoc("id", "5", "cond_sorted", "(A OR B)"));
+        assertU(commit());
+
+        // PostFilter として評価したことはメトリクスに残る。評価するのは q を通った 3 文書だけ
+        var counters = h.getCore().getSolrMetricsContext().getMetricRegistry().getCounters();
+        String prefix = "QUERY." + ConditionExpressionQParserPlugin.class.getName() + ".";
+        long postFilterPasses = counters.get(prefix + "postFilterPasses").getCount();
+        long evaluated = counters.get(prefix + "evaluatedDocs").getCount();
+        assertQ(req("q", "id:(1 OR 3 OR 4)",
+                        "fq", "{!cond cache=false cost=200 field=cond_expr true_ids=A,C}"),
+                "//*[@numFound='2']",
                 "//doc/str[@name='id'][.='3']",
                 "//doc/str[@name='id'][.='4']");
+        assertEquals(postFilterPasses + 2, counters.get(prefix + "postFilterPasses").getCount());  // 2 セグメント
+        assertEquals(evaluated + 3, counters.get(prefix + "evaluatedDocs").getCount());
+        // cost が 100 未満なら通常のフィルタとして評価する
+        assertQ(req("q", "id:(1 OR 3 OR 4)",
+                        "fq", "{!cond cache=false cost=50 field=cond_expr true_ids=A,C}"),
+                "//*[@numFound='2']");
+        assertEquals(postFilterPasses + 2, counters.get(prefix + "postFilterPasses").getCount());
+        assertQ(req("q", "*:*",
+                        "fq", "{!cond cache=false cost=200 field=cond_expr true_ids=B}",
+                        "fq", "{!cond cache=false cost=300 field=cond_expr true_ids=A,B}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='3']");
+        assertQ(req("q", "*:*",
+                        "fq", "{!cond cache=false cost=200 field=cond_sorted true_ids=B}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='5']");
+    }
+
+    @Test
+    public void testWeightedScoring() {
+        assertU(adoc("id", "1", "cond_expr", "(A AND B)"));
+        assertU(adoc("id", "2", "cond_expr", "(A OR C)"));
+        assertU(adoc("id", "3", "cond_expr", "(NOT D)"));
+        assertU(adoc("id", "4", "cond_expr", "B"));
+        assertU(adoc("id", "5", "cond_expr", "D"));
+        assertU(adoc("id", "6", "cond_sorted", "(C AND (A OR B))"));
+        assertU(adoc("id", "7", "cond_sorted", "(A AND (A OR D))"));
+        assertU(commit());
+
+        // AND は和、OR は真の子の最大、NOT は 0
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A:2,B:0.5,C}", "fl", "id,score"),
+                "//*[@numFound='4']",
+                "//result/doc[1]/str[@name='id'][.='1']",
+                "//result/doc[1]/float[@name='score'][.='2.5']",
+                "//result/doc[2]/str[@name='id'][.='2']",
+                "//result/doc[2]/float[@name='score'][.='2.0']",
+                "//result/doc[3]/str[@name='id'][.='4']",
+                "//result/doc[4]/str[@name='id'][.='3']",
+                "//result/doc[4]/float[@name='score'][.='0.0']");
+        // 同じ葉を重ねて数えない: (A AND (A OR D)) は A の重み 2 で頭打ち
+        assertQ(req("q", "{!cond field=cond_sorted true_ids=A:2,B:0.5,C}", "fl", "id,score"),
+                "//*[@numFound='2']",
+                "//result/doc[1]/str[@name='id'][.='6']",
+                "//result/doc[1]/float[@name='score'][.='3.0']",
+                "//result/doc[2]/str[@name='id'][.='7']",
+                "//result/doc[2]/float[@name='score'][.='2.0']");
+        // 重みが無ければ定数スコア
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A,B,C}", "fl", "id,score"),
+                "//*[@numFound='4']",
+                "count(//result/doc/float[@name='score'][.='1.0'])=4");
+    }
+
+    @Test
+    public void testMaxScorePruning() throws Exception {
+        // 高いスコアの文書は最後の区切りにだけある
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            String expr = i >= n - 10 ? "(HI AND LO)" : "(LO OR (NOT X" + (i % 3) + "))";
+            assertU(adoc("id", Integer.toString(i), "cond_expr", expr));
+        }
+        assertU(commit());
+        h.getCore().withSearcher(searcher -> {
+            ConditionExpressionQuery q = new ConditionExpressionQuery("cond_expr",
+                    java.util.Map.of("HI", 10f, "LO", 1f, "X0", 0f));
+            TopScoreDocCollector all = TopScoreDocCollector.create(5, Integer.MAX_VALUE);
+            searcher.search(q, all);
+            TopScoreDocCollector top = TopScoreDocCollector.create(5, 5);
+            searcher.search(q, top);
+            TopDocs exhaustive = all.topDocs();
+            TopDocs pruned = top.topDocs();
+            assertEquals(n, exhaustive.totalHits.value);
+            assertEquals(5, pruned.scoreDocs.length);
+            for (int i = 0; i < 5; i++) {
+                ScoreDoc e = exhaustive.scoreDocs[i];
+                ScoreDoc p = pruned.scoreDocs[i];
+                assertEquals(e.doc, p.doc);
+                assertEquals(11f, p.score, 0f);
+            }
+            assertTrue(pruned.totalHits.value < n);
+            return null;
+        });
+    }
+
+    @Test
+    public void testAtLeast() {
+        assertU(adoc("id", "1", "cond_expr", "AT LEAST 2 OF (A, B, (C AND D))"));
+        assertU(adoc("id", "2", "cond_expr", "(AT LEAST 1 OF (NOT A, B) AND E)"));
+        assertU(adoc("id", "3", "cond_sorted", "at least 3 of (A, B, C, NOT D)"));
+        assertU(adoc("id", "4", "cond_canon", "AT LEAST 2 OF (A, B, (A OR (NOT A)))"));
+        assertU(adoc("id", "5", "cond_expr", "(AT OR B)"));
+        assertU(commit());
+
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A,C,D}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='1']");
+        assertQ(req("q", "{!cond field=cond_expr true_ids=E}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='2']");
+        assertQ(req("q", "{!cond field=cond_expr true_ids=AT}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='5']");
+        assertQ(req("q", "{!cond field=cond_sorted true_ids=A,B}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='3']");
+        assertQ(req("q", "{!cond field=cond_sorted true_ids=A,B,D}"),
+                "//*[@numFound='0']");
+        // 真の子（A OR NOT A）を繰り込んで AT LEAST 1 OF (A, B) = (A OR B) になる
+        assertQ(req("q", "{!cond field=cond_canon true_ids=B}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='4']");
+        // 重みでは真の子のスコアをすべて足す
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A:1,B:2,C:3,D:4}", "fl", "id,score"),
+                "//*[@numFound='2']",
+                "//result/doc[1]/str[@name='id'][.='1']",
+                "//result/doc[1]/float[@name='score'][.='10.0']");
+    }
+
+    @Test
+    public void testActivationSets() throws Exception {
+        assertU(adoc("id", "1", "cond_expr", "(A AND B)"));
+        assertU(adoc("id", "2", "cond_expr", "(NOT C)"));
+        assertU(adoc("id", "3", "cond_expr", "D"));
+        assertU(commit());
+
+        assertQ(req("qt", "/cond/sets", "action", "put", "name", "s1", "ids", "A,B,C"),
+                "//lst[@name='set']/long[@name='version'][.='1']",
+                "//lst[@name='set']/int[@name='size'][.='3']");
+        assertQ(req("q", "{!cond field=cond_expr set=s1}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='1']");
+
+        // 差分で C を外して D を足す（D は POST の本文で渡す）
+        assertQ(req("qt", "/cond/sets", "action", "remove", "name", "s1", "ids", "C"),
+                "//lst[@name='set']/long[@name='version'][.='2']");
+        SolrQueryRequest add = req("qt", "/cond/sets", "action", "add", "name", "s1");
+        ((org.apache.solr.request.SolrQueryRequestBase) add).setContentStreams(
+                java.util.List.of(new ContentStreamBase.StringStream("D\n")));
+        assertQ(add, "//lst[@name='set']/int[@name='size'][.='3']");
+        assertQ(req("q", "{!cond field=cond_expr set=s1}"),
+                "//*[@numFound='3']");
+        assertQ(req("qt", "/cond/sets"),
+                "//lst[@name='sets']/lst[@name='s1']/long[@name='version'][.='3']");
+
+        // 登録済みの集合は版ごと・セグメントごとに葉辞書の ordinal を一度だけ引く
+        ActivationSet v1 = ActivationSet.of("s2", List.of("A", "D"));
+        ActivationSet v2 = v1.apply(List.of("C"), List.of());
+        assertEquals(v1.contentHash(), ActivationSet.of(null, List.of("D", "A")).contentHash());
+        h.getCore().withSearcher(searcher -> {
+            for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+                SortedSetDocValues dict = DocValues.getSortedSet(leaf.reader(),
+                        ConditionExpressionField.leafDictField("cond_expr"));
+                LongBitSet ords = v1.trueOrds(leaf.reader(), "cond_expr", dict);
+                assertEquals(2, ords.cardinality());
+                assertSame(ords, v1.trueOrds(leaf.reader(), "cond_expr", dict));
+                assertEquals(3, v2.trueOrds(leaf.reader(), "cond_expr", dict).cardinality());
+                ActivationSet inline = ActivationSet.of(null, List.of("A", "D"));
+                assertNotSame(inline.trueOrds(leaf.reader(), "cond_expr", dict),
+                        inline.trueOrds(leaf.reader(), "cond_expr", dict));
+            }
+            return null;
+        });
+
+        // インラインのコンパクト形式
+        String encoded = ActivationSet.encode(Set.of("C", "D"));
+        assertEquals(Set.of("C", "D"), ActivationSet.decode(encoded));
+        assertQ(req("q", "{!cond field=cond_expr true_ids_bin=" + encoded + "}"),
+                "//*[@numFound='1']",
+                "//doc/str[@name='id'][.='3']");
+
+        assertQ(req("qt", "/cond/sets", "action", "delete", "name", "s1"),
+                "//lst[@name='set']/str[@name='name'][.='s1']");
+        assertQEx("unknown set", req("q", "{!cond field=cond_expr set=s1}"), 400);
+    }
+
+    @Test
+    public void testSharedBdd() throws Exception {
+        // 共通の節を持つ式。BDD でも式を文書ごとに評価した場合と同じ結果になること
+        String[] exprs = {
+                "((A AND B) OR C)",
+                "((A AND B) OR (C AND (NOT D)))",
+                "(NOT ((A AND B) OR C))",
+                "(AT LEAST 2 OF (A, B, (C OR E)))",
+                "((A AND B) OR (D AND E))",
+                "E",
+                "(NOT E)",
+        };
+        int id = 0;
+        for (int round = 0; round < 2; round++) {
+            for (String expr : exprs) {
+                assertU(adoc("id", Integer.toString(id++), "cond_expr", expr));
+                assertU(adoc("id", Integer.toString(id++), "cond_sorted", expr));
+            }
+            assertU(commit());
+        }
+
+        String[] leaves = {"A", "B", "C", "D", "E"};
+        for (int bits = 0; bits < 1 << leaves.length; bits++) {
+            StringBuilder ids = new StringBuilder("Z");
+            for (int i = 0; i < leaves.length; i++) {
+                if ((bits & (1 << i)) != 0) ids.append(',').append(leaves[i]);
+            }
+            for (String field : new String[] {"cond_expr", "cond_sorted"}) {
+                String local = " field=" + field + " true_ids=" + ids + "}";
+                assertEquals(ids + " " + field, count("{!cond" + local), count("{!bcond" + local));
+            }
+        }
+
+        h.getCore().withSearcher(searcher -> {
+            for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+                ConditionBdd bdd = ConditionBdd.get(leaf.reader(), "cond_expr", 10000);
+                assertNotNull(bdd);
+                // 葉 5 つの関数なので、式の数によらずノードは少ない
+                assertTrue(bdd.size() < 40);
+                assertSame(bdd, ConditionBdd.get(leaf.reader(), "cond_expr", 10000));
+                assertNull(ConditionBdd.get(leaf.reader(), "cond_expr", 4));
+                // 上限を超えて作っても覚えておくのは MAX_ENTRIES まで
+                for (int maxNodes = 100; maxNodes < 100 + 2 * ConditionBdd.MAX_ENTRIES; maxNodes++) {
+                    assertNotNull(ConditionBdd.get(leaf.reader(), "cond_expr", maxNodes));
+                    assertTrue(ConditionBdd.cacheSize() <= ConditionBdd.MAX_ENTRIES);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void testScenarioCounts() throws Exception {
+        String[] exprs = {
+                "((A AND B) OR C)",
+                "(A AND (NOT D))",
+                "(NOT (B OR C))",
+                "(AT LEAST 2 OF (A, B, C, D))",
+                "D",
+                // 入れ子の AT LEAST（マスクのスタックを重ねて使う）
+                "AT LEAST 2 OF (A, AT LEAST 1 OF (B, D), (C AND AT LEAST 2 OF (A, B, D)))",
+        };
+        int id = 0;
+        for (int round = 0; round < 3; round++) {
+            for (String expr : exprs) {
+                assertU(adoc("id", Integer.toString(id++), "cond_expr", expr, "cond_sorted", expr));
+            }
+            assertU(commit());
+        }
+
+        // 64 を超えるシナリオ（2 パスに分かれる）
+        String[] leaves = {"A", "B", "C", "D"};
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < 70; i++) {
+            StringBuilder ids = new StringBuilder("Z");
+            for (int b = 0; b < leaves.length; b++) {
+                if ((i & (1 << b)) != 0) ids.append(',').append(leaves[b]);
+            }
+            assertQ(req("qt", "/cond/sets", "action", "put", "name", "sc" + i, "ids", ids.toString()),
+                    "//lst[@name='set']/str[@name='name'][.='sc" + i + "']");
+            if (i > 0) names.append(',');
+            names.append("sc").append(i);
+        }
+
+        for (String field : new String[] {"cond_expr", "cond_sorted"}) {
+            String[] tests = new String[70];
+            String[] filtered = new String[70];
+            for (int i = 0; i < 70; i++) {
+                long expected = count("{!cond field=" + field + " set=sc" + i + "}");
+                tests[i] = "//lst[@name='cond_scenarios']/long[@name='sc" + i + "'][.='" + expected + "']";
+                // 同じ式を 3 回入れているので、1 回目の 6 文書に絞ればちょうど 1/3
+                filtered[i] = "//lst[@name='cond_scenarios']/long[@name='sc" + i + "'][.='" + expected / 3 + "']";
+            }
+            assertQ(req("q", "*:*", "rows", "0", "cond.scenarios", "true",
+                    "cond.scenarios.field", field, "cond.scenarios.sets", names.toString()), tests);
+            assertQ(req("q", "id:(0 1 2 3 4 5)", "rows", "0", "cond.scenarios", "true",
+                    "cond.scenarios.field", field, "cond.scenarios.sets", names.toString(),
+                    "cond.scenarios.filter", "true"), filtered);
+        }
+        assertQEx("unknown set", req("q", "*:*", "cond.scenarios", "true",
+                "cond.scenarios.field", "cond_expr", "cond.scenarios.sets", "nope"), 400);
+    }
+
+    @Test
+    public void testValueSource() throws Exception {
+        assertU(adoc("id", "1", "cond_expr", "(A AND B)"));
+        assertU(adoc("id", "2", "cond_expr", "(A OR C)"));
+        assertU(adoc("id", "3", "cond_expr", "C"));
+        assertU(commit());
+        assertU(adoc("id", "4", "cond_expr", "(NOT C)"));
+        assertU(adoc("id", "5"));
+        assertU(commit());
+        assertQ(req("qt", "/cond/sets", "action", "put", "name", "vs", "ids", "A,B"),
+                "//lst[@name='set']/int[@name='size'][.='2']");
+
+        // 0/1 の値
+        assertQ(req("q", "*:*", "fl", "id,m:cond(cond_expr,vs)", "sort", "id asc"),
+                "//*[@numFound='5']",
+                "//doc[str[@name='id']='1']/float[@name='m'][.='1.0']",
+                "//doc[str[@name='id']='2']/float[@name='m'][.='1.0']",
+                "//doc[str[@name='id']='3']/float[@name='m'][.='0.0']",
+                "//doc[str[@name='id']='4']/float[@name='m'][.='1.0']",
+                "//doc[str[@name='id']='5']/float[@name='m'][.='0.0']");
+        // セグメント内で doc が前に戻っても同じ値（Scorer を作り直す）
+        assertQ(req("q", "*:*", "fl", "id,m:cond(cond_expr,vs),w:cond(cond_expr,vs,'A:2,B:1')", "sort", "id desc"),
+                "//doc[str[@name='id']='3']/float[@name='m'][.='0.0']",
+                "//doc[str[@name='id']='2']/float[@name='m'][.='1.0']",
+                "//doc[str[@name='id']='2']/float[@name='w'][.='2.0']",
+                "//doc[str[@name='id']='1']/float[@name='m'][.='1.0']",
+                "//doc[str[@name='id']='1']/float[@name='w'][.='3.0']",
+                "//doc[str[@name='id']='4']/float[@name='w'][.='0.0']");
+
+        // 重み付き: 1 は A + B = 3、2 は A = 2、4 は NOT だけなので 0
+        assertQ(req("q", "*:*", "fl", "id", "sort", "cond(cond_expr,vs,'A:2,B:1') desc,id desc"),
+                "//result/doc[1]/str[@name='id'][.='1']",
+                "//result/doc[2]/str[@name='id'][.='2']");
+
+        // JSON facet の集計
+        assertJQ(req("q", "*:*", "rows", "0",
+                        "json.facet", "{hits:'sum(cond(cond_expr,vs))', score:'sum(cond(cond_expr,vs,\\'A:2\\'))'}"),
+                "/facets/hits==3.0",
+                "/facets/score==5.0");
+
+        assertQEx("unknown set", req("q", "*:*", "fl", "cond(cond_expr,nope)"), 400);
+    }
+
+    @Test
+    public void testNearMiss() throws Exception {
+        String[] exprs = {
+                "(A AND B)",
+                "(A AND C)",
+                "(B AND C)",
+                "((NOT A) AND D)",
+                "AT LEAST 2 OF (A, B, C)",
+                "A",
+                "(B OR ((NOT E) AND F))",
+                "(NOT (A OR H))",
+        };
+        for (int i = 0; i < exprs.length; i++) {
+            assertU(adoc("id", "b" + i, "cond_expr", exprs[i]));
+            assertU(adoc("id", "s" + i, "cond_sorted", exprs[i]));
+            if (i == 3) assertU(commit());
+        }
+        assertU(commit());
+
+        // A だけが真のとき、B は 1, 5, 7 番目、C は 2, 5 番目、F は 7 番目の式を真にする
+        String out = "//lst[@name='cond_nearmiss']/";
+        for (String field : new String[] {"cond_expr", "cond_sorted"}) {
+            assertQ(req("q", "*:*", "rows", "0", "cond.nearmiss", "true", "cond.nearmiss.field", field,
+                            "cond.nearmiss.true_ids", "A", "cond.nearmiss.limit", "2"),
+                    out + "long[@name='matchedDocs'][.='1']",
+                    out + "long[@name='failingDocs'][.='7']",
+                    out + "long[@name='unlockableDocs'][.='4']",
+                    "count(" + out + "lst[@name='unlocks']/long)=2",
+                    out + "lst[@name='unlocks']/long[1][@name='B'][.='3']",
+                    out + "lst[@name='unlocks']/long[2][@name='C'][.='2']");
+        }
+
+        // 葉ごとにクエリを投げ直した結果と一致する
+        long base = count("{!cond field=cond_expr true_ids=A}");
+        for (String id : new String[] {"B", "C", "D", "E", "F", "H"}) {
+            long unlocked = count("{!cond field=cond_expr true_ids=A," + id + "}") - base;
+            String xpath = unlocked == 0
+                    ? "count(" + out + "lst[@name='unlocks']/long[@name='" + id + "'])=0"
+                    : out + "lst[@name='unlocks']/long[@name='" + id + "'][.='" + unlocked + "']";
+            assertQ(req("q", "*:*", "rows", "0", "cond.nearmiss", "true", "cond.nearmiss.field", "cond_expr",
+                    "cond.nearmiss.true_ids", "A"), xpath);
+        }
+
+        // メインのクエリの結果の中だけで数える
+        assertQ(req("q", "id:(b0 b1)", "cond.nearmiss", "true", "cond.nearmiss.field", "cond_expr",
+                        "cond.nearmiss.true_ids", "A", "cond.nearmiss.filter", "true"),
+                out + "long[@name='failingDocs'][.='2']",
+                out + "lst[@name='unlocks']/long[@name='B'][.='1']",
+                out + "lst[@name='unlocks']/long[@name='C'][.='1']");
+    }
+
+    @Test
+    public void testRenderExpressions() throws Exception {
+        String[] exprs = {
+                "(A AND B)",
+                "((NOT A) AND D)",
+                "AT LEAST 2 OF (A, B, C)",
+                "A",
+                "(B OR ((NOT E) AND F))",
+                "(NOT (A OR H))",
+                "NOT (NOT C)",
+                "TRUE",
+        };
+        // 戻した式をもう一度変換すると同じバイト列になる
+        for (String expr : exprs) {
+            CompiledExpression c = ConditionExpressionParser.compile(expr);
+            String text = ConditionExpressionDecompiler.decompileWithLeafTable(new BytesRef(c.bytesWithLeafTable()));
+            assertArrayEquals(text, c.bytes(), ConditionExpressionParser.compile(text).bytes());
+            assertEquals(text, ConditionExpressionDecompiler.decompile(new BytesRef(c.bytes()),
+                    c.leaves().toArray(new BytesRef[0])));
+        }
+
+        for (int i = 0; i < exprs.length; i++) {
+            assertU(adoc("id", "r" + i, "cond_expr", exprs[i], "cond_sorted", exprs[i], "cond_canon", exprs[i]));
+            if (i == 3) assertU(commit());
+        }
+        assertU(adoc("id", "r8", "cond_expr", exprs[0]));
+        assertU(commit());
+
+        // id の降順に並べ、セグメント内で doc が前に戻る場合も通す
+        String[] rendered = {
+                "(A AND B)", "(NOT A AND D)", "AT LEAST 2 OF (A, B, C)", "A",
+                "(B OR (NOT E AND F))", "NOT (A OR H)", "NOT (NOT C)", "TRUE",
+        };
+        List<String> xpaths = new ArrayList<>();
+        xpaths.add("//*[@numFound='9']");
+        for (int i = 0; i < exprs.length; i++) {
+            for (String field : new String[] {"cond_expr", "cond_sorted"}) {
+                xpaths.add("//doc[str[@name='id']='r" + i + "']/str[@name='" + field + "'][.='" + rendered[i] + "']");
+            }
+        }
+        xpaths.add("//doc[str[@name='id']='r8']/str[@name='cond_expr'][.='(A AND B)']");
+        xpaths.add("count(//doc[str[@name='id']='r8']/str[@name='cond_sorted'])=0");
+        // 正規化したフィールドは正規形になる
+        xpaths.add("//doc[str[@name='id']='r6']/str[@name='cond_canon'][.='C']");
+        assertQ(req("q", "*:*", "fl", "id,cond_expr,cond_sorted,cond_canon,[cond]", "sort", "id desc", "rows", "20"),
+                xpaths.toArray(new String[0]));
+
+        // fl で求めたフィールドだけ、または f で指定したフィールドを別名で返す
+        assertQ(req("q", "id:r1", "fl", "id,cond_sorted,[cond]"),
+                "//doc/str[@name='cond_sorted'][.='(NOT A AND D)']",
+                "count(//doc/str[@name='cond_expr'])=0");
+        assertQ(req("q", "id:r1", "fl", "id,expr:[cond f=cond_expr]"),
+                "//doc/str[@name='expr'][.='(NOT A AND D)']",
+                "count(//doc/str[@name='cond_expr'])=0");
+        assertQEx("not a condition field", req("q", "*:*", "fl", "id,[cond f=id]"), 400);
+
+        // fl=* では DocValues を返さないので、[cond] を添えれば式を返す
+        assertQ(req("q", "id:r1", "fl", "*,[cond]"),
+                "//doc/str[@name='id'][.='r1']",
+                "//doc/str[@name='cond_expr'][.='(NOT A AND D)']",
+                "//doc/str[@name='cond_sorted'][.='(NOT A AND D)']");
+        // Facet の値は toObject / indexedToReadable で式に戻す（並びは葉テーブル付きのバイト列の順）
+        assertJQ(req("q", "id:(r0 OR r3 OR r8)", "rows", "0",
+                        "json.facet", "{f:{type:terms,field:cond_sorted,sort:'index asc'}}"),
+                "/facets/f/buckets==[{'val':'A','count':1},{'val':'(A AND B)','count':1}]");
+        assertQ(req("q", "id:(r0 OR r3)", "rows", "0", "facet", "true", "facet.field", "cond_sorted"),
+                "//lst[@name='cond_sorted']/int[@name='(A AND B)'][.='1']",
+                "//lst[@name='cond_sorted']/int[@name='A'][.='1']");
+
+        // Solr 9.4 の useDocValuesAsStored は FieldType を通さずバイト列を返すので、保存しないフィールドでは拒否する
+        String schema = "<schema name='uDVAS' version='1.6'>"
+                + "<fieldType name='string' class='solr.StrField'/>"
+                + "<fieldType name='cond_expr_sorted' class='com.example.solr.cond.ConditionExpressionField' storage='sorted'/>"
+                + "<field name='id' type='string' indexed='true' stored='true'/>"
+                + "<field name='cond_dv' type='cond_expr_sorted' docValues='true' stored='false' useDocValuesAsStored='true'/>"
+                + "<uniqueKey>id</uniqueKey></schema>";
+        SolrResourceLoader loader = h.getCore().getResourceLoader();
+        ConfigNode node = IndexSchemaFactory.getParsedSchema(
+                new ByteArrayInputStream(schema.getBytes(StandardCharsets.UTF_8)), loader, "uDVAS");
+        SolrException rejected = expectThrows(SolrException.class,
+                () -> new IndexSchema("uDVAS", () -> node, Version.LATEST, loader, new Properties()));
+        assertTrue(rejected.getMessage(), rejected.getMessage().contains("useDocValuesAsStored")
+                || String.valueOf(rejected.getCause()).contains("useDocValuesAsStored"));
+    }
+
+    @Test
+    public void testLeafIdPatterns() throws Exception {
+        // 地域 R・店舗 S・棚 B の階層の ID。R1S0..R1S19 は遅延しない候補の作り方（16 term 超）も通す
+        List<String> exprs = new ArrayList<>(List.of(
+                "R1S1B1", "(R1S1B2 AND R2S1B1)", "(NOT R1S2B1)", "(R2S1B1 OR R2S2B1)",
+                "AT LEAST 2 OF (R1S1B1, R2S1B1, R3S1B1)", "(R3S1B1 AND (NOT R1S1B1))"));
+        for (int i = 0; i < 20; i++) exprs.add("(R1S" + i + "B9 AND R3S1B1)");
+        int id = 0;
+        for (String expr : exprs) {
+            assertU(adoc("id", Integer.toString(id++), "cond_expr", expr));
+            assertU(adoc("id", Integer.toString(id++), "cond_sorted", expr));
+            if (id == 12) assertU(commit());
+        }
+        assertU(commit());
+
+        Set<String> all = new HashSet<>();
+        for (String expr : exprs) {
+            all.addAll(ConditionExpressionParser.compile(expr).leaves().stream().map(BytesRef::utf8ToString).toList());
+        }
+        String[][] cases = {
+                {"R1*"}, {"R2*"}, {"R1S1*", "R3S1B1"}, {"R?S1B1"}, {"R1S1?9", "R3*"}, {"*"}, {"X*"},
+        };
+        for (String[] c : cases) {
+            // パターンを展開した ID の一覧と同じ結果になる
+            String patterns = String.join(",", c);
+            String ids = expandForTest(patterns, all);
+            for (String field : new String[] {"cond_expr", "cond_sorted"}) {
+                long expected = count("{!cond field=" + field + " true_ids=" + ids + "}");
+                for (String parser : new String[] {"cond", "pcond", "bcond"}) {
+                    assertEquals(patterns + " " + field + " " + parser, expected,
+                            count("{!" + parser + " field=" + field + " true_ids=" + patterns + "}"));
+                }
+                assertEquals(patterns + " " + field + " fq", expected,
+                        count("{!cond field=" + field + " cache=false cost=200 true_ids=" + patterns + "}"));
+            }
+        }
+
+        // セッションの直前の結果はパターンが変われば引き継がない
+        for (String p : new String[] {"R1*", "R1*,R2S1B1", "R3*", "R3*,R1S1B1"}) {
+            assertEquals(p, count("{!cond field=cond_expr true_ids=" + expandForTest(p, all) + "}"),
+                    count("{!cond session=pat field=cond_expr true_ids=" + p + "}"));
+        }
+
+        assertQEx("weighted pattern", req("q", "{!cond field=cond_expr true_ids=R1*,R2S1B1:2}"), 400);
+        // * や ? の葉は式に書けないので、それらを含む ID は常にパターン。パターンも英数字と * ? だけ
+        assertFailedU(adoc("id", "star", "cond_expr", "(R1S1B1 OR *)"));
+        assertQEx("invalid pattern", req("q", "{!cond field=cond_expr true_ids=R1-*}"), 400);
+    }
+
+    /** パターンに当てはまる葉を並べた true_ids（空にならないよう、どの式にも無い Z を足す） */
+    private static String expandForTest(String csv, Set<String> leaves) {
+        Set<String> out = new HashSet<>(List.of("Z"));
+        for (String p : csv.split(",")) {
+            String regex = p.replace("*", ".*").replace("?", ".");
+            for (String leaf : leaves) if (leaf.matches(regex)) out.add(leaf);
+        }
+        return String.join(",", out);
+    }
+
+    private long count(String q) throws Exception {
+        SolrQueryRequest r = req();
+        try {
+            Query query = QParser.getParser(q, r).getQuery();
+            return h.getCore().withSearcher(searcher -> (long) searcher.count(query));
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void testSessionDelta() throws Exception {
+        int n = 200;
+        for (int i = 0; i < n; i++) {
+            assertU(adoc("id", Integer.toString(i),
+                    "cond_expr", "(L" + (i % 10) + " AND (NOT M" + (i % 20) + "))"));
+        }
+        assertU(commit());
+
+        // 1 つずつ ID を入れ替えながら同じセッションで問い合わせる
+        String[][] steps = {
+                {"L1", "L2"},
+                {"L1", "L2", "M1"},
+                {"L2", "M1"},
+                {"L2", "L3", "M1", "M3"},
+                {"L2", "L3", "M1", "M3"},
+        };
+        Set<String> prev = null;
+        for (String[] ids : steps) {
+            Set<String> active = Set.of(ids);
+            int expected = 0;
+            for (int i = 0; i < n; i++) {
+                if (active.contains("L" + (i % 10)) && !active.contains("M" + (i % 20))) expected++;
+            }
+            String q = "{!cond session=s1 field=cond_expr true_ids=" + String.join(",", ids) + "}";
+            if (prev == null) {
+                assertQ(req("q", q), "//*[@numFound='" + expected + "']");
+            } else {
+                // 2 回目からは差分の葉を含む文書だけを評価し直す
+                Set<String> changed = new HashSet<>(active);
+                changed.addAll(prev);
+                Set<String> both = new HashSet<>(active);
+                both.retainAll(prev);
+                changed.removeAll(both);
+                int delta = 0;
+                for (int i = 0; i < n; i++) {
+                    if (changed.contains("L" + (i % 10)) || changed.contains("M" + (i % 20))) delta++;
+                }
+                assertQ(req("q", q, "debugQuery", "true"),
+                        "//*[@numFound='" + expected + "']",
+                        "//lst[@name='debug']/lst[@name='cond']/long[@name='evaluatedDocs'][.='" + delta + "']");
+            }
+            prev = active;
+        }
+        h.getCore().withSearcher(searcher -> {
+            assertEquals(1, searcher.getCache("condSessions").size());
+            return null;
+        });
+    }
+
+    @Test
+    public void testMetricsAndDebug() throws Exception {
+        assertU(adoc("id", "1", "cond_expr", "(A AND B)"));
+        assertU(adoc("id", "2", "cond_expr", "(A OR C)"));
+        assertU(adoc("id", "3", "cond_expr", "C"));
+        assertU(commit());
+
+        // A を含む 2 文書だけが候補になり、そのうち 1 文書がマッチする
+        assertQ(req("q", "{!cond field=cond_expr true_ids=A,Z}", "debugQuery", "true"),
+                "//*[@numFound='1']",
+                "//lst[@name='debug']/lst[@name='cond']/long[@name='evaluatedDocs'][.='2']",
+                "//lst[@name='debug']/lst[@name='cond']/long[@name='matchedDocs'][.='1']",
+                "//lst[@name='debug']/lst[@name='cond']/arr[@name='passes']/lst/int[@name='maxDoc'][.='3']");
+
+        var registry = h.getCore().getSolrMetricsContext().getMetricRegistry();
+        String prefix = "QUERY." + ConditionExpressionQParserPlugin.class.getName() + ".";
+        assertTrue(registry.getCounters().get(prefix + "evaluatedDocs").getCount() >= 2);
+        assertTrue(registry.getCounters().get(prefix + "visitedNodes").getCount() >= 2);
+        assertTrue(registry.getHistograms().get(prefix + "matchRatioPercent").getCount() >= 1);
     }
 }